@@ -0,0 +1,86 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.corenlp.benchmarks.Corpus;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Classification of an in-memory document of paragraphs with the bundled
+ * Swedish model through the path of classify-node: the pre-screen of each
+ * text node, CRF classification and writing the marked up document. In the
+ * module package, as the path is not public.
+ *
+ * @author ljo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ClassifyBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int tokens;
+
+    @Param({"NONE", "CHARACTERS"})
+    public Prescreen.Mode prescreen;
+
+    private AbstractSequenceClassifier<CoreLabel> classifier;
+    private Prescreen screen;
+    private Classify classify;
+    private NodeImpl node;
+
+    @Setup
+    public void setup() throws Exception {
+	classifier = CRFClassifier.getClassifier(Corpus.model().toFile());
+	Prescreen.setMode(prescreen);
+	screen = new Prescreen(classifier);
+	classify = new Classify(new XQueryContext(), Classify.signatures[2]);
+
+	final MemTreeBuilder builder = new MemTreeBuilder();
+	builder.startDocument();
+	builder.startElement("", "text", "text", null);
+	for (String paragraph : Corpus.text(tokens).split("\n\n")) {
+	    builder.startElement("", "p", "p", null);
+	    builder.characters(paragraph);
+	    builder.endElement();
+	}
+	builder.endElement();
+	builder.endDocument();
+	node = (NodeImpl) builder.getDocument().getDocumentElement();
+    }
+
+    @Benchmark
+    public DocumentImpl classifyNode() throws Exception {
+	return classify.classifyNode(classifier::classify, screen, node);
+    }
+}
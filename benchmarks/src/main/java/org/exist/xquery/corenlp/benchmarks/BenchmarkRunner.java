@@ -0,0 +1,60 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the allocation profiler enabled and writes the
+ * results as JSON, by default to target/jmh-result.json, for comparison
+ * between versions. Any JMH command line options, e.g. a benchmark regexp
+ * or -p tokens=1000, are passed on and take precedence.
+ *
+ * @author ljo
+ */
+public class BenchmarkRunner {
+    public final static String RESULT_PROPERTY = "corenlp.benchmark.result";
+
+    public static void main(String[] args) throws Exception {
+	final CommandLineOptions commandLine = new CommandLineOptions(args);
+	final ChainedOptionsBuilder options = new OptionsBuilder()
+	    .parent(commandLine)
+	    .addProfiler(GCProfiler.class);
+	if (!commandLine.getResultFormat().hasValue()) {
+	    options.resultFormat(ResultFormatType.JSON);
+	}
+	if (!commandLine.getResult().hasValue()) {
+	    final Path result = Paths.get(System.getProperty(RESULT_PROPERTY, "target/jmh-result.json"));
+	    if (result.getParent() != null) {
+		Files.createDirectories(result.getParent());
+	    }
+	    options.result(result.toString());
+	}
+	new Runner(options.build()).run();
+    }
+}
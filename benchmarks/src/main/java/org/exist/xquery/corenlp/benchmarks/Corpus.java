@@ -0,0 +1,185 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+
+/**
+ * Deterministic Swedish-like corpora of a given size in tokens, with
+ * person, place and organisation names mixed in so the classifier has
+ * entities to find.
+ *
+ * @author ljo
+ */
+public class Corpus {
+    public final static String MODEL_PROPERTY = "corenlp.model";
+    public final static String DEFAULT_MODEL = "../resources/classifiers/swedish-3class-240-model.ser.gz";
+
+    private final static String[] WORDS = {
+        "och", "i", "att", "det", "som", "en", "på", "är", "av", "för",
+        "med", "till", "den", "har", "de", "inte", "om", "ett", "han", "men",
+        "var", "jag", "sig", "från", "vi", "så", "kan", "man", "när", "år",
+        "säger", "hon", "under", "också", "efter", "eller", "nu", "sin", "där", "vid",
+        "regeringen", "kommunen", "beslutet", "mötet", "rapporten", "staden", "företaget", "året", "veckan", "frågan"
+    };
+    private final static String[] PERSONS = {
+        "Anna Lindh", "Olof Palme", "Selma Lagerlöf", "August Strindberg", "Greta Garbo", "Carl Linnaeus"
+    };
+    private final static String[] PLACES = {
+        "Stockholm", "Göteborg", "Uppsala", "Malmö", "Kiruna", "Gotland"
+    };
+    private final static String[] ORGANISATIONS = {
+        "Riksdagen", "Volvo", "Ericsson", "Göteborgs universitet", "Svenska Akademien", "SAS"
+    };
+
+    /**
+     * Returns running text of approximately the given number of tokens,
+     * split into paragraphs of a few sentences each.
+     */
+    public static String text(final int tokens) {
+	final Random random = new Random(tokens);
+	final StringBuilder text = new StringBuilder(tokens * 7);
+	int count = 0;
+	int sentences = 0;
+	while (count < tokens) {
+	    final int length = 8 + random.nextInt(12);
+	    for (int i = 0; i < length; i++) {
+		final String word;
+		final int r = random.nextInt(20);
+		if (r == 0) {
+		    word = PERSONS[random.nextInt(PERSONS.length)];
+		} else if (r == 1) {
+		    word = PLACES[random.nextInt(PLACES.length)];
+		} else if (r == 2) {
+		    word = ORGANISATIONS[random.nextInt(ORGANISATIONS.length)];
+		} else {
+		    word = WORDS[random.nextInt(WORDS.length)];
+		}
+		if (i == 0) {
+		    text.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+		} else {
+		    text.append(' ').append(word);
+		}
+		count++;
+	    }
+	    text.append('.');
+	    count++;
+	    text.append(++sentences % 5 == 0 ? "\n\n" : " ");
+	}
+	return text.toString();
+    }
+
+    /**
+     * Returns the text as sentences of annotated tokens, the shape the spreadsheet writers take.
+     */
+    public static List<List<CoreLabel>> sentences(final int tokens) {
+	final Random random = new Random(tokens);
+	final List<List<CoreLabel>> sentences = new ArrayList<>();
+	List<CoreLabel> sentence = new ArrayList<>();
+	for (String word : text(tokens).split("\\s+")) {
+	    final boolean end = word.endsWith(".");
+	    final String value = end ? word.substring(0, word.length() - 1) : word;
+	    final CoreLabel token = new CoreLabel();
+	    token.setWord(value);
+	    token.set(CoreAnnotations.OriginalTextAnnotation.class, value);
+	    if (Character.isUpperCase(value.charAt(0)) && random.nextBoolean()) {
+		token.set(CoreAnnotations.AnswerAnnotation.class, "PERSON");
+	    }
+	    sentence.add(token);
+	    if (end) {
+		final CoreLabel stop = new CoreLabel();
+		stop.setWord(".");
+		stop.set(CoreAnnotations.OriginalTextAnnotation.class, ".");
+		sentence.add(stop);
+		sentences.add(sentence);
+		sentence = new ArrayList<>();
+	    }
+	}
+	if (!sentence.isEmpty()) {
+	    sentences.add(sentence);
+	}
+	return sentences;
+    }
+
+    /**
+     * Returns the text as a DOCX document with one paragraph per text paragraph.
+     */
+    public static byte[] docx(final int tokens) throws IOException {
+	try (final XWPFDocument document = new XWPFDocument();
+	     final ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+	    for (String paragraph : text(tokens).split("\n\n")) {
+		document.createParagraph().createRun().setText(paragraph);
+	    }
+	    document.write(os);
+	    return os.toByteArray();
+	}
+    }
+
+    /**
+     * Returns the text as a minimal ODT package, content.xml only.
+     */
+    public static byte[] odt(final int tokens) throws IOException {
+	final StringBuilder content = new StringBuilder();
+	content.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+	    .append("<office:document-content xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\" ")
+	    .append("xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\" office:version=\"1.2\">")
+	    .append("<office:body><office:text>");
+	for (String paragraph : text(tokens).split("\n\n")) {
+	    content.append("<text:p>").append(paragraph.replace("&", "&amp;").replace("<", "&lt;")).append("</text:p>");
+	}
+	content.append("</office:text></office:body></office:document-content>");
+
+	final ByteArrayOutputStream os = new ByteArrayOutputStream();
+	try (final ZipOutputStream zip = new ZipOutputStream(os)) {
+	    zip.putNextEntry(new ZipEntry("mimetype"));
+	    zip.write("application/vnd.oasis.opendocument.text".getBytes(StandardCharsets.US_ASCII));
+	    zip.closeEntry();
+	    zip.putNextEntry(new ZipEntry("content.xml"));
+	    zip.write(content.toString().getBytes(StandardCharsets.UTF_8));
+	    zip.closeEntry();
+	}
+	return os.toByteArray();
+    }
+
+    /**
+     * The classifier model to benchmark, by default the bundled Swedish 3 class model.
+     */
+    public static Path model() {
+	final Path model = Paths.get(System.getProperty(MODEL_PROPERTY, DEFAULT_MODEL));
+	if (!Files.isReadable(model)) {
+	    throw new IllegalStateException("Classifier model " + model.toAbsolutePath() + " not found, set -D" + MODEL_PROPERTY);
+	}
+	return model;
+    }
+}
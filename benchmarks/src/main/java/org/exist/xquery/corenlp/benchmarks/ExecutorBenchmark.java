@@ -0,0 +1,96 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.exist.xquery.corenlp.util.ModuleExecutors;
+import org.exist.xquery.corenlp.util.Spreadsheet.InputDocType;
+import org.exist.xquery.corenlp.util.Textdocument;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Fan-out of uploaded document extraction over the I/O executor, on
+ * platform or virtual threads. Each task waits a simulated storage
+ * latency before extracting the paragraphs of a small document, as when
+ * many uploads are read from the database at once. Virtual threads need
+ * Java 21 or later; on earlier versions both variants use platform threads.
+ *
+ * @author ljo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExecutorBenchmark {
+    private final static int PLATFORM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    @Param({"platform", "virtual"})
+    public String executor;
+
+    @Param({"100", "1000"})
+    public int tasks;
+
+    @Param({"1000"})
+    public long latencyMicros;
+
+    private byte[] document;
+    private ExecutorService service;
+
+    @Setup
+    public void setup() throws Exception {
+	document = Corpus.text(1000).getBytes(StandardCharsets.UTF_8);
+	ModuleExecutors.setVirtualThreads("virtual".equals(executor));
+	service = ModuleExecutors.newIOExecutor(PLATFORM_THREADS);
+    }
+
+    @TearDown
+    public void tearDown() {
+	service.shutdownNow();
+	ModuleExecutors.setVirtualThreads(false);
+    }
+
+    @Benchmark
+    public int fanOut() throws Exception {
+	final List<Future<Integer>> results = new ArrayList<>(tasks);
+	for (int i = 0; i < tasks; i++) {
+	    results.add(service.submit(() -> {
+		LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+		final AtomicInteger paragraphs = new AtomicInteger();
+		Textdocument.readTextDocument(InputDocType.TXT, Uploads.of(document), null, paragraph -> paragraphs.incrementAndGet());
+		return paragraphs.get();
+	    }));
+	}
+	int paragraphs = 0;
+	for (Future<Integer> result : results) {
+	    paragraphs += result.get();
+	}
+	return paragraphs;
+    }
+}
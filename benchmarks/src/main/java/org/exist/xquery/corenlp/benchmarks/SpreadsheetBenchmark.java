@@ -0,0 +1,108 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sequences.SeqClassifierFlags;
+
+import org.exist.xquery.corenlp.util.Spreadsheet;
+import org.exist.xquery.corenlp.util.Spreadsheet.InputDocType;
+import org.exist.xquery.corenlp.util.Spreadsheet.OutDocType;
+import org.exist.xquery.corenlp.util.TokenBuffer;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Writing annotated tokens as spreadsheets and reading them back, the
+ * round-trip of ClassifyUploaded and TrainClassifier.
+ *
+ * @author ljo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SpreadsheetBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int tokens;
+
+    @Param({"ODS", "XSLX", "XSL", "TSV"})
+    public OutDocType format;
+
+    private TokenBuffer sentences;
+    private byte[] written;
+
+    @Setup
+    public void setup() throws Exception {
+	sentences = new TokenBuffer(tokens);
+	for (List<CoreLabel> sentence : Corpus.sentences(tokens)) {
+	    sentences.add(sentence);
+	}
+	final ByteArrayOutputStream os = new ByteArrayOutputStream();
+	Spreadsheet.createSpreadsheet(sentences, format, os, SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL);
+	written = os.toByteArray();
+    }
+
+    @Benchmark
+    public long write() {
+	final CountingOutputStream os = new CountingOutputStream();
+	Spreadsheet.createSpreadsheet(sentences, format, os, SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL);
+	return os.count;
+    }
+
+    @Benchmark
+    public TokenBuffer read() throws Exception {
+	return Spreadsheet.readSpreadsheet(inputFormat(format), Uploads.of(written), null, -1);
+    }
+
+    private static InputDocType inputFormat(final OutDocType format) {
+	switch (format) {
+	case ODS:
+	    return InputDocType.ODS;
+	case XSLX:
+	    return InputDocType.XLSX;
+	case XSL:
+	    return InputDocType.XLS;
+	default:
+	    return InputDocType.TSV;
+	}
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+	long count = 0;
+
+	@Override
+	public void write(int b) {
+	    count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+	    count += len;
+	}
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.exist.xquery.corenlp.util.Spreadsheet.InputDocType;
+import org.exist.xquery.corenlp.util.Textdocument;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Paragraph extraction from uploaded text documents.
+ *
+ * @author ljo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TextdocumentBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int tokens;
+
+    @Param({"ODT", "DOCX", "TXT"})
+    public InputDocType format;
+
+    private byte[] document;
+
+    @Setup
+    public void setup() throws Exception {
+	switch (format) {
+	case ODT:
+	    document = Corpus.odt(tokens);
+	    break;
+	case DOCX:
+	    document = Corpus.docx(tokens);
+	    break;
+	case TXT:
+	    document = Corpus.text(tokens).getBytes(StandardCharsets.UTF_8);
+	    break;
+	default:
+	    throw new IllegalArgumentException("No corpus for " + format);
+	}
+    }
+
+    @Benchmark
+    public void paragraphs(final Blackhole blackhole) throws Exception {
+	Textdocument.readTextDocument(format, Uploads.of(document), null, blackhole::consume);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.benchmarks;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
+
+import org.exist.xquery.corenlp.util.TokenizerFactories;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Tokenizer setup and tokenization, creating a PTBTokenizer per call as
+ * opposed to taking tokenizers from the shared factory.
+ *
+ * @author ljo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TokenizerBenchmark {
+    private final static String OPTIONS = TokenizerFactories.options(true, false, null);
+
+    @Param({"1000", "10000", "100000"})
+    public int tokens;
+
+    private String text;
+    private TokenizerFactory<CoreLabel> factory;
+
+    @Setup
+    public void setup() throws Exception {
+	text = Corpus.text(tokens);
+	factory = TokenizerFactories.getFactory(TokenizerFactories.DEFAULT_TOKENIZER, OPTIONS);
+    }
+
+    @Benchmark
+    public List<CoreLabel> newTokenizer() {
+	return new PTBTokenizer<>(new StringReader(text), new CoreLabelTokenFactory(), OPTIONS).tokenize();
+    }
+
+    @Benchmark
+    public List<CoreLabel> cachedFactory() {
+	return factory.getTokenizer(new StringReader(text)).tokenize();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.benchmarks;
+
+import java.io.ByteArrayInputStream;
+
+import org.exist.util.io.MemoryFilterInputStreamCache;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Base64BinaryDocument;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.BinaryValueManager;
+
+/**
+ * In-memory binary values standing in for uploaded files, so the readers
+ * can be benchmarked without a database or query context.
+ *
+ * @author ljo
+ */
+public class Uploads {
+
+    private final static BinaryValueManager MANAGER = new BinaryValueManager() {
+	    @Override
+	    public void registerBinaryValueInstance(BinaryValue binaryValue) {
+	    }
+
+	    @Override
+	    public void runCleanupTasks() {
+	    }
+
+	    // newer eXist versions also clean up selectively
+	    public void runCleanupTasks(java.util.function.Predicate<Object> predicate) {
+	    }
+
+	    @Override
+	    public String getCacheClass() {
+		return MemoryFilterInputStreamCache.class.getName();
+	    }
+	};
+
+    public static BinaryValue of(final byte[] content) throws XPathException {
+	return Base64BinaryDocument.getInstance(MANAGER, new ByteArrayInputStream(content));
+    }
+}
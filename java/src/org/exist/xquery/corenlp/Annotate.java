@@ -0,0 +1,176 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo: copied from stanford-ner by wolfgangmm and myself.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.IndexedWord;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations;
+import edu.stanford.nlp.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations;
+import edu.stanford.nlp.util.CoreMap;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.security.PermissionDeniedException;
+import org.exist.util.ParametersExtractor;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+import org.exist.xquery.value.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs a configurable StanfordCoreNLP pipeline taken from a {@link PipelinePool}.
+ *
+ * @author ljo
+ */
+public class Annotate extends MeasuredFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("annotate", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Annotate the provided text string with a StanfordCoreNLP pipeline. Returns an annotation element with a sentence " +
+                "element per sentence and a token element per token, with the character offsets in begin and end and, depending on " +
+                "the annotators, the pos, lemma and ner of the token and the index of its head and relation in the basic dependencies. " +
+                "The constituency parse of a sentence is given in a parse element. Pipelines are pooled per configuration and load " +
+                "only the annotators they are configured with, on first use.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "String of text to analyze."),
+                    new FunctionParameterSequenceType("annotators-config", Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                        "The pipeline properties, e.g. &lt;parameters&gt;&lt;param name='annotators' value='tokenize,ssplit,pos'/&gt;" +
+                        "&lt;param name='pos.model' value='/db/apps/stanford-corenlp/resources/pos/swedish-pos-tagger-model'/&gt;&lt;/parameters&gt;. " +
+                        "annotators is required. The annotators are tokenize, cleanxml, ssplit, pos, lemma, ner, regexner, truecase, parse, depparse, sentiment, natlog, dcoref and entitymentions. " +
+                        "Model properties, such as pos.model, ner.model and regexner.mapping, must be paths of binary resources stored within the database, starting with /db/. " +
+                        "Other properties, such as customAnnotatorClass, are refused unless they are one of the supported tokenize, cleanxml, ssplit, pos, ner, regexner, parse and depparse options.")
+                },
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "The annotated text")
+            )
+    };
+
+    public Annotate(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final String text = args[0].getStringValue();
+        final Properties configuration = ParametersExtractor.parseParameters(((NodeValue)args[1].itemAt(0)).getNode());
+
+        context.pushDocumentContext();
+        // pipelines are configured freely per call, so all share one limit rather than registering one per configuration
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, "pipeline")) {
+            final PipelinePool pool = PipelinePool.get(context.getBroker(), configuration);
+            final Annotation annotation = new Annotation(text);
+            final long start = System.nanoTime();
+            final StanfordCoreNLP pipeline = pool.borrow();
+            try {
+                pipeline.annotate(annotation);
+            } finally {
+                pool.release(pipeline);
+            }
+            final List<CoreLabel> tokens = annotation.get(CoreAnnotations.TokensAnnotation.class);
+            ModuleMetrics.getInstance().tokens(tokens == null ? 0 : tokens.size(), System.nanoTime() - start);
+            return write(annotation);
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(this, "Permission denied to read model resource", e);
+        } catch (IOException e) {
+            throw new XPathException(this, "Error while reading model resource: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            throw new XPathException(this, "Error while annotating: " + e.getMessage(), e);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private Sequence write(Annotation annotation) {
+        final MemTreeBuilder builder = context.getDocumentBuilder();
+        final int nodeNr = builder.startElement("", "annotation", "annotation", null);
+        final List<CoreMap> sentences = annotation.get(CoreAnnotations.SentencesAnnotation.class);
+        if (sentences != null) {
+            for (CoreMap sentence : sentences) {
+                AttributesImpl attribs = new AttributesImpl();
+                addAttribute(attribs, "begin", sentence.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class));
+                addAttribute(attribs, "end", sentence.get(CoreAnnotations.CharacterOffsetEndAnnotation.class));
+                builder.startElement("", "sentence", "sentence", attribs);
+                writeTokens(builder, sentence.get(CoreAnnotations.TokensAnnotation.class),
+                    sentence.get(SemanticGraphCoreAnnotations.BasicDependenciesAnnotation.class));
+                final Tree tree = sentence.get(TreeCoreAnnotations.TreeAnnotation.class);
+                if (tree != null) {
+                    builder.startElement("", "parse", "parse", null);
+                    builder.characters(tree.toString());
+                    builder.endElement();
+                }
+                builder.endElement();
+            }
+        } else {
+            writeTokens(builder, annotation.get(CoreAnnotations.TokensAnnotation.class), null);
+        }
+        builder.endElement();
+        return builder.getDocument().getNode(nodeNr);
+    }
+
+    private void writeTokens(MemTreeBuilder builder, List<CoreLabel> tokens, SemanticGraph dependencies) {
+        if (tokens == null) {
+            return;
+        }
+        final int[] heads = new int[tokens.size()];
+        final String[] relations = new String[tokens.size()];
+        if (dependencies != null) {
+            for (IndexedWord root : dependencies.getRoots()) {
+                relations[root.index() - 1] = "root";
+            }
+            for (SemanticGraphEdge edge : dependencies.edgeIterable()) {
+                final int dependent = edge.getDependent().index() - 1;
+                heads[dependent] = edge.getGovernor().index();
+                relations[dependent] = edge.getRelation().toString();
+            }
+        }
+        for (int t = 0; t < tokens.size(); t++) {
+            final CoreLabel token = tokens.get(t);
+            final AttributesImpl attribs = new AttributesImpl();
+            addAttribute(attribs, "begin", token.beginPosition());
+            addAttribute(attribs, "end", token.endPosition());
+            addAttribute(attribs, "pos", token.tag());
+            addAttribute(attribs, "lemma", token.lemma());
+            addAttribute(attribs, "ner", token.ner());
+            if (relations[t] != null) {
+                addAttribute(attribs, "head", heads[t]);
+                addAttribute(attribs, "relation", relations[t]);
+            }
+            builder.startElement("", "token", "token", attribs);
+            builder.characters(token.word());
+            builder.endElement();
+        }
+    }
+
+    private static void addAttribute(AttributesImpl attribs, String name, Object value) {
+        if (value != null) {
+            attribs.addAttribute("", name, name, "CDATA", value.toString());
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.ParametersExtractor;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.ModuleExecutors;
+import org.exist.xquery.value.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Marks up named entities in all documents of a collection using a pool of
+ * worker threads, each with its own broker, and stores the results in a target
+ * collection in batched transactions.
+ *
+ * @author ljo
+ */
+public class AnnotateCollection extends MeasuredFunction {
+    private final static Logger LOG = LogManager.getLogger(AnnotateCollection.class);
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("annotate-collection", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Mark up named entities in all XML documents of a collection in parallel. The annotated documents are " +
+                "stored under their original names in the target collection. Returns a summary element.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the serialized classifier to load. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("collection-uri", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The collection with the documents to annotate."),
+                    new FunctionParameterSequenceType("options", Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                        "The annotation options, e.g. &lt;parameters&gt;&lt;param name='targetCollection' value='/db/annotated'/&gt;&lt;param name='threads' value='4'/&gt;&lt;param name='batchSize' value='100'/&gt;&lt;param name='resume' value='true'/&gt;&lt;/parameters&gt;. " +
+                        "targetCollection is required. threads defaults to the number of available processors and batchSize, the number of documents stored per transaction, to 100. " +
+                        "With resume set, documents already present in the target collection are skipped, so an interrupted run can be continued.")
+                },
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "A summary element with the number of stored, skipped and failed documents")
+            )
+    };
+
+    private AnalyzeContextInfo cachedContextInfo;
+
+    public AnnotateCollection(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+        cachedContextInfo = new AnalyzeContextInfo(contextInfo);
+        super.analyze(cachedContextInfo);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final String classifierPath = args[0].getStringValue();
+        final XmldbURI sourceUri = XmldbURI.createInternal(args[1].getStringValue());
+        final Properties parameters = ParametersExtractor.parseParameters(((NodeValue)args[2].itemAt(0)).getNode());
+
+        final String targetCollection = parameters.getProperty("targetCollection");
+        if (targetCollection == null || targetCollection.isEmpty()) {
+            throw new XPathException(this, "The targetCollection option is required");
+        }
+        final XmldbURI targetUri = XmldbURI.createInternal(targetCollection);
+        final int threads = Integer.valueOf(parameters.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        final int batchSize = Integer.valueOf(parameters.getProperty("batchSize", "100"));
+        final boolean resume = Boolean.valueOf(parameters.getProperty("resume", "false"));
+
+        final DBBroker broker = context.getBroker();
+        final BrokerPool pool = broker.getBrokerPool();
+        final Subject subject = context.getSubject();
+
+        int stored = 0;
+        int skipped = 0;
+        final List<Annotated> failures = new ArrayList<>();
+        ExecutorService executor = null;
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, broker, classifierPath, threads)) {
+            final ClassifierCache.CachedClassifier classifier = ClassifierCache.CLASSIFIERS.get(broker, classifierPath);
+            final Classify classify = new Classify(context, Classify.signatures[2]);
+
+            final Collection source = broker.getCollection(sourceUri);
+            if (source == null) {
+                throw new XPathException(this, "Collection " + sourceUri + " not found");
+            }
+            final Collection target = resume ? broker.getCollection(targetUri) : null;
+            final List<XmldbURI> documents = new ArrayList<>();
+            for (Iterator<DocumentImpl> i = source.iterator(broker); i.hasNext(); ) {
+                final DocumentImpl doc = i.next();
+                if (doc.getResourceType() != DocumentImpl.XML_FILE) {
+                    continue;
+                }
+                if (target != null && target.hasDocument(broker, doc.getFileURI())) {
+                    skipped++;
+                } else {
+                    documents.add(doc.getURI());
+                }
+            }
+
+            executor = ModuleExecutors.newComputeExecutor(permit.getPermits());
+            final CompletionService<Annotated> completion = new ExecutorCompletionService<>(executor);
+            // bound the number of annotated documents held in memory while waiting to be stored
+            final int maxInFlight = permit.getPermits() + batchSize;
+            final Iterator<XmldbURI> pending = documents.iterator();
+            int submitted = 0;
+            int completed = 0;
+            while (submitted < maxInFlight && pending.hasNext()) {
+                final XmldbURI docUri = pending.next();
+                completion.submit(() -> annotate(pool, subject, docUri, classify, classifier));
+                submitted++;
+            }
+
+            final List<Annotated> batch = new ArrayList<>(batchSize);
+            while (completed < submitted) {
+                final Annotated annotated = completion.take().get();
+                completed++;
+                if (pending.hasNext()) {
+                    final XmldbURI docUri = pending.next();
+                    completion.submit(() -> annotate(pool, subject, docUri, classify, classifier));
+                    submitted++;
+                }
+                if (annotated.error != null) {
+                    failures.add(annotated);
+                } else {
+                    batch.add(annotated);
+                    if (batch.size() >= batchSize) {
+                        stored += storeBatch(broker, targetUri, batch);
+                        batch.clear();
+                    }
+                }
+            }
+            stored += storeBatch(broker, targetUri, batch);
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(this, "Permission denied: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(this, "Interrupted while annotating collection " + sourceUri, e);
+        } catch (ExecutionException e) {
+            throw new XPathException(this, "Error while annotating collection " + sourceUri + ": " + e.getCause().getMessage(), e.getCause());
+        } catch (XPathException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new XPathException(this, "Error while annotating collection " + sourceUri + ": " + e.getMessage(), e);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        return summary(sourceUri, targetUri, stored, skipped, failures);
+    }
+
+    private Annotated annotate(final BrokerPool pool, final Subject subject, final XmldbURI docUri, final Classify classify, final ClassifierCache.CachedClassifier classifier) {
+        try (final DBBroker workerBroker = pool.get(Optional.of(subject))) {
+            final DocumentImpl doc = workerBroker.getResource(docUri, Permission.READ);
+            if (doc == null) {
+                return new Annotated(docUri, null, "Document not found");
+            }
+            return new Annotated(docUri, classify.classifyDocument(classifier, workerBroker, doc), null);
+        } catch (Exception e) {
+            LOG.error("Unable to annotate " + docUri + ": " + e.getMessage(), e);
+            return new Annotated(docUri, null, e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+        }
+    }
+
+    private int storeBatch(final DBBroker broker, final XmldbURI targetUri, final List<Annotated> batch) throws XPathException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        final TransactionManager transact = broker.getBrokerPool().getTransactionManager();
+        try (final Txn txn = transact.beginTransaction()) {
+            try (final Collection created = broker.getOrCreateCollection(txn, targetUri)) {
+                broker.saveCollection(txn, created);
+            }
+            // hold the write lock of the target while the batch is stored into it
+            try (final Collection target = broker.openCollection(targetUri, LockMode.WRITE_LOCK)) {
+                if (target == null) {
+                    throw new XPathException(this, "Collection " + targetUri + " not found");
+                }
+                for (Annotated annotated : batch) {
+                    final XmldbURI name = annotated.uri.lastSegment();
+                    final IndexInfo info = target.validateXMLResource(txn, broker, name, annotated.document);
+                    target.store(txn, broker, info, annotated.document);
+                }
+            }
+            transact.commit(txn);
+        } catch (Exception e) {
+            throw new XPathException(this, "Error while storing annotated documents into " + targetUri + ": " + e.getMessage(), e);
+        }
+        return batch.size();
+    }
+
+    private Sequence summary(final XmldbURI sourceUri, final XmldbURI targetUri, final int stored, final int skipped, final List<Annotated> failures) {
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            AttributesImpl attribs = new AttributesImpl();
+            attribs.addAttribute("", "source", "source", "CDATA", sourceUri.toString());
+            attribs.addAttribute("", "target", "target", "CDATA", targetUri.toString());
+            attribs.addAttribute("", "stored", "stored", "CDATA", String.valueOf(stored));
+            attribs.addAttribute("", "skipped", "skipped", "CDATA", String.valueOf(skipped));
+            attribs.addAttribute("", "failed", "failed", "CDATA", String.valueOf(failures.size()));
+            final int nodeNr = builder.startElement("", "annotate-collection", "annotate-collection", attribs);
+            for (Annotated failure : failures) {
+                attribs = new AttributesImpl();
+                attribs.addAttribute("", "document", "document", "CDATA", failure.uri.toString());
+                builder.startElement("", "failed", "failed", attribs);
+                builder.characters(failure.error);
+                builder.endElement();
+            }
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private static class Annotated {
+        final XmldbURI uri;
+        final org.exist.dom.memtree.DocumentImpl document;
+        final String error;
+
+        Annotated(XmldbURI uri, org.exist.dom.memtree.DocumentImpl document, String error) {
+            this.uri = uri;
+            this.document = document;
+            this.error = error;
+        }
+    }
+}
@@ -20,9 +20,11 @@ package org.exist.xquery.corenlp;
 
 import edu.stanford.nlp.ie.crf.CRFClassifier;
 import org.exist.xquery.XPathException;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Properties;
 
@@ -31,18 +33,57 @@ import java.util.Properties;
  */
 public class ChineseSegmenter {
 
-    private static ChineseSegmenter instance = null;
+    private static volatile ChineseSegmenter instance = null;
 
     public static ChineseSegmenter getInstance(Path dataDir) throws XPathException {
-        if (instance == null) {
-            instance = new ChineseSegmenter(dataDir);
+        ChineseSegmenter segmenter = instance;
+        if (segmenter == null) {
+            synchronized (ChineseSegmenter.class) {
+                segmenter = instance;
+                if (segmenter == null) {
+                    final String name = dataDir.toAbsolutePath().toString();
+                    final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+                    memoryManager.admit(name, "segmenter", estimateSize(dataDir));
+                    try {
+                        segmenter = new ChineseSegmenter(dataDir);
+                    } catch (XPathException | RuntimeException | Error e) {
+                        memoryManager.release(name);
+                        throw e;
+                    }
+                    instance = segmenter;
+                    memoryManager.loaded(name, () -> instance = null);
+                }
+            }
+        } else {
+            ModelMemoryManager.getInstance().touch(segmenter.dataDir.toAbsolutePath().toString());
         }
-        return instance;
+        return segmenter;
     }
 
+    /**
+     * The segmenter model and its dictionary make up most of the retained size.
+     */
+    private static long estimateSize(Path dataDir) throws XPathException {
+        long size = 0;
+        try {
+            for (String file : new String[] { "ctb.gz", "dict-chris6.ser.gz" }) {
+                final Path path = dataDir.resolve(file);
+                if (Files.exists(path)) {
+                    size += ModelMemoryManager.estimateSize(path);
+                }
+            }
+        } catch (IOException e) {
+            throw new XPathException("Unable to read Chinese segmenter data: " + e.getMessage(), e);
+        }
+        return size;
+    }
+
+    private final Path dataDir;
+
     private CRFClassifier classifier;
 
     public ChineseSegmenter(Path dataDir) throws XPathException {
+        this.dataDir = dataDir;
         // "ctb.gz"
         Properties props = new Properties();
         props.setProperty("NormalizationTable", new File(dataDir.toFile(), "norm.simp.utf8").getAbsolutePath());
@@ -53,7 +94,9 @@ public class ChineseSegmenter {
 
         classifier = new CRFClassifier(props);
         try {
+            final long start = System.nanoTime();
             classifier.loadClassifier(new File(dataDir.toFile(), "ctb.gz"), props);
+            ModuleMetrics.getInstance().modelLoad(System.nanoTime() - start);
         } catch (IOException e) {
             throw new XPathException(e.getMessage());
         } catch (ClassNotFoundException e) {
@@ -0,0 +1,92 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.corenlp.util.MappedModels;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Classifiers loaded from binary resources in the database, shared between
+ * queries and worker threads. Classification with a loaded classifier is
+ * thread safe, so a single instance is used concurrently. Classifiers are
+ * kept until evicted by the {@link ModelMemoryManager} to make room for others.
+ * Models written by {@link MappedModels} are memory mapped rather than deserialized.
+ *
+ * @author ljo
+ */
+public class ClassifierCache {
+
+    public final static ModelCache<CachedClassifier> CLASSIFIERS = new ModelCache<>("classifier", ClassifierCache::estimate, ClassifierCache::load);
+
+    public static class CachedClassifier {
+        private final AbstractSequenceClassifier<CoreLabel> classifier;
+        private final Path dataDir;
+        private final Prescreen prescreen;
+
+        CachedClassifier(AbstractSequenceClassifier<CoreLabel> classifier, Path dataDir) {
+            this.classifier = classifier;
+            this.dataDir = dataDir;
+            this.prescreen = new Prescreen(classifier);
+        }
+
+        public AbstractSequenceClassifier<CoreLabel> getClassifier() {
+            return classifier;
+        }
+
+        public Path getDataDir() {
+            return dataDir;
+        }
+
+        public Prescreen getPrescreen() {
+            return prescreen;
+        }
+    }
+
+    /**
+     * Returns the file in the data directory of the binary resource at the given database path.
+     */
+    static Path getClassifierFile(DBBroker broker, String classifierPath) throws XPathException, PermissionDeniedException, IOException {
+        return broker.getBinaryFile(ModelCache.getModelDocument(broker, classifierPath, "classifier"));
+    }
+
+    private static long estimate(Path classifierFile) throws IOException {
+        // only the header of a mapped model is loaded onto the heap, its tables stay in the page cache
+        return MappedModels.isMappedModel(classifierFile)
+            ? (long) MappedModels.getHeaderLength(classifierFile) * ModelMemoryManager.SERIALIZED_SIZE_FACTOR
+            : ModelMemoryManager.estimateSize(classifierFile);
+    }
+
+    private static CachedClassifier load(Path classifierFile) throws XPathException, IOException {
+        final AbstractSequenceClassifier<CoreLabel> classifier;
+        try {
+            classifier = MappedModels.isMappedModel(classifierFile) ? MappedModels.load(classifierFile) : CRFClassifier.getClassifier(classifierFile.toFile());
+        } catch (ClassNotFoundException e) {
+            throw new XPathException("Error while deserializing classifier: " + e.getMessage(), e);
+        }
+        return new CachedClassifier(classifier, classifierFile.getParent());
+    }
+}
@@ -25,12 +25,15 @@ import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.sequences.SeqClassifierFlags;
 import org.exist.dom.persistent.BinaryDocument;
 import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.QName;
 import org.exist.dom.memtree.DocumentBuilderReceiver;
 import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
 import org.exist.xquery.value.*;
 import org.xml.sax.SAXException;
 
@@ -40,7 +43,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 
-public class Classify extends BasicFunction {
+public class Classify extends MeasuredFunction {
 
     public final static FunctionSignature signatures[] = {
             new FunctionSignature(
@@ -138,9 +141,14 @@ public class Classify extends BasicFunction {
             )
     };
 
-    private static String classifierSource = null;
-    private static Path dataDir = null;
-    private static AbstractSequenceClassifier<CoreLabel> cachedClassifier = null;
+    /**
+     * Splits text into sentences of tokens labeled in their AnswerAnnotation,
+     * e.g. by a classifier.
+     */
+    interface Labeler {
+        List<List<CoreLabel>> label(String text);
+    }
+
     private AnalyzeContextInfo cachedContextInfo;
 
     public Classify(XQueryContext context, FunctionSignature signature) {
@@ -158,29 +166,20 @@ public class Classify extends BasicFunction {
         String classifierPath = args[0].getStringValue();
 
         context.pushDocumentContext();
-        try {
-            if (classifierSource == null || !classifierPath.equals(classifierSource)) {
-                classifierSource = classifierPath;
-                DocumentImpl doc = (DocumentImpl) context.getBroker().getXMLResource(XmldbURI.createInternal(classifierPath));
-                if (doc.getResourceType() != DocumentImpl.BINARY_FILE) {
-                    throw new XPathException(this, "Classifier path does not point to a binary resource");
-                }
-                BinaryDocument binaryDocument = (BinaryDocument)doc;
-                Path classifierFile = context.getBroker().getBinaryFile(binaryDocument);
-                dataDir = classifierFile.getParent();
-                cachedClassifier = CRFClassifier.getClassifier(classifierFile.toFile());
-            }
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, context.getBroker(), classifierPath)) {
+            ClassifierCache.CachedClassifier cached = ClassifierCache.CLASSIFIERS.get(context.getBroker(), classifierPath);
+            AbstractSequenceClassifier<CoreLabel> classifier = cached.getClassifier();
 
             ChineseSegmenter segmenter = null;
             if (isCalledAs("classify-node-cn")) {
-                segmenter = ChineseSegmenter.getInstance(dataDir);
+                segmenter = ChineseSegmenter.getInstance(cached.getDataDir());
             }
             if (isCalledAs("classify-string")) {
                 String text = args[1].getStringValue();
                 if (segmenter != null) {
                     text = segmenter.segment(text);
                 }
-                return classifyString(text);
+                return classifyString(classifier::classify, text);
             } else {
                 NodeValue nv = (NodeValue) args[1].itemAt(0);
                 FunctionReference callback = null;
@@ -188,25 +187,23 @@ public class Classify extends BasicFunction {
                     callback = (FunctionReference)args[2].itemAt(0);
                     callback.analyze(cachedContextInfo);
                 }
-                return classifyNode(nv, segmenter, callback);
+                return classifyNode(classifier::classify, cached.getPrescreen(), nv, segmenter, callback);
             }
         } catch (PermissionDeniedException e) {
             throw new XPathException(this, "Permission denied to read classifier resource", e);
         } catch (IOException e) {
             throw new XPathException(this, "Error while reading classifier resource: " + e.getMessage(), e);
-        } catch (ClassNotFoundException e) {
-            throw new XPathException(this, "Error while reading classifier resource: " + e.getMessage(), e);
         } finally {
             context.popDocumentContext();
         }
     }
 
-    private Sequence classifyNode(NodeValue node, ChineseSegmenter segmenter, FunctionReference callback) throws XPathException {
+    Sequence classifyNode(Labeler labeler, Prescreen prescreen, NodeValue node, ChineseSegmenter segmenter, FunctionReference callback) throws XPathException {
         final Properties serializeOptions = new Properties();
 
         try {
             final MemTreeBuilder builder = context.getDocumentBuilder();
-            final DocumentBuilderReceiver receiver = new NERDocumentReceiver(builder, segmenter, callback);
+            final DocumentBuilderReceiver receiver = new NERDocumentReceiver(builder, labeler, prescreen, segmenter, callback);
 
             final int nodeNr = builder.getDocument().getLastNode();
 
@@ -218,29 +215,65 @@ public class Classify extends BasicFunction {
         }
     }
 
-    private Sequence classifyString(String text) throws XPathException {
+    /**
+     * Mark up the entities of a stored document in a new in-memory document. Uses its own
+     * document builder and the given broker, so it can be called from worker threads.
+     */
+    org.exist.dom.memtree.DocumentImpl classifyDocument(ClassifierCache.CachedClassifier classifier, DBBroker broker, DocumentImpl doc) throws SAXException {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        final DocumentBuilderReceiver receiver = new NERDocumentReceiver(builder, classifier.getClassifier()::classify, classifier.getPrescreen(), null, null);
+        new NodeProxy(doc).toSAX(broker, receiver, new Properties());
+        return builder.getDocument();
+    }
+
+    /**
+     * Mark up the entities of an in-memory node in a new in-memory document, as classify-node
+     * does. Copies the node without a broker, so it needs neither a database nor a query.
+     */
+    org.exist.dom.memtree.DocumentImpl classifyNode(Labeler labeler, Prescreen prescreen, org.exist.dom.memtree.NodeImpl node) throws SAXException {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        final DocumentBuilderReceiver receiver = new NERDocumentReceiver(builder, labeler, prescreen, null, null);
+        node.copyTo(null, receiver);
+        builder.endDocument();
+        return builder.getDocument();
+    }
+
+    Sequence classifyString(Labeler labeler, String text) throws XPathException {
         MemTreeBuilder builder = context.getDocumentBuilder();
         DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
         ValueSequence result = new ValueSequence();
         try {
-            classifyText(text, builder, receiver, result, null);
+            classifyText(labeler, text, builder, receiver, result, null);
         } catch (SAXException e) {
             throw new XPathException(this, e);
         }
         return result;
     }
 
-    private void classifyText(String text, MemTreeBuilder builder, DocumentBuilderReceiver receiver, ValueSequence result, FunctionReference callback) throws XPathException, SAXException {
+    /**
+     * Returns whether any entities were found.
+     */
+    private boolean classifyText(Labeler labeler, String text, MemTreeBuilder builder, DocumentBuilderReceiver receiver, ValueSequence result, FunctionReference callback) throws XPathException, SAXException {
         StringBuilder buf = new StringBuilder();
         String background = SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL;
         String prevTag = background;
         int nodeNr = 0;
-        List<List<CoreLabel>> out = cachedClassifier.classify(text);
+        final long start = System.nanoTime();
+        List<List<CoreLabel>> out = labeler.label(text);
+        long tokens = 0;
+        for (List<CoreLabel> sentence : out) {
+            tokens += sentence.size();
+        }
+        ModuleMetrics.getInstance().tokens(tokens, System.nanoTime() - start);
+        boolean entities = false;
         for (List<CoreLabel> sentence : out) {
             for (Iterator<CoreLabel> wordIter = sentence.iterator(); wordIter.hasNext(); ) {
                 CoreLabel word = wordIter.next();
                 final String current = word.get(CoreAnnotations.OriginalTextAnnotation.class);
                 final String tag = word.get(CoreAnnotations.AnswerAnnotation.class);
+                entities |= !tag.equals(background);
                 final String before = word.get(CoreAnnotations.BeforeAnnotation.class);
                 final String after = word.get(CoreAnnotations.AfterAnnotation.class);
                 if (!tag.equals(prevTag)) {
@@ -300,6 +333,7 @@ public class Classify extends BasicFunction {
             }
         }
         writeText(builder, buf, result);
+        return entities;
     }
 
     private void execCallback(FunctionReference callback, StringBuilder buf, String prevTag, DocumentBuilderReceiver receiver) throws XPathException, SAXException {
@@ -330,20 +364,27 @@ public class Classify extends BasicFunction {
     private class NERDocumentReceiver extends DocumentBuilderReceiver {
 
         private MemTreeBuilder builder;
+        private Labeler labeler;
+        private Prescreen prescreen;
         private FunctionReference callback;
         private ChineseSegmenter segmenter;
         private boolean inCallback = false;
 
-        public NERDocumentReceiver(MemTreeBuilder builder, ChineseSegmenter segmenter, FunctionReference callback) {
+        /**
+         * @param prescreen skips text nodes without entities, null to classify all
+         */
+        public NERDocumentReceiver(MemTreeBuilder builder, Labeler labeler, Prescreen prescreen, ChineseSegmenter segmenter, FunctionReference callback) {
             super(builder, true);
             this.builder = builder;
+            this.labeler = labeler;
+            this.prescreen = prescreen;
             this.segmenter = segmenter;
             this.callback = callback;
         }
 
         @Override
         public void characters(CharSequence seq) throws SAXException {
-            if (inCallback) {
+            if (inCallback || (prescreen != null && !prescreen.mayContainEntities(seq))) {
                 super.characters(seq);
                 return;
             }
@@ -353,7 +394,10 @@ public class Classify extends BasicFunction {
             }
             try {
                 inCallback = true;
-                classifyText(s, builder, this, null, callback);
+                final boolean entities = classifyText(labeler, s, builder, this, null, callback);
+                if (prescreen != null) {
+                    prescreen.classified(seq, entities);
+                }
             } catch (XPathException e) {
                 throw new SAXException(e.getMessage(), e);
             } finally {
@@ -367,13 +411,21 @@ public class Classify extends BasicFunction {
                 super.characters(ch, start, len);
                 return;
             }
-            String s = new String(ch, start, len);
+            final String text = new String(ch, start, len);
+            if (prescreen != null && !prescreen.mayContainEntities(text)) {
+                super.characters(ch, start, len);
+                return;
+            }
+            String s = text;
             if (segmenter != null) {
                 s = segmenter.segment(s);
             }
             try {
                 inCallback = true;
-                classifyText(s, builder, this, null, callback);
+                final boolean entities = classifyText(labeler, s, builder, this, null, callback);
+                if (prescreen != null) {
+                    prescreen.classified(text, entities);
+                }
             } catch (XPathException e) {
                 throw new SAXException(e.getMessage(), e);
             } finally {
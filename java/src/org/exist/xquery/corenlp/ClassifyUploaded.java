@@ -18,6 +18,7 @@
  */
 package org.exist.xquery.corenlp;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
@@ -25,6 +26,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectOutputStream;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
@@ -32,10 +34,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import edu.stanford.nlp.ie.AbstractSequenceClassifier;
@@ -44,6 +52,8 @@ import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.Tokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
 import edu.stanford.nlp.process.WordToSentenceProcessor;
 import edu.stanford.nlp.sequences.SeqClassifierFlags;
 import edu.stanford.nlp.sequences.ColumnDocumentReaderAndWriter;
@@ -77,7 +87,12 @@ import org.exist.util.io.Resource;
 import org.exist.util.io.TemporaryFileManager;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.Cancellation;
 import org.exist.xquery.corenlp.util.DefaultBinaryValueManager;
+import org.exist.xquery.corenlp.util.Labels;
+import org.exist.xquery.corenlp.util.ModuleExecutors;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+import org.exist.xquery.corenlp.util.SpillingOutputStream;
 import org.exist.xquery.value.*;
 import org.xml.sax.SAXException;
 import org.exist.xquery.corenlp.util.Spreadsheet.InputDocType;
@@ -85,6 +100,8 @@ import org.exist.xquery.corenlp.util.Spreadsheet.OutDocType;
 import org.exist.xquery.corenlp.util.Spreadsheet.TextDocType;
 import org.exist.xquery.corenlp.util.Spreadsheet;
 import org.exist.xquery.corenlp.util.Textdocument;
+import org.exist.xquery.corenlp.util.TokenBuffer;
+import org.exist.xquery.corenlp.util.TokenizerFactories;
 
 import org.jopendocument.dom.ODPackage;
 import org.jopendocument.dom.ODDocument;
@@ -92,8 +109,15 @@ import org.jopendocument.dom.text.TextDocument;
 import org.jopendocument.dom.spreadsheet.Sheet;
 import org.jopendocument.dom.spreadsheet.SpreadSheet;
 
-public class ClassifyUploaded extends BasicFunction {
+public class ClassifyUploaded extends MeasuredFunction {
     private final static Logger LOG = LogManager.getLogger(ClassifyUploaded.class);
+    private final static WordToSentenceProcessor<CoreLabel> SENTENCE_SPLITTER =
+	new WordToSentenceProcessor<>(WordToSentenceProcessor.NewlineIsSentenceBreak.TWO_CONSECUTIVE);
+    // mark the end of the sentences passed between the stages
+    private final static List<CoreLabel> END_OF_INPUT = new ArrayList<>(0);
+    private final static TokenBuffer END_OF_OUTPUT = new TokenBuffer(0);
+    // how often the writer checks for cancellation while waiting for sentences
+    private final static long CANCELLATION_POLL_MILLIS = 100;
 
     public final static FunctionSignature signatures[] = {
             new FunctionSignature(
@@ -103,7 +127,9 @@ public class ClassifyUploaded extends BasicFunction {
                     new FunctionParameterSequenceType("uploaded-classifier", Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE,
                         "The uploaded classifier to use. If no file is posted in the request you need to provide localClassifierFilePath in the configuration parameter."),
 		    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.EXACTLY_ONE,
-                        "The annotation configuration, e.g. &lt;parameters&gt;&lt;param name='inputFormat' value='ods'/&gt;&lt;param name='backgroundSymbol' value='O'/&gt;&lt;param name='wordCol' value='0'/&gt;&lt;param name='answerCol' value='1'/&gt;&lt;param name='tagCol' value='2'/&gt;&lt;/parameters&gt;. Available input formats odt (default), docx, doc or txt."),
+                        "The annotation configuration, e.g. &lt;parameters&gt;&lt;param name='inputFormat' value='ods'/&gt;&lt;param name='backgroundSymbol' value='O'/&gt;&lt;param name='wordCol' value='0'/&gt;&lt;param name='answerCol' value='1'/&gt;&lt;param name='tagCol' value='2'/&gt;&lt;/parameters&gt;. Available input formats odt (default), docx, doc or txt. " +
+                        "Extraction, classification and writing run concurrently, passing up to queueCapacity (default 256) sentences between them. " +
+                        "A time limit in milliseconds can be given as timeout."),
                     new FunctionParameterSequenceType("uploaded-file", Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE,
                         "The uploaded file with your text to annotate. If no file is posted in the request you need to provide localFilePath in the configuration parameter.")
 
@@ -118,7 +144,9 @@ public class ClassifyUploaded extends BasicFunction {
                     new FunctionParameterSequenceType("uploaded-classifier", Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE,
                         "The uploaded classifier to use. If no file is posted in the request you need to provide localClassifierFilePath in the configuration parameter."),
 		    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.EXACTLY_ONE,
-                        "The classification configuration, e.g. &lt;parameters&gt;&lt;param name='inputFormat' value='ods'/&gt;&lt;param name='backgroundSymbol' value='O'/&gt;&lt;param name='wordCol' value='0'/&gt;&lt;param name='answerCol' value='1'/&gt;&lt;param name='tagCol' value='2'/&gt;&lt;/parameters&gt;. Available input formats ods (default), xlsx, xls or tsv."),
+                        "The classification configuration, e.g. &lt;parameters&gt;&lt;param name='inputFormat' value='ods'/&gt;&lt;param name='backgroundSymbol' value='O'/&gt;&lt;param name='wordCol' value='0'/&gt;&lt;param name='answerCol' value='1'/&gt;&lt;param name='tagCol' value='2'/&gt;&lt;/parameters&gt;. Available input formats ods (default), xlsx, xls or tsv. " +
+                        "Reading, classification and writing run concurrently, passing up to queueCapacity (default 256) sentences between them. " +
+                        "A time limit in milliseconds can be given as timeout."),
                     new FunctionParameterSequenceType("uploaded-file", Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE,
                         "The uploaded spreadsheet document with your text to annotate. If no file is posted in the request you need to provide localFilePath in the configuration parameter.")
                 },
@@ -127,11 +155,10 @@ public class ClassifyUploaded extends BasicFunction {
             )
     };
 
-    private Path tempInFile = null;
-    private Path tempClassifierFile = null;
-    private Path tempOutFile = null;
-    private BinaryValueFromBinaryString uploadedFileBase64String = null;
-    private BinaryValueFromBinaryString uploadedClassifierFileBase64String = null;
+    private SpillingOutputStream outputStream = null;
+    private int outputSpillThreshold = SpillingOutputStream.DEFAULT_THRESHOLD;
+    private BinaryValue uploadedFile = null;
+    private BinaryValue uploadedClassifierFile = null;
     private AnalyzeContextInfo cachedContextInfo;
     private Properties parameters = new Properties();
     private InputDocType inputFormat;
@@ -142,8 +169,10 @@ public class ClassifyUploaded extends BasicFunction {
     private int wordCol = 0;
     private int answerCol = 1;
     private int tagCol = -1;
-    private int tokenCount = 0;
+    private int queueCapacity = 256;
+    private long timeout = 0;
     private boolean tokenizeNLs = false;
+    private String tokenizerOptions = null;
     private boolean classifierGZipped = true;
 
     public ClassifyUploaded(XQueryContext context, FunctionSignature signature) {
@@ -160,9 +189,10 @@ public class ClassifyUploaded extends BasicFunction {
     public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
         context.pushDocumentContext();
         try {
-	    Collection<List<CoreLabel>> documents;
+	    outputSpillThreshold = Integer.valueOf(StanfordCoreNLPModule.getModuleParameter(context, StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD, String.valueOf(SpillingOutputStream.DEFAULT_THRESHOLD)));
+	    timeout = Long.valueOf(StanfordCoreNLPModule.getModuleParameter(context, Cancellation.TIMEOUT, "0"));
 	    if (!args[0].isEmpty()) {
-		uploadedClassifierFileBase64String = new BinaryValueFromBinaryString(new Base64BinaryValueType(), args[0].getStringValue());
+		uploadedClassifierFile = (BinaryValue) args[0].itemAt(0);
 	    }
 
 	    if (!args[1].isEmpty()) {
@@ -170,11 +200,8 @@ public class ClassifyUploaded extends BasicFunction {
 	    }
 
 	    if (!args[2].isEmpty()) {
-		uploadedFileBase64String = new BinaryValueFromBinaryString(new Base64BinaryValueType(), args[2].getStringValue());
+		uploadedFile = (BinaryValue) args[2].itemAt(0);
 	    }
-	    tempInFile = TemporaryFileManager.getInstance().getTemporaryFile();
-	    tempClassifierFile = TemporaryFileManager.getInstance().getTemporaryFile();
-	    tempOutFile = TemporaryFileManager.getInstance().getTemporaryFile();
 
 	    inputFormat = isCalledAs("classify-spreadsheet-doc") == true ? InputDocType.ODS : InputDocType.ODT;
 
@@ -234,68 +261,201 @@ public class ClassifyUploaded extends BasicFunction {
 		} else if ("tokenizeNLs".equals(property)) {
 		    String value = parameters.getProperty(property);
 		    tokenizeNLs = Boolean.valueOf(value);
+		} else if ("tokenizerOptions".equals(property)) {
+		    String value = parameters.getProperty(property);
+		    tokenizerOptions = value;
+		} else if ("queueCapacity".equals(property)) {
+		    String value = parameters.getProperty(property);
+		    queueCapacity = Math.max(1, Integer.valueOf(value));
+		} else if (Cancellation.TIMEOUT.equals(property)) {
+		    String value = parameters.getProperty(property);
+		    timeout = Long.valueOf(value);
+		} else if (StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD.equals(property)) {
+		    String value = parameters.getProperty(property);
+		    outputSpillThreshold = Integer.valueOf(value);
 		}
 	    }
  
-	    documents = isCalledAs("classify-spreadsheet-doc") == true ? Spreadsheet.readSpreadsheet(inputFormat, uploadedFileBase64String, localFilePath, tagCol) : tokenizeString(Textdocument.readTextDocument(inputFormat, uploadedFileBase64String, localFilePath));
-
-	    BinaryValueManager bvm = new DefaultBinaryValueManager(context);
-	    Base64BinaryDocument bvfis = null;
-	    if (documents.isEmpty()) {
-		LOG.error("No annotated text extracted from the spreadsheet/wordprocessing document!");
-		throw new XPathException(this, "No annotated text extracted from the spreadsheet/wordprocessing document!");
-	    } else {
-		classifyText(documents, outputFormat);
-		bvfis = Base64BinaryDocument.getInstance(bvm, Files.newInputStream(tempOutFile));
+	    outputStream = new SpillingOutputStream(outputSpillThreshold);
+	    try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, "uploaded")) {
+		if (classifyText(outputFormat) == 0) {
+		    LOG.error("No annotated text extracted from the spreadsheet/wordprocessing document!");
+		    throw new XPathException(this, "No annotated text extracted from the spreadsheet/wordprocessing document!");
+		}
 	    }
-	    return bvfis;
+	    return outputStream.toBinaryValue(context);
         } catch (IOException ioe) {
 	    throw new XPathException(this, "Error while reading text document: " + ioe.getMessage(), ioe);
         } finally {
             context.popDocumentContext();
-	    if (tempInFile != null) {
-		TemporaryFileManager.getInstance().returnTemporaryFile(tempInFile);
-	    }
-	    if (tempClassifierFile != null) {
-		TemporaryFileManager.getInstance().returnTemporaryFile(tempClassifierFile);
-	    }
-	    if (tempOutFile != null) {
-		TemporaryFileManager.getInstance().returnTemporaryFile(tempOutFile);
+	    if (outputStream != null) {
+		outputStream.release();
 	    }
 
         }
     }
 
-    private void classifyText(Collection<List<CoreLabel>> documents, OutDocType outputFormat) throws XPathException {
-        List<List<CoreLabel>> sentences = new ArrayList<>();
+    /**
+     * Runs extraction and tokenization, classification and writing as stages
+     * connected by bounded queues, so that early sentences are classified and
+     * written while later ones are still being extracted. The classifier is
+     * loaded while the text is extracted. Each stage checks for cancellation
+     * between sentences, and the stages are stopped once one of them has been
+     * cancelled. Returns the number of sentences.
+     */
+    private long classifyText(final OutDocType outputFormat) throws XPathException, IOException {
+	final BlockingQueue<List<CoreLabel>> tokenized = new ArrayBlockingQueue<>(queueCapacity);
+	final BlockingQueue<TokenBuffer> classified = new ArrayBlockingQueue<>(queueCapacity);
+	// the classified sentences share one dictionary, so that the writer encodes each label once
+	final Labels labels = new Labels();
+	final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+	final String classifierName = memoryManager.uniqueName("uploaded classifier");
+	final Cancellation cancellation = new Cancellation(context, this, timeout);
+	final boolean spreadsheet = isCalledAs("classify-spreadsheet-doc");
+	// a local file is opened here, as the stages have no broker to read it with the permissions of the query
+	final InputStream input = spreadsheet ? Spreadsheet.openSpreadsheet(uploadedFile, localFilePath) : Textdocument.openTextDocument(uploadedFile, localFilePath);
+	// loading and extraction mostly wait on reading the uploads, classification is bound to one core
+	final ExecutorService ioStages = ModuleExecutors.newIOExecutor(2);
+	final ExecutorService classificationStage = ModuleExecutors.newComputeExecutor(1);
+	try {
+	    final Future<CRFClassifier<CoreLabel>> classifier = ioStages.submit(() -> loadClassifier(memoryManager, classifierName));
+	    final Future<?> extraction = ioStages.submit(() -> {
+		    try {
+			if (spreadsheet) {
+			    // CoreLabels are only created for the sentences passed on to the classifier
+			    final TokenBuffer tokens = Spreadsheet.readSpreadsheet(uploadedFile == null && localFilePath == null ? InputDocType.ODS : inputFormat, input, tagCol);
+			    for (int s = 0; s < tokens.sentences(); s++) {
+				cancellation.check();
+				tokenized.put(tokens.sentence(s));
+			    }
+			} else {
+			    tokenizeTextDocument(input, tokenized, cancellation);
+			}
+		    } finally {
+			tokenized.put(END_OF_INPUT);
+		    }
+		    return null;
+		});
+	    final Future<?> classification = classificationStage.submit(() -> {
+		    try {
+			final CRFClassifier<CoreLabel> crf = classifier.get();
+			long tokens = 0;
+			long nanos = 0;
+			List<CoreLabel> document;
+			while ((document = tokenized.take()) != END_OF_INPUT) {
+			    cancellation.check();
+			    final long start = System.nanoTime();
+			    final List<CoreLabel> out = crf.classify(document);
+			    nanos += System.nanoTime() - start;
+			    tokens += out.size();
+			    classified.put(TokenBuffer.of(out, labels));
+			}
+			ModuleMetrics.getInstance().tokens(tokens, nanos);
+		    } finally {
+			classified.put(END_OF_OUTPUT);
+		    }
+		    return null;
+		});
 
-	try (InputStream is = uploadedClassifierFileBase64String.getInputStream()) {
-	    CRFClassifier classifier;
-	    if (classifierGZipped) {
-		classifier = CRFClassifier.getClassifier(new GZIPInputStream(is));
-	    } else {
-		classifier = CRFClassifier.getClassifier(is);
-	    }
+	    final long[] sentences = {0};
+	    Spreadsheet.createSpreadsheet(() -> new Iterator<TokenBuffer>() {
+		    private TokenBuffer next = null;
+
+		    @Override
+		    public boolean hasNext() {
+			if (next == null) {
+			    try {
+				while ((next = classified.poll(CANCELLATION_POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+				    cancellation.checkUnchecked();
+				}
+			    } catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				next = END_OF_OUTPUT;
+			    }
+			}
+			return next != END_OF_OUTPUT;
+		    }
 
-	    for (List<CoreLabel> document : documents) {
-		List<CoreLabel> out = classifier.classify(document);
-		sentences.add(out);
+		    @Override
+		    public TokenBuffer next() {
+			if (!hasNext()) {
+			    throw new NoSuchElementException();
+			}
+			sentences[0]++;
+			final TokenBuffer sentence = next;
+			next = null;
+			return sentence;
+		    }
+		}, outputFormat, outputStream, backgroundSymbol, cancellation);
+
+	    // a failed classification leaves the extraction blocked until the stages are shut down
+	    classification.get();
+	    extraction.get();
+	    return sentences[0];
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new XPathException(this, "Interrupted while classifying");
+	} catch (Cancellation.CancelledException e) {
+	    throw e.getCause();
+	} catch (ExecutionException e) {
+	    final Throwable cause = e.getCause() instanceof ExecutionException ? e.getCause().getCause() : e.getCause();
+	    if (cause instanceof XPathException) {
+		throw (XPathException) cause;
+	    } else if (cause instanceof Cancellation.CancelledException) {
+		throw ((Cancellation.CancelledException) cause).getCause();
+	    } else if (cause instanceof IOException) {
+		throw (IOException) cause;
+	    } else if (cause instanceof ClassNotFoundException) {
+		throw new XPathException(this, "Error while reading classifier resource: " + cause.getMessage(), cause);
 	    }
-	} catch (IOException e) {
-	    throw new XPathException(this, "Error while reading classifier resource: " + e.getMessage(), e);
-	} catch (ClassNotFoundException e) {
-	    throw new XPathException(this, "Error while reading classifier resource: " + e.getMessage(), e);
+	    throw new XPathException(this, "Error while classifying: " + cause.getMessage(), cause);
+	} finally {
+	    ioStages.shutdownNow();
+	    classificationStage.shutdownNow();
+	    memoryManager.release(classifierName);
+	    input.close();
+	}
+    }
+
+    private CRFClassifier<CoreLabel> loadClassifier(final ModelMemoryManager memoryManager, final String classifierName) throws XPathException, IOException, ClassNotFoundException {
+	return loadClassifier(uploadedClassifierFile, classifierGZipped, memoryManager, classifierName);
+    }
+
+    /**
+     * Loads an uploaded classifier, admitting it under the given name to the
+     * model memory budget. The caller releases the name when done with it.
+     */
+    static CRFClassifier<CoreLabel> loadClassifier(final BinaryValue uploadedClassifierFile, final boolean classifierGZipped, final ModelMemoryManager memoryManager, final String classifierName) throws XPathException, IOException, ClassNotFoundException {
+	// the uploaded classifier is only held for this call, but still has to fit into the model memory budget
+	try (InputStream is = uploadedClassifierFile.getInputStream()) {
+	    memoryManager.admit(classifierName, "uploaded classifier", ModelMemoryManager.estimateSize(is, classifierGZipped));
+	}
+	try (InputStream is = new BufferedInputStream(uploadedClassifierFile.getInputStream())) {
+	    final long start = System.nanoTime();
+	    final CRFClassifier<CoreLabel> classifier = classifierGZipped ? CRFClassifier.getClassifier(new GZIPInputStream(is)) : CRFClassifier.getClassifier(is);
+	    ModuleMetrics.getInstance().modelLoad(System.nanoTime() - start);
+	    return classifier;
 	}
-	Spreadsheet.createSpreadsheet(sentences, tokenCount, outputFormat, tempOutFile, backgroundSymbol);
     }
 
-    private Collection<List<CoreLabel>> tokenizeString(String text) {
-	PTBTokenizer<CoreLabel> tokenizer =
-	    PTBTokenizer.newPTBTokenizer(new StringReader(text), tokenizeNLs, true);
-	List<CoreLabel> tokens = tokenizer.tokenize();
-	tokenCount = tokens.size();
-	List<List<CoreLabel>> sentences = new WordToSentenceProcessor(WordToSentenceProcessor.NewlineIsSentenceBreak.TWO_CONSECUTIVE).wordsToSentences(tokens);
-        return sentences;
+    private void tokenizeTextDocument(final InputStream document, final BlockingQueue<List<CoreLabel>> sentences, final Cancellation cancellation) throws IOException, XPathException, InterruptedException {
+	final TokenizerFactory<CoreLabel> tokenizerFactory =
+	    TokenizerFactories.getFactory(TokenizerFactories.DEFAULT_TOKENIZER, TokenizerFactories.options(true, tokenizeNLs, tokenizerOptions));
+	try {
+	    Textdocument.readTextDocument(uploadedFile == null && localFilePath == null ? InputDocType.ODT : inputFormat, document, paragraph -> {
+		    Tokenizer<CoreLabel> tokenizer = tokenizerFactory.getTokenizer(new StringReader(paragraph));
+		    for (List<CoreLabel> sentence : SENTENCE_SPLITTER.wordsToSentences(tokenizer.tokenize())) {
+			cancellation.checkUnchecked();
+			try {
+			    sentences.put(sentence);
+			} catch (InterruptedException e) {
+			    throw new InterruptedIOException();
+			}
+		    }
+		});
+	} catch (InterruptedIOException e) {
+	    throw new InterruptedException();
+	}
     }
 
 }
@@ -0,0 +1,147 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.QName;
+import org.exist.security.PermissionDeniedException;
+import org.exist.util.ParametersExtractor;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.CRFModels;
+import org.exist.xquery.corenlp.util.CRFModels.CompactionReport;
+import org.exist.xquery.corenlp.util.CRFModels.Precision;
+import org.exist.xquery.corenlp.util.SpillingOutputStream;
+import org.exist.xquery.value.*;
+
+/**
+ * Exports a trained CRF classifier in compact form: near-zero weights pruned,
+ * remaining weights rounded to a lower precision and the feature index held in
+ * primitive arrays. The result is a serialized CRFClassifier that loads and
+ * classifies like the original, using less heap and disk space. Its feature
+ * index is an {@link org.exist.xquery.corenlp.util.CompactIndex}, so it only
+ * loads where this module is on the classpath, not in plain CoreNLP.
+ *
+ * @author ljo
+ */
+public class CompactClassifier extends MeasuredFunction {
+    private final static Logger LOG = LogManager.getLogger(CompactClassifier.class);
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("compact-classifier", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Convert a trained CRF classifier into a compact classifier with pruned and quantised weights. Returns the serialized compact model to use in CRF classification. " +
+                "If a sample text is given, it is classified with both models and the export fails if they disagree on more than the tolerated fraction of tokens. " +
+                "The compact model refers to this module's org.exist.xquery.corenlp.util.CompactIndex class, so it cannot be loaded by plain CoreNLP without it.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the serialized classifier to compact. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.ZERO_OR_ONE,
+                        "The compaction configuration, e.g. &lt;parameters&gt;&lt;param name='pruneThreshold' value='0.001'/&gt;&lt;param name='weightPrecision' value='float'/&gt;&lt;param name='tolerance' value='0.005'/&gt;&lt;param name='outputFormat' value='ser.gz'/&gt;&lt;/parameters&gt;. " +
+                        "Weights below pruneThreshold (default 0.001) are dropped, features with no weights left are removed. weightPrecision is one of double, float (default), int16 or int8. " +
+                        "tolerance (default 0.005) is the largest fraction of tokens of the sample text the compact classifier may label differently. outputFormat ser.gz (default) or ser."),
+                    new FunctionParameterSequenceType("sample-text", Type.STRING, Cardinality.ZERO_OR_ONE,
+                        "Text to measure the agreement of the compact classifier with the original on.")
+                },
+                new FunctionReturnSequenceType(Type.BASE64_BINARY, Cardinality.EXACTLY_ONE,
+                    "The compact serialized CRF classifier")
+            )
+    };
+
+    public CompactClassifier(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final String classifierPath = args[0].getStringValue();
+        Properties parameters = new Properties();
+        if (!args[1].isEmpty()) {
+            parameters = ParametersExtractor.parseParameters(((NodeValue)args[1].itemAt(0)).getNode());
+        }
+        final String sampleText = args[2].isEmpty() ? null : args[2].getStringValue();
+
+        final double threshold;
+        final Precision precision;
+        final double tolerance;
+        int outputSpillThreshold = Integer.valueOf(StanfordCoreNLPModule.getModuleParameter(context, StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD, String.valueOf(SpillingOutputStream.DEFAULT_THRESHOLD)));
+        try {
+            threshold = Double.parseDouble(parameters.getProperty("pruneThreshold", "0.001"));
+            precision = Precision.valueOf(parameters.getProperty("weightPrecision", "float").toUpperCase());
+            tolerance = Double.parseDouble(parameters.getProperty("tolerance", "0.005"));
+            outputSpillThreshold = Integer.valueOf(parameters.getProperty(StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD, String.valueOf(outputSpillThreshold)));
+        } catch (IllegalArgumentException e) {
+            throw new XPathException(this, "Invalid compaction configuration: " + e.getMessage(), e);
+        }
+        final boolean gzipOutput = parameters.getProperty("outputFormat", "ser.gz").endsWith("gz");
+
+        // the classifier is modified, so a private copy is loaded rather than the cached one
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        final String name = memoryManager.uniqueName(classifierPath + " (compacting)");
+        SpillingOutputStream outputStream = null;
+        try {
+            final Path classifierFile = ClassifierCache.getClassifierFile(context.getBroker(), classifierPath);
+            memoryManager.admit(name, "classifier", ModelMemoryManager.estimateSize(classifierFile));
+            final CRFClassifier<CoreLabel> classifier = CRFClassifier.getClassifier(classifierFile.toFile());
+
+            final List<List<CoreLabel>> expected = sampleText == null ? null : classifier.classify(sampleText);
+            final CompactionReport report = CRFModels.compact(classifier, threshold, precision);
+            if (expected != null) {
+                final double agreement = CRFModels.agreement(expected, classifier.classify(sampleText));
+                LOG.info("Compacted " + classifierPath + ": " + report + ", agreement " + agreement + " on sample text");
+                if (1.0 - agreement > tolerance) {
+                    throw new XPathException(this, "The compact classifier labels " + String.format("%.4f", 1.0 - agreement) +
+                        " of the sample tokens differently, more than the tolerance of " + tolerance + ". Use a lower pruneThreshold or a higher weightPrecision.");
+                }
+            } else {
+                LOG.info("Compacted " + classifierPath + ": " + report);
+            }
+
+            outputStream = new SpillingOutputStream(outputSpillThreshold);
+            final OutputStream os = gzipOutput ? new GZIPOutputStream(outputStream) : outputStream;
+            try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os))) {
+                classifier.serializeClassifier(oos);
+            }
+            return outputStream.toBinaryValue(context);
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(this, "Permission denied to read classifier resource", e);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new XPathException(this, "Error while compacting classifier: " + e.getMessage(), e);
+        } finally {
+            memoryManager.release(name);
+            if (outputStream != null) {
+                outputStream.release();
+            }
+        }
+    }
+}
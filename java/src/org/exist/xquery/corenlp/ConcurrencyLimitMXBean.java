@@ -0,0 +1,52 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+/**
+ * Concurrency limit of a function and model, as exposed over JMX.
+ *
+ * @author ljo
+ */
+public interface ConcurrencyLimitMXBean {
+
+    int getLimit();
+
+    /**
+     * Permits currently held by running calls.
+     */
+    int getActive();
+
+    /**
+     * Calls currently waiting for permits.
+     */
+    int getQueueLength();
+
+    long getAcquired();
+
+    /**
+     * Calls refused after waiting for the maximum queue time.
+     */
+    long getRejected();
+
+    double getMeanWaitMillis();
+
+    double getMaxWaitMillis();
+
+    double get99thPercentileWaitMillis();
+}
@@ -0,0 +1,308 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.Function;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.corenlp.util.Cancellation;
+import org.exist.xquery.corenlp.util.LatencyHistogram;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+/**
+ * Caps the number of concurrent calls per function and model, so that
+ * annotation cannot take all cores from regular queries. Each function and
+ * model pair has a queue of waiting calls: calls beyond the limit are served
+ * strictly in arrival order, so a call asking for several threads is not
+ * overtaken by later calls asking for fewer. A call waits for at most the
+ * maximum queue time and is then refused. The limits
+ * are registered as MXBeans under type=ConcurrencyLimit,function=...,model=...
+ *
+ * @author ljo
+ */
+public class ConcurrencyLimiter {
+    private final static Logger LOG = LogManager.getLogger(ConcurrencyLimiter.class);
+
+    /**
+     * Module parameter: concurrent calls per function and model, by default the
+     * number of cores. Can be set for a single function as concurrencyLimit.name,
+     * e.g. concurrencyLimit.classify-wp-doc.
+     */
+    public final static String CONCURRENCY_LIMIT = "concurrencyLimit";
+
+    /**
+     * Module parameter: milliseconds a call waits for its turn before it is refused,
+     * by default 60000.
+     */
+    public final static String MAX_QUEUE_TIME = "maxQueueTime";
+
+    // how often waiting calls check whether their query has been killed
+    private final static long POLL_MILLIS = 100;
+
+    private final static ConcurrencyLimiter INSTANCE = new ConcurrencyLimiter();
+
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    private final Map<String, Integer> functionLimits = new ConcurrentHashMap<>();
+    private volatile int defaultLimit = Runtime.getRuntime().availableProcessors();
+    private volatile long maxQueueTime = 60000;
+
+    public static ConcurrencyLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    public static class Limit implements ConcurrencyLimitMXBean {
+        private final int limit;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        // permits asked for by the waiting calls, in arrival order
+        private final ArrayDeque<int[]> queue = new ArrayDeque<>();
+        private int available;
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LatencyHistogram waits = new LatencyHistogram();
+
+        Limit(int limit) {
+            this.limit = limit;
+            this.available = limit;
+        }
+
+        /**
+         * Waits until the call is first in the queue and its permits are free, or the deadline passes.
+         *
+         * @return whether the permits were taken
+         */
+        boolean acquire(final int permits, final long deadline, final Cancellation cancellation) throws XPathException, InterruptedException {
+            final int[] waiter = {permits};
+            lock.lock();
+            try {
+                queue.addLast(waiter);
+                try {
+                    while (queue.peekFirst() != waiter || available < permits) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        changed.awaitNanos(Math.min(TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS), remaining));
+                        cancellation.check();
+                    }
+                    available -= permits;
+                    return true;
+                } finally {
+                    queue.remove(waiter);
+                    // the next call may now be first, or fit into what is left
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(final int permits) {
+            lock.lock();
+            try {
+                available += permits;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int getLimit() {
+            return limit;
+        }
+
+        @Override
+        public int getActive() {
+            lock.lock();
+            try {
+                return limit - available;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int getQueueLength() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long getAcquired() {
+            return acquired.sum();
+        }
+
+        @Override
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        @Override
+        public double getMeanWaitMillis() {
+            return waits.getMeanMillis();
+        }
+
+        @Override
+        public double getMaxWaitMillis() {
+            return waits.getMaxMillis();
+        }
+
+        @Override
+        public double get99thPercentileWaitMillis() {
+            return waits.get99thPercentileMillis();
+        }
+    }
+
+    /**
+     * Permits held by a call, returned on close.
+     */
+    public static class Permit implements AutoCloseable {
+        private final Limit limit;
+        private final int permits;
+        private boolean released = false;
+
+        Permit(Limit limit, int permits) {
+            this.limit = limit;
+            this.permits = permits;
+        }
+
+        /**
+         * Number of threads the call may use.
+         */
+        public int getPermits() {
+            return permits;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                limit.release(permits);
+            }
+        }
+    }
+
+    /**
+     * Sets the limit of all functions without a limit of their own. Applies to
+     * limits not yet in use.
+     */
+    public void setDefaultLimit(int limit) {
+        this.defaultLimit = Math.max(1, limit);
+    }
+
+    public void setFunctionLimit(String function, int limit) {
+        functionLimits.put(function, Math.max(1, limit));
+    }
+
+    public void setMaxQueueTime(long maxQueueTime) {
+        this.maxQueueTime = maxQueueTime;
+    }
+
+    /**
+     * Waits for a permit to run the function with the given model.
+     */
+    public Permit acquire(Function function, String model) throws XPathException {
+        return acquire(function, model, 1);
+    }
+
+    /**
+     * Waits for a permit to run the function with the model stored at the given database path.
+     */
+    public Permit acquire(Function function, DBBroker broker, String modelPath) throws XPathException {
+        return acquire(function, broker, modelPath, 1);
+    }
+
+    /**
+     * Waits for permits to run the function with the model stored at the given
+     * database path. The limit is keyed by the resolved resource, which must exist
+     * and be readable by the caller, so that arbitrary paths create no limits.
+     */
+    public Permit acquire(Function function, DBBroker broker, String modelPath, int threads) throws XPathException {
+        final String model;
+        try {
+            model = ModelCache.getModelDocument(broker, modelPath, "requested").getURI().toString();
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(function, "Permission denied to read model resource " + modelPath, e);
+        }
+        return acquire(function, model, threads);
+    }
+
+    /**
+     * Waits for permits to run the function with the given model on up to the
+     * given number of threads. Asking for more permits than the limit takes all of them.
+     *
+     * @throws XPathException if the maximum queue time passed or the query was killed while waiting
+     */
+    public Permit acquire(Function function, String model, int threads) throws XPathException {
+        final String name = function.getSignature().getName().getLocalPart();
+        final Limit limit = getLimit(name, model);
+        final int permits = Math.max(1, Math.min(threads, limit.limit));
+        final Cancellation cancellation = new Cancellation(function.getContext(), function, 0);
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxQueueTime);
+        try {
+            if (!limit.acquire(permits, deadline, cancellation)) {
+                limit.rejected.increment();
+                LOG.warn("Refused " + name + " with " + model + " after waiting " + maxQueueTime + " ms behind " + limit.getQueueLength() + " other calls");
+                throw new XPathException(function, "Too many concurrent calls of " + name + " with " + model +
+                        ": waited " + maxQueueTime + " ms for one of " + limit.limit + " slots. Try again later or raise the " +
+                        CONCURRENCY_LIMIT + " or " + MAX_QUEUE_TIME + " module parameters.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(function, "Interrupted while waiting to run " + name);
+        }
+        limit.acquired.increment();
+        limit.waits.record(System.nanoTime() - start);
+        return new Permit(limit, permits);
+    }
+
+    Limit getLimit(String function, String model) {
+        final String key = "function=" + function + ",model=" + ObjectName.quote(model);
+        Limit limit = limits.get(key);
+        if (limit == null) {
+            final Integer functionLimit = functionLimits.get(function);
+            final Limit created = new Limit(functionLimit != null ? functionLimit : defaultLimit);
+            limit = limits.putIfAbsent(key, created);
+            if (limit == null) {
+                limit = created;
+                ModuleMetrics.register("type=ConcurrencyLimit," + key, created);
+            }
+        }
+        return limit;
+    }
+}
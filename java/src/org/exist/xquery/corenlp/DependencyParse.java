@@ -0,0 +1,226 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo: copied from stanford-ner by wolfgangmm and myself.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.parser.nndep.DependencyParser;
+import edu.stanford.nlp.process.TokenizerFactory;
+import edu.stanford.nlp.process.WordToSentenceProcessor;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+import edu.stanford.nlp.trees.GrammaticalStructure;
+import edu.stanford.nlp.trees.TypedDependency;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.security.PermissionDeniedException;
+import org.exist.util.ParametersExtractor;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.Batches;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+import org.exist.xquery.corenlp.util.TokenizerFactories;
+import org.exist.xquery.value.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Dependency parsing with a neural network dependency parser (nndep) model,
+ * e.g. one trained on Swedish Talbanken for resources/nndep. The text is
+ * part-of-speech tagged first, as the parser needs the tags, and sentences
+ * are tagged and parsed in batches on parallel threads. The parses are
+ * returned in standoff form, one element per sentence with the offsets, tags,
+ * heads and relations of its tokens as space separated lists.
+ *
+ * @author ljo
+ */
+public class DependencyParse extends MeasuredFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("dependency-parse", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Dependency parse the provided text string. Returns a dependencies element with an s element per sentence. " +
+                "Its begin and end attributes give the character offsets of the sentence, offsets those of each token as begin-end, " +
+                "pos the tag of each token, heads the index of the head of each token, counting from 1 with 0 for the root, " +
+                "and relations the dependency relation of each token to its head, all as space separated lists.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("parser-model", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the dependency parser model to load. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("tagger-model", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the part-of-speech tagger model the parser model was trained with. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "String of text to analyze.")
+                },
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "The dependency parses of the sentences in the text")
+            ),
+            new FunctionSignature(
+                new QName("dependency-parse", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Dependency parse the provided text string. Returns a dependencies element with an s element per sentence. " +
+                "Its begin and end attributes give the character offsets of the sentence, offsets those of each token as begin-end, " +
+                "pos the tag of each token, heads the index of the head of each token, counting from 1 with 0 for the root, " +
+                "and relations the dependency relation of each token to its head, all as space separated lists.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("parser-model", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the dependency parser model to load. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("tagger-model", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the part-of-speech tagger model the parser model was trained with. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "String of text to analyze."),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.ZERO_OR_ONE,
+                        "The parsing configuration, e.g. &lt;parameters&gt;&lt;param name='threads' value='4'/&gt;&lt;param name='batchSize' value='64'/&gt;&lt;/parameters&gt;. " +
+                        "Sentences are parsed in batches of batchSize (default 64) sentences on up to threads (default the number of available processors) threads.")
+                },
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "The dependency parses of the sentences in the text")
+            )
+    };
+
+    /**
+     * Parser models by database path. Prediction does not change the parser, so one is shared by all threads.
+     */
+    final static ModelCache<DependencyParser> PARSERS = new ModelCache<>("dependency parser", modelFile ->
+        DependencyParser.loadFromModelFile(modelFile.toString()));
+
+    private final static String TOKENIZER_OPTIONS = TokenizerFactories.options(true, false, null);
+    private final static WordToSentenceProcessor<CoreLabel> SENTENCE_SPLITTER =
+        new WordToSentenceProcessor<>(WordToSentenceProcessor.NewlineIsSentenceBreak.TWO_CONSECUTIVE);
+
+    private static class Parse {
+        final int[] heads;
+        final String[] relations;
+
+        Parse(int size) {
+            heads = new int[size];
+            relations = new String[size];
+        }
+    }
+
+    public DependencyParse(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final String parserPath = args[0].getStringValue();
+        final String taggerPath = args[1].getStringValue();
+        final String text = args[2].getStringValue();
+        Properties parameters = new Properties();
+        if (getArgumentCount() == 4 && !args[3].isEmpty()) {
+            parameters = ParametersExtractor.parseParameters(((NodeValue)args[3].itemAt(0)).getNode());
+        }
+        final int threads;
+        final int batchSize;
+        try {
+            threads = Math.max(1, Integer.valueOf(parameters.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+            batchSize = Math.max(1, Integer.valueOf(parameters.getProperty("batchSize", "64")));
+        } catch (NumberFormatException e) {
+            throw new XPathException(this, "Invalid parsing configuration: " + e.getMessage(), e);
+        }
+
+        context.pushDocumentContext();
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, context.getBroker(), parserPath, threads)) {
+            final DependencyParser parser = PARSERS.get(context.getBroker(), parserPath);
+            final MaxentTagger tagger = PosTag.TAGGERS.get(context.getBroker(), taggerPath);
+
+            final long start = System.nanoTime();
+            final TokenizerFactory<CoreLabel> tokenizerFactory = TokenizerFactories.getFactory(TokenizerFactories.DEFAULT_TOKENIZER, TOKENIZER_OPTIONS);
+            final List<List<CoreLabel>> sentences = SENTENCE_SPLITTER.process(tokenizerFactory.getTokenizer(new StringReader(text)).tokenize());
+            final Parse[] parses = new Parse[sentences.size()];
+            Batches.process(sentences, batchSize, permit.getPermits(), (i, sentence) -> {
+                tagger.tagCoreLabels(sentence);
+                parses[i] = parse(parser, sentence);
+            });
+            long tokens = 0;
+            for (List<CoreLabel> sentence : sentences) {
+                tokens += sentence.size();
+            }
+            ModuleMetrics.getInstance().tokens(tokens, System.nanoTime() - start);
+
+            return write(sentences, parses);
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(this, "Permission denied to read model resource", e);
+        } catch (IOException e) {
+            throw new XPathException(this, "Error while reading model resource: " + e.getMessage(), e);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private static Parse parse(DependencyParser parser, List<CoreLabel> sentence) {
+        final GrammaticalStructure structure = parser.predict(sentence);
+        final Parse parse = new Parse(sentence.size());
+        for (TypedDependency dependency : structure.typedDependencies()) {
+            final int dependent = dependency.dep().index() - 1;
+            if (dependent >= 0 && dependent < parse.heads.length) {
+                parse.heads[dependent] = dependency.gov().index();
+                parse.relations[dependent] = dependency.reln().toString();
+            }
+        }
+        return parse;
+    }
+
+    private Sequence write(List<List<CoreLabel>> sentences, Parse[] parses) {
+        final MemTreeBuilder builder = context.getDocumentBuilder();
+        final int nodeNr = builder.startElement("", "dependencies", "dependencies", null);
+        final StringBuilder offsets = new StringBuilder();
+        final StringBuilder tags = new StringBuilder();
+        final StringBuilder heads = new StringBuilder();
+        final StringBuilder relations = new StringBuilder();
+        for (int s = 0; s < sentences.size(); s++) {
+            final List<CoreLabel> sentence = sentences.get(s);
+            if (sentence.isEmpty()) {
+                continue;
+            }
+            offsets.setLength(0);
+            tags.setLength(0);
+            heads.setLength(0);
+            relations.setLength(0);
+            for (int t = 0; t < sentence.size(); t++) {
+                final CoreLabel token = sentence.get(t);
+                if (t > 0) {
+                    offsets.append(' ');
+                    tags.append(' ');
+                    heads.append(' ');
+                    relations.append(' ');
+                }
+                offsets.append(token.beginPosition()).append('-').append(token.endPosition());
+                tags.append(token.tag());
+                heads.append(parses[s].heads[t]);
+                relations.append(parses[s].relations[t] == null ? "dep" : parses[s].relations[t]);
+            }
+            final AttributesImpl attribs = new AttributesImpl();
+            attribs.addAttribute("", "begin", "begin", "CDATA", String.valueOf(sentence.get(0).beginPosition()));
+            attribs.addAttribute("", "end", "end", "CDATA", String.valueOf(sentence.get(sentence.size() - 1).endPosition()));
+            attribs.addAttribute("", "offsets", "offsets", "CDATA", offsets.toString());
+            attribs.addAttribute("", "pos", "pos", "CDATA", tags.toString());
+            attribs.addAttribute("", "heads", "heads", "CDATA", heads.toString());
+            attribs.addAttribute("", "relations", "relations", "CDATA", relations.toString());
+            builder.startElement("", "s", "s", attribs);
+            builder.endElement();
+        }
+        builder.endElement();
+        return builder.getDocument().getNode(nodeNr);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.security.PermissionDeniedException;
+import org.exist.util.ParametersExtractor;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.Cancellation;
+import org.exist.xquery.corenlp.util.Evaluation;
+import org.exist.xquery.corenlp.util.ModuleExecutors;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+import org.exist.xquery.corenlp.util.Spreadsheet;
+import org.exist.xquery.corenlp.util.Spreadsheet.InputDocType;
+import org.exist.xquery.corenlp.util.TokenBuffer;
+import org.exist.xquery.value.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Evaluates a classifier against a spreadsheet of gold answers, classifying
+ * batches of sentences in parallel.
+ *
+ * @author ljo
+ */
+public class EvaluateClassifier extends MeasuredFunction {
+    private final static Logger LOG = LogManager.getLogger(EvaluateClassifier.class);
+    // sentences classified per task
+    private final static int BATCH_SIZE = 64;
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("evaluate-classifier", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Classify the tokens of a spreadsheet with gold answers and score the classifier against them. " +
+                "Returns entity level precision, recall and F1 per label and in total, a token level confusion matrix and the throughput.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("model", Type.ITEM, Cardinality.EXACTLY_ONE,
+                        "The classifier to evaluate, either uploaded or as returned by train-classifier-spreadsheet-doc, or the path to a serialized classifier stored within the database."),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                        "The evaluation configuration, e.g. &lt;parameters&gt;&lt;param name='inputFormat' value='ods'/&gt;&lt;param name='backgroundSymbol' value='O'/&gt;&lt;param name='threads' value='4'/&gt;&lt;/parameters&gt;. " +
+                        "Available input formats ods (default), xlsx, xls or tsv, with the token in the first and the gold answer in the second column. " +
+                        "threads defaults to the number of available processors. classifierGZipped (default true) tells whether an uploaded classifier is compressed. " +
+                        "A time limit in milliseconds can be given as timeout."),
+                    new FunctionParameterSequenceType("gold-file", Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE,
+                        "The uploaded spreadsheet document with the gold answers. If no file is posted in the request you need to provide localFilePath in the configuration parameter.")
+                },
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "An evaluate-classifier element with the scores")
+            )
+    };
+
+    public EvaluateClassifier(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final Item model = args[0].itemAt(0);
+        final Properties parameters = ParametersExtractor.parseParameters(((NodeValue)args[1].itemAt(0)).getNode());
+        final BinaryValue goldFile = args[2].isEmpty() ? null : (BinaryValue) args[2].itemAt(0);
+
+        final InputDocType inputFormat = InputDocType.spreadsheet(parameters.getProperty("inputFormat", "ods"));
+        final String localFilePath = parameters.getProperty("localFilePath");
+        final String backgroundSymbol = parameters.getProperty("backgroundSymbol", "O");
+        final boolean classifierGZipped = Boolean.valueOf(parameters.getProperty("classifierGZipped", "true"));
+        final int threads;
+        final long timeout;
+        try {
+            threads = Integer.valueOf(parameters.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            timeout = Long.valueOf(parameters.getProperty(Cancellation.TIMEOUT,
+                StanfordCoreNLPModule.getModuleParameter(context, Cancellation.TIMEOUT, "0")));
+        } catch (NumberFormatException e) {
+            throw new XPathException(this, "Invalid evaluation configuration: " + e.getMessage(), e);
+        }
+        if (goldFile == null && localFilePath == null) {
+            throw new XPathException(this, "No gold file given, either upload one or provide localFilePath in the configuration");
+        }
+
+        final Cancellation cancellation = new Cancellation(context, this, timeout);
+        final TokenBuffer gold = Spreadsheet.readSpreadsheet(inputFormat, goldFile, localFilePath, -1);
+        if (gold.sentences() == 0) {
+            throw new XPathException(this, "No annotated text extracted from the gold file!");
+        }
+        cancellation.check();
+
+        final boolean uploaded = model instanceof BinaryValue;
+        final String modelName = uploaded ? "uploaded" : model.getStringValue();
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        final String uploadedName = memoryManager.uniqueName("uploaded classifier");
+        try (ConcurrencyLimiter.Permit permit = uploaded
+                ? ConcurrencyLimiter.getInstance().acquire(this, modelName, threads)
+                : ConcurrencyLimiter.getInstance().acquire(this, context.getBroker(), modelName, threads)) {
+            final AbstractSequenceClassifier<CoreLabel> classifier = uploaded
+                ? ClassifyUploaded.loadClassifier((BinaryValue) model, classifierGZipped, memoryManager, uploadedName)
+                : ClassifierCache.CLASSIFIERS.get(context.getBroker(), modelName).getClassifier();
+            return evaluate(classifier, gold, backgroundSymbol, permit.getPermits(), cancellation);
+        } catch (PermissionDeniedException | IOException e) {
+            throw new XPathException(this, "Error while reading classifier resource: " + e.getMessage(), e);
+        } catch (ClassNotFoundException e) {
+            throw new XPathException(this, "Error while deserializing classifier: " + e.getMessage(), e);
+        } finally {
+            if (uploaded) {
+                memoryManager.release(uploadedName);
+            }
+        }
+    }
+
+    private Sequence evaluate(final AbstractSequenceClassifier<CoreLabel> classifier, final TokenBuffer gold, final String backgroundSymbol, final int threads, final Cancellation cancellation) throws XPathException {
+        final ExecutorService executor = ModuleExecutors.newComputeExecutor(threads);
+        final long start = System.nanoTime();
+        final Evaluation evaluation = new Evaluation(backgroundSymbol);
+        long nanos = 0;
+        try {
+            final List<Future<Evaluation>> batches = new ArrayList<>();
+            final List<long[]> batchNanos = new ArrayList<>();
+            for (int first = 0; first < gold.sentences(); first += BATCH_SIZE) {
+                final int from = first;
+                final int to = Math.min(first + BATCH_SIZE, gold.sentences());
+                final long[] elapsed = new long[1];
+                batchNanos.add(elapsed);
+                batches.add(executor.submit(() -> {
+                    final Evaluation batch = new Evaluation(backgroundSymbol);
+                    final long batchStart = System.nanoTime();
+                    for (int s = from; s < to; s++) {
+                        cancellation.check();
+                        batch.add(gold, s, classifier.classifySentence(gold.sentence(s)));
+                    }
+                    elapsed[0] = System.nanoTime() - batchStart;
+                    return batch;
+                }));
+            }
+            for (int i = 0; i < batches.size(); i++) {
+                evaluation.merge(batches.get(i).get());
+                nanos += batchNanos.get(i)[0];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(this, "Interrupted while evaluating");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof XPathException) {
+                throw (XPathException) e.getCause();
+            }
+            LOG.error(e.getCause());
+            throw new XPathException(this, "Error while evaluating: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        final long elapsed = System.nanoTime() - start;
+        ModuleMetrics.getInstance().tokens(evaluation.getTokens(), nanos);
+
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            final AttributesImpl attribs = new AttributesImpl();
+            attribs.addAttribute("", "sentences", "sentences", "CDATA", String.valueOf(evaluation.getSentences()));
+            attribs.addAttribute("", "tokens", "tokens", "CDATA", String.valueOf(evaluation.getTokens()));
+            attribs.addAttribute("", "token-accuracy", "token-accuracy", "CDATA", Evaluation.format(evaluation.getTokenAccuracy()));
+            attribs.addAttribute("", "threads", "threads", "CDATA", String.valueOf(threads));
+            attribs.addAttribute("", "milliseconds", "milliseconds", "CDATA", String.valueOf(elapsed / 1000000));
+            attribs.addAttribute("", "tokens-per-second", "tokens-per-second", "CDATA", String.valueOf(elapsed == 0 ? 0 : evaluation.getTokens() * 1000000000L / elapsed));
+            final int nodeNr = builder.startElement("", "evaluate-classifier", "evaluate-classifier", attribs);
+            evaluation.write(builder);
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+}
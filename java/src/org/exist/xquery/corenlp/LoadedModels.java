@@ -0,0 +1,83 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Reports the models currently loaded and their estimated heap footprint.
+ *
+ * @author ljo
+ */
+public class LoadedModels extends MeasuredFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("loaded-models", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Report the models currently loaded, most recently used first, with their estimated heap size in bytes " +
+                "and the model memory budget they share, e.g. &lt;models budget='...' used='...'&gt;" +
+                "&lt;model name='/db/classifiers/swedish.ser.gz' kind='classifier' estimated-size='...' last-used='...' evictable='true'/&gt;&lt;/models&gt;.",
+                new SequenceType[0],
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "The loaded models")
+            )
+    };
+
+    public LoadedModels(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        final List<ModelMemoryManager.Model> models = memoryManager.getModels();
+        models.sort(Comparator.comparingLong(ModelMemoryManager.Model::getLastUsed).reversed());
+
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            AttributesImpl attribs = new AttributesImpl();
+            attribs.addAttribute("", "budget", "budget", "CDATA", String.valueOf(memoryManager.getBudget()));
+            attribs.addAttribute("", "used", "used", "CDATA", String.valueOf(memoryManager.getUsed()));
+            final int nodeNr = builder.startElement("", "models", "models", attribs);
+            for (ModelMemoryManager.Model model : models) {
+                attribs = new AttributesImpl();
+                attribs.addAttribute("", "name", "name", "CDATA", model.getName());
+                attribs.addAttribute("", "kind", "kind", "CDATA", model.getKind());
+                attribs.addAttribute("", "estimated-size", "estimated-size", "CDATA", String.valueOf(model.getEstimatedSize()));
+                attribs.addAttribute("", "last-used", "last-used", "CDATA", new DateTimeValue(new Date(model.getLastUsed())).getStringValue());
+                attribs.addAttribute("", "evictable", "evictable", "CDATA", String.valueOf(model.isEvictable()));
+                builder.startElement("", "model", "model", attribs);
+                builder.endElement();
+            }
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.QName;
+import org.exist.security.PermissionDeniedException;
+import org.exist.util.ParametersExtractor;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.CRFModels;
+import org.exist.xquery.corenlp.util.CRFModels.CompactionReport;
+import org.exist.xquery.corenlp.util.CRFModels.Precision;
+import org.exist.xquery.corenlp.util.MappedModels;
+import org.exist.xquery.corenlp.util.SpillingOutputStream;
+import org.exist.xquery.value.*;
+
+/**
+ * Exports a trained CRF classifier as a memory mapped model. Stored as a
+ * binary resource, it is used like any other classifier, but its weights and
+ * features are mapped from the data directory instead of loaded onto the heap.
+ *
+ * @author ljo
+ */
+public class MapClassifier extends MeasuredFunction {
+    private final static Logger LOG = LogManager.getLogger(MapClassifier.class);
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("map-classifier", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Convert a trained CRF classifier into a memory mapped model. Returns the model to store as a binary resource and use in CRF classification. " +
+                "Mapped models load almost instantly and keep their weights and features off the heap, shared through the page cache. " +
+                "Store new versions of a mapped model under a new name rather than replacing one in use.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the serialized classifier to convert. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.ZERO_OR_ONE,
+                        "The configuration, e.g. &lt;parameters&gt;&lt;param name='weightPrecision' value='float'/&gt;&lt;param name='pruneThreshold' value='0.001'/&gt;&lt;/parameters&gt;. " +
+                        "weightPrecision is double (default) or float, which halves the size of the weight table. " +
+                        "Features with all weights below pruneThreshold (default 0, no pruning) are removed first.")
+                },
+                new FunctionReturnSequenceType(Type.BASE64_BINARY, Cardinality.EXACTLY_ONE,
+                    "The memory mapped CRF classifier")
+            )
+    };
+
+    public MapClassifier(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final String classifierPath = args[0].getStringValue();
+        Properties parameters = new Properties();
+        if (!args[1].isEmpty()) {
+            parameters = ParametersExtractor.parseParameters(((NodeValue)args[1].itemAt(0)).getNode());
+        }
+
+        final double threshold;
+        final boolean floatWeights;
+        int outputSpillThreshold = Integer.valueOf(StanfordCoreNLPModule.getModuleParameter(context, StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD, String.valueOf(SpillingOutputStream.DEFAULT_THRESHOLD)));
+        try {
+            threshold = Double.parseDouble(parameters.getProperty("pruneThreshold", "0"));
+            final Precision precision = Precision.valueOf(parameters.getProperty("weightPrecision", "double").toUpperCase());
+            if (precision != Precision.DOUBLE && precision != Precision.FLOAT) {
+                throw new IllegalArgumentException("weightPrecision of mapped models is double or float");
+            }
+            floatWeights = precision == Precision.FLOAT;
+            outputSpillThreshold = Integer.valueOf(parameters.getProperty(StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD, String.valueOf(outputSpillThreshold)));
+        } catch (IllegalArgumentException e) {
+            throw new XPathException(this, "Invalid configuration: " + e.getMessage(), e);
+        }
+
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        final String name = memoryManager.uniqueName(classifierPath + " (mapping)");
+        SpillingOutputStream outputStream = null;
+        try {
+            final Path classifierFile = ClassifierCache.getClassifierFile(context.getBroker(), classifierPath);
+            memoryManager.admit(name, "classifier", ModelMemoryManager.estimateSize(classifierFile));
+            final CRFClassifier<CoreLabel> classifier = CRFClassifier.getClassifier(classifierFile.toFile());
+            if (threshold > 0.0) {
+                final CompactionReport report = CRFModels.compact(classifier, threshold, Precision.DOUBLE);
+                LOG.info("Pruned " + classifierPath + " before mapping: " + report);
+            }
+
+            outputStream = new SpillingOutputStream(outputSpillThreshold);
+            MappedModels.write(classifier, outputStream, floatWeights);
+            return outputStream.toBinaryValue(context);
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(this, "Permission denied to read classifier resource", e);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new XPathException(this, "Error while mapping classifier: " + e.getMessage(), e);
+        } finally {
+            memoryManager.release(name);
+            if (outputStream != null) {
+                outputStream.release();
+            }
+        }
+    }
+}
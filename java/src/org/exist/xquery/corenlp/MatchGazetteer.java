@@ -0,0 +1,180 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.process.TokenizerFactory;
+import edu.stanford.nlp.process.WordToSentenceProcessor;
+import edu.stanford.nlp.sequences.SeqClassifierFlags;
+import org.exist.dom.QName;
+import org.exist.security.PermissionDeniedException;
+import org.exist.util.ParametersExtractor;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.Gazetteer;
+import org.exist.xquery.corenlp.util.TokenizerFactories;
+import org.exist.xquery.value.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Marks up the entries of a gazetteer list, e.g. closed lists of place
+ * names, with an Aho-Corasick automaton compiled from the list and cached
+ * like the classifiers. The matches are written as classify-string and
+ * classify-node write recognized entities. Given a classifier in the
+ * configuration, the matches are merged with the entities it recognizes.
+ *
+ * @author ljo
+ */
+public class MatchGazetteer extends MeasuredFunction {
+
+    private final static String TOKENIZER_OPTIONS = TokenizerFactories.options(true, false, null);
+    private final static WordToSentenceProcessor<CoreLabel> SENTENCE_SPLITTER =
+        new WordToSentenceProcessor<>(WordToSentenceProcessor.NewlineIsSentenceBreak.TWO_CONSECUTIVE);
+
+    private final static String GAZETTEER_DESCRIPTION =
+        "The path to the gazetteer list to use. Should point to a binary resource stored within the database " +
+        "with one entry per line, followed by a tab and its label, e.g. LOCATION. Lines without a label are labeled " + Gazetteer.DEFAULT_LABEL + ".";
+
+    private final static String CONFIGURATION_DESCRIPTION =
+        "The matching configuration, e.g. &lt;parameters&gt;&lt;param name='classifier' value='/db/classifiers/model.ser.gz'/&gt;&lt;param name='precedence' value='gazetteer'/&gt;&lt;/parameters&gt;. " +
+        "classifier is the path of a classifier whose entities are merged with the matches. precedence is gazetteer (default), " +
+        "where matches replace overlapping entities of the classifier, or classifier, where only matches outside of its entities are marked up.";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("match-gazetteer-string", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Match the entries of a gazetteer list in the provided text string. Returns a sequence of text nodes and elements for " +
+                "the matched entries, named by their label.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("gazetteer", Type.ANY_URI, Cardinality.EXACTLY_ONE, GAZETTEER_DESCRIPTION),
+                    new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "String of text to analyze.")
+                },
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "Sequence of text nodes and elements denoting matched entries in the text")
+            ),
+            new FunctionSignature(
+                new QName("match-gazetteer-string", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Match the entries of a gazetteer list in the provided text string. Returns a sequence of text nodes and elements for " +
+                "the matched entries, named by their label.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("gazetteer", Type.ANY_URI, Cardinality.EXACTLY_ONE, GAZETTEER_DESCRIPTION),
+                    new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "String of text to analyze."),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.ZERO_OR_ONE, CONFIGURATION_DESCRIPTION)
+                },
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "Sequence of text nodes and elements denoting matched entries in the text")
+            ),
+            new FunctionSignature(
+                new QName("match-gazetteer-node", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Mark up the entries of a gazetteer list in a node and all its sub-nodes. Returns a new in-memory document. " +
+                "Matched entries are enclosed in inline elements named by their label.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("gazetteer", Type.ANY_URI, Cardinality.EXACTLY_ONE, GAZETTEER_DESCRIPTION),
+                    new FunctionParameterSequenceType("node", Type.NODE, Cardinality.EXACTLY_ONE,
+                        "The node to process.")
+                },
+                new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE,
+                    "An in-memory node")
+            ),
+            new FunctionSignature(
+                new QName("match-gazetteer-node", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Mark up the entries of a gazetteer list in a node and all its sub-nodes. Returns a new in-memory document. " +
+                "Matched entries are enclosed in inline elements named by their label.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("gazetteer", Type.ANY_URI, Cardinality.EXACTLY_ONE, GAZETTEER_DESCRIPTION),
+                    new FunctionParameterSequenceType("node", Type.NODE, Cardinality.EXACTLY_ONE,
+                        "The node to process."),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.ZERO_OR_ONE, CONFIGURATION_DESCRIPTION)
+                },
+                new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE,
+                    "An in-memory node")
+            )
+    };
+
+    /**
+     * Compiled gazetteers by database path.
+     */
+    final static ModelCache<Gazetteer> GAZETTEERS = new ModelCache<>("gazetteer", Gazetteer::load);
+
+    public MatchGazetteer(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final String gazetteerPath = args[0].getStringValue();
+        Properties parameters = new Properties();
+        if (getArgumentCount() == 3 && !args[2].isEmpty()) {
+            parameters = ParametersExtractor.parseParameters(((NodeValue)args[2].itemAt(0)).getNode());
+        }
+        final String classifierPath = parameters.getProperty("classifier");
+        final String precedence = parameters.getProperty("precedence", "gazetteer");
+        if (!"gazetteer".equals(precedence) && !"classifier".equals(precedence)) {
+            throw new XPathException(this, "Unknown precedence " + precedence + ", expected gazetteer or classifier");
+        }
+        final boolean overwrite = "gazetteer".equals(precedence);
+
+        context.pushDocumentContext();
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, context.getBroker(), gazetteerPath)) {
+            final Gazetteer gazetteer = GAZETTEERS.get(context.getBroker(), gazetteerPath);
+            final AbstractSequenceClassifier<CoreLabel> classifier = classifierPath == null || classifierPath.isEmpty() ?
+                null : ClassifierCache.CLASSIFIERS.get(context.getBroker(), classifierPath).getClassifier();
+            final String background = classifier == null ? SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL : classifier.flags.backgroundSymbol;
+            final TokenizerFactory<CoreLabel> tokenizerFactory = TokenizerFactories.getFactory(TokenizerFactories.DEFAULT_TOKENIZER, TOKENIZER_OPTIONS);
+
+            final Classify.Labeler labeler = text -> {
+                final List<List<CoreLabel>> sentences;
+                if (classifier != null) {
+                    sentences = classifier.classify(text);
+                } else {
+                    sentences = SENTENCE_SPLITTER.process(tokenizerFactory.getTokenizer(new StringReader(text)).tokenize());
+                    for (List<CoreLabel> sentence : sentences) {
+                        for (CoreLabel token : sentence) {
+                            token.set(CoreAnnotations.AnswerAnnotation.class, background);
+                        }
+                    }
+                }
+                for (List<CoreLabel> sentence : sentences) {
+                    gazetteer.label(sentence, overwrite, background);
+                }
+                return sentences;
+            };
+
+            final Classify classify = new Classify(context, Classify.signatures[2]);
+            if (isCalledAs("match-gazetteer-string")) {
+                return classify.classifyString(labeler, args[1].getStringValue());
+            } else {
+                return classify.classifyNode(labeler, null, (NodeValue) args[1].itemAt(0), null, null);
+            }
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(this, "Permission denied to read gazetteer or classifier resource", e);
+        } catch (IOException e) {
+            throw new XPathException(this, "Error while reading gazetteer or classifier resource: " + e.getMessage(), e);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+}
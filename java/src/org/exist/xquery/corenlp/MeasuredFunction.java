@@ -0,0 +1,50 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+
+/**
+ * Base of the module's functions: records the number and duration of calls
+ * per function in the module metrics.
+ *
+ * @author ljo
+ */
+public abstract class MeasuredFunction extends BasicFunction {
+
+    public MeasuredFunction(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+        final long start = System.nanoTime();
+        try {
+            return super.eval(contextSequence, contextItem);
+        } finally {
+            ModuleMetrics.getInstance().functionCall(getSignature(), System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import edu.stanford.nlp.io.RuntimeIOException;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Models of one kind, e.g. taggers or parsers, loaded from binary resources
+ * in the database and shared between queries and worker threads like the
+ * classifiers of the {@link ClassifierCache}. The models must be thread safe.
+ * A model is loaded by the first query asking for it, while queries asking
+ * for the same model wait and those asking for others go ahead. A model is
+ * loaded again when its resource has been modified since, and dropped when
+ * the resource is gone.
+ *
+ * @author ljo
+ */
+public class ModelCache<M> {
+
+    public interface Loader<M> {
+        M load(Path modelFile) throws XPathException, IOException;
+    }
+
+    public interface Estimator {
+        long estimate(Path modelFile) throws IOException;
+    }
+
+    private final String kind;
+    private final Estimator estimator;
+    private final Loader<M> loader;
+    private final Map<String, Entry<M>> models = new ConcurrentHashMap<>();
+
+    private final static class Entry<M> {
+        private final long lastModified;
+        private final String reservation;
+        private final FutureTask<M> task;
+        private volatile boolean discarded = false;
+
+        Entry(long lastModified, String reservation, FutureTask<M> task) {
+            this.lastModified = lastModified;
+            this.reservation = reservation;
+            this.task = task;
+        }
+    }
+
+    /**
+     * @param kind name of the kind of model, used in messages and the loaded models report
+     * @param loader loads a model from its file in the data directory
+     */
+    public ModelCache(String kind, Loader<M> loader) {
+        this(kind, ModelMemoryManager::estimateSize, loader);
+    }
+
+    /**
+     * @param estimator estimates the heap taken by a model from its file, for the model memory budget
+     */
+    public ModelCache(String kind, Estimator estimator, Loader<M> loader) {
+        this.kind = kind;
+        this.estimator = estimator;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the model stored at the given database path, loading it on first use.
+     * The resource is looked up with the broker of the caller on every call, so a
+     * user without read permission on it is refused even when it is cached.
+     */
+    public M get(DBBroker broker, String modelPath) throws XPathException, PermissionDeniedException, IOException {
+        final BinaryDocument doc;
+        try {
+            doc = getModelDocument(broker, modelPath, kind);
+        } catch (XPathException e) {
+            discard(modelPath, models.get(modelPath));
+            throw e;
+        }
+        final long lastModified = doc.getMetadata().getLastModified();
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        Entry<M> entry = models.get(modelPath);
+        if (entry != null && entry.lastModified != lastModified) {
+            discard(modelPath, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            final String reservation = memoryManager.uniqueName(modelPath);
+            final Entry<M> loading = new Entry<>(lastModified, reservation, new FutureTask<>(() -> load(broker, doc, reservation)));
+            entry = models.computeIfAbsent(modelPath, path -> loading);
+            if (entry == loading) {
+                ModuleMetrics.getInstance().cacheMiss();
+                loading.task.run();
+                try {
+                    final M model = await(loading.task);
+                    memoryManager.loaded(reservation, () -> models.remove(modelPath, loading));
+                    if (loading.discarded) {
+                        // the resource was modified while loading
+                        memoryManager.release(reservation);
+                    }
+                    return model;
+                } catch (XPathException | PermissionDeniedException | IOException | RuntimeException | Error e) {
+                    // let the next query try again
+                    models.remove(modelPath, loading);
+                    throw e;
+                }
+            }
+        }
+        ModuleMetrics.getInstance().cacheHit();
+        memoryManager.touch(entry.reservation);
+        return await(entry.task);
+    }
+
+    /**
+     * Drops a model whose resource has been modified or removed.
+     */
+    private void discard(String modelPath, Entry<M> entry) {
+        if (entry != null && models.remove(modelPath, entry)) {
+            entry.discarded = true;
+            ModelMemoryManager.getInstance().release(entry.reservation);
+        }
+    }
+
+    private M await(FutureTask<M> task) throws XPathException, PermissionDeniedException, IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for the " + kind + " model to load");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof XPathException) {
+                throw (XPathException) cause;
+            } else if (cause instanceof PermissionDeniedException) {
+                throw (PermissionDeniedException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new XPathException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Returns the binary resource at the given database path, if the user of the broker may read it.
+     */
+    static BinaryDocument getModelDocument(DBBroker broker, String modelPath, String kind) throws XPathException, PermissionDeniedException {
+        final DocumentImpl doc = broker.getResource(XmldbURI.createInternal(modelPath), Permission.READ);
+        if (doc == null || doc.getResourceType() != DocumentImpl.BINARY_FILE) {
+            throw new XPathException("The " + kind + " model path " + modelPath + " does not point to a binary resource");
+        }
+        return (BinaryDocument) doc;
+    }
+
+    private M load(DBBroker broker, BinaryDocument doc, String reservation) throws XPathException, IOException {
+        final Path modelFile = broker.getBinaryFile(doc);
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        memoryManager.admit(reservation, kind, estimator.estimate(modelFile));
+        try {
+            final long start = System.nanoTime();
+            final M model = loader.load(modelFile);
+            ModuleMetrics.getInstance().modelLoad(System.nanoTime() - start);
+            return model;
+        } catch (RuntimeIOException e) {
+            memoryManager.release(reservation);
+            throw new IOException(e.getMessage(), e);
+        } catch (XPathException | IOException | RuntimeException | Error e) {
+            memoryManager.release(reservation);
+            throw e;
+        }
+    }
+}
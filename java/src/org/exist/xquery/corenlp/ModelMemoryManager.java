@@ -0,0 +1,246 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.xquery.XPathException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the models loaded into the shared JVM. Before a
+ * model is loaded its retained heap size is estimated from the size of its
+ * serialized form and checked against the model memory budget. If the
+ * budget would be exceeded, the least recently used models are evicted
+ * from their caches; if that is not enough the load is refused.
+ *
+ * @author ljo
+ */
+public class ModelMemoryManager {
+    private final static Logger LOG = LogManager.getLogger(ModelMemoryManager.class);
+
+    /**
+     * Heap bytes retained per byte of uncompressed serialized model, measured
+     * on CRF classifiers. Strings take more space on Java 8 than on later versions.
+     */
+    public final static int SERIALIZED_SIZE_FACTOR = 4;
+
+    /**
+     * Heap bytes retained per byte of gzipped serialized model, used when the
+     * uncompressed size is not known.
+     */
+    public final static int GZIPPED_SIZE_FACTOR = 6;
+
+    private final static ModelMemoryManager INSTANCE = new ModelMemoryManager();
+
+    private final Map<String, Model> models = new ConcurrentHashMap<>();
+    private final AtomicLong reservations = new AtomicLong();
+    private volatile long budget = Runtime.getRuntime().maxMemory() / 2;
+    private long used = 0;
+
+    public static ModelMemoryManager getInstance() {
+        return INSTANCE;
+    }
+
+    public static class Model {
+        private final String name;
+        private final String kind;
+        private final long estimatedSize;
+        private volatile Runnable evict = null;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Model(String name, String kind, long estimatedSize) {
+            this.name = name;
+            this.kind = kind;
+            this.estimatedSize = estimatedSize;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public long getEstimatedSize() {
+            return estimatedSize;
+        }
+
+        public long getLastUsed() {
+            return lastUsed;
+        }
+
+        /**
+         * Models still loading or only used for a single call cannot be evicted.
+         */
+        public boolean isEvictable() {
+            return evict != null;
+        }
+    }
+
+    /**
+     * Sets the budget in bytes for all loaded models.
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Returns a name for a reservation of a single call, which no other call uses.
+     */
+    public String uniqueName(String name) {
+        return name + " #" + reservations.incrementAndGet();
+    }
+
+    /**
+     * Reserves the estimated size of a model about to be loaded, evicting the
+     * least recently used models as needed.
+     *
+     * @throws XPathException if the model does not fit into the budget or its name is already reserved
+     */
+    public synchronized void admit(String name, String kind, long estimatedSize) throws XPathException {
+        if (models.containsKey(name)) {
+            throw new XPathException("Refusing to load " + kind + " " + name + ": a model of that name is already loaded or being loaded");
+        }
+        long pinned = 0;
+        for (Model model : models.values()) {
+            if (!model.isEvictable()) {
+                pinned += model.estimatedSize;
+            }
+        }
+        if (pinned + estimatedSize > budget) {
+            // evicting would not help
+            throw new XPathException("Refusing to load " + kind + " " + name + ": its estimated size of " + megabytes(estimatedSize) +
+                    " MB does not fit into the model memory budget of " + megabytes(budget) + " MB, of which " + megabytes(pinned) +
+                    " MB is taken by models being loaded or in use. Increase the modelMemoryBudget module parameter or the heap size.");
+        }
+        while (used + estimatedSize > budget) {
+            Model coldest = null;
+            for (Model model : models.values()) {
+                if (model.isEvictable() && (coldest == null || model.lastUsed < coldest.lastUsed)) {
+                    coldest = model;
+                }
+            }
+            LOG.info("Evicting " + coldest.kind + " " + coldest.name + " (" + megabytes(coldest.estimatedSize) + " MB) to load " + name);
+            coldest.evict.run();
+            release(coldest.name);
+        }
+        models.put(name, new Model(name, kind, estimatedSize));
+        used += estimatedSize;
+    }
+
+    /**
+     * Marks a reserved model as loaded and cached. It becomes a candidate for eviction,
+     * which runs the given action to drop it from its cache.
+     */
+    public void loaded(String name, Runnable evict) {
+        final Model model = models.get(name);
+        if (model != null) {
+            model.lastUsed = System.currentTimeMillis();
+            model.evict = evict;
+        }
+    }
+
+    /**
+     * Records a use of a cached model.
+     */
+    public void touch(String name) {
+        final Model model = models.get(name);
+        if (model != null) {
+            model.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Returns the reservation of a model that failed to load, was only used for a single call or was evicted.
+     */
+    public synchronized void release(String name) {
+        final Model model = models.remove(name);
+        if (model != null) {
+            used -= model.estimatedSize;
+        }
+    }
+
+    public List<Model> getModels() {
+        return new ArrayList<>(models.values());
+    }
+
+    /**
+     * Estimates the retained heap size of a serialized model stored in a file,
+     * using the uncompressed size recorded in the trailer of gzipped files.
+     */
+    public static long estimateSize(Path file) throws IOException {
+        final long size = Files.size(file);
+        if (size < 18) {
+            return size * SERIALIZED_SIZE_FACTOR;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(2);
+            channel.read(header, 0);
+            if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b) {
+                return size * SERIALIZED_SIZE_FACTOR;
+            }
+            final ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(trailer, size - 4);
+            // ISIZE is the uncompressed size modulo 2^32
+            final long uncompressed = trailer.getInt(0) & 0xffffffffL;
+            return Math.max(uncompressed, size) * SERIALIZED_SIZE_FACTOR;
+        }
+    }
+
+    /**
+     * Estimates the retained heap size of a serialized model read from a stream.
+     * The stream is consumed.
+     */
+    public static long estimateSize(InputStream is, boolean gzipped) throws IOException {
+        final byte[] buf = new byte[8192];
+        long size = 0;
+        int read;
+        while ((read = is.read(buf)) > 0) {
+            size += read;
+        }
+        return size * (gzipped ? GZIPPED_SIZE_FACTOR : SERIALIZED_SIZE_FACTOR);
+    }
+
+    static long megabytes(long bytes) {
+        return (bytes + 1024 * 1024 - 1) / (1024 * 1024);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pools of StanfordCoreNLP pipelines, one pool per normalized pipeline
+ * configuration. A pool and its first pipeline are only created when the
+ * configuration is first used, and a pipeline loads only the annotators
+ * listed in its configuration, so e.g. tokenize,ssplit never loads NER or
+ * parser models. Pipelines are borrowed for one annotation at a time and
+ * returned. Annotators are shared between the pipelines of all pools by the
+ * annotator pool of CoreNLP.
+ *
+ * Only the annotators and properties listed below are accepted. The values of
+ * model properties, e.g. pos.model, or the comma separated parts of them, must
+ * be binary resources in the database, starting with /db/, and are replaced
+ * by their files in the data directory. Each such file is reserved
+ * in the model memory budget once, however many pools use it, until the
+ * shared annotators are released with the last pool.
+ *
+ * @author ljo
+ */
+public class PipelinePool {
+
+    private final static Map<String, PipelinePool> pools = new ConcurrentHashMap<>();
+    // reservations of the model files loaded by the shared annotators
+    private final static Map<Path, String> modelFiles = new ConcurrentHashMap<>();
+    private final static int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+    // serializes the creation of pools, which loads their models without holding the locks below
+    private final static Object creating = new Object();
+    // pools and modelFiles are changed holding the monitor of the ModelMemoryManager, then that of pools,
+    // the order in which eviction reaches them; clears counts the times all pools were dropped
+    private static long clears = 0;
+
+    private final static Set<String> ANNOTATORS = new TreeSet<>(Arrays.asList(
+        "tokenize", "cleanxml", "ssplit", "pos", "lemma", "ner", "regexner", "truecase",
+        "parse", "depparse", "sentiment", "natlog", "dcoref", "entitymentions"));
+    // properties naming model files, which must be resources in the database
+    private final static Set<String> MODEL_PROPERTIES = new TreeSet<>(Arrays.asList(
+        "pos.model", "ner.model", "regexner.mapping", "truecase.model", "parse.model", "depparse.model", "sentiment.model"));
+    private final static Set<String> OPTION_PROPERTIES = new TreeSet<>(Arrays.asList(
+        "tokenize.language", "tokenize.options", "tokenize.whitespace", "tokenize.keepeol",
+        "cleanxml.xmltags", "cleanxml.sentenceEndingTags",
+        "ssplit.eolonly", "ssplit.isOneSentence", "ssplit.newlineIsSentenceBreak", "ssplit.boundaryTokenRegex",
+        "pos.maxlen", "ner.useSUTime", "ner.applyNumericClassifiers", "ner.combinationMode", "regexner.ignorecase",
+        "parse.maxlen", "parse.binaryTrees", "depparse.maxlen"));
+
+    private final String name;
+    private final Properties properties;
+    private final Set<Path> files;
+    private final Queue<StanfordCoreNLP> idle = new ConcurrentLinkedQueue<>();
+
+    private PipelinePool(String name, Properties properties, Set<Path> files) {
+        this.name = name;
+        this.properties = properties;
+        this.files = files;
+    }
+
+    /**
+     * Returns the pool for the pipeline configuration, creating it and its first pipeline on first use.
+     * The model resources of the configuration must be readable by the broker's subject on every call.
+     */
+    public static PipelinePool get(DBBroker broker, Properties configuration) throws XPathException, PermissionDeniedException, IOException {
+        final String key = normalize(configuration);
+        // the models are resolved with the caller's broker on every call, so a cached pool is only used when they are readable
+        checkModels(broker, key);
+        PipelinePool pool = pools.get(key);
+        if (pool == null) {
+            synchronized (creating) {
+                pool = pools.get(key);
+                if (pool == null) {
+                    ModuleMetrics.getInstance().cacheMiss();
+                    return create(broker, key);
+                }
+            }
+        }
+        ModuleMetrics.getInstance().cacheHit();
+        pool.touch();
+        return pool;
+    }
+
+    /**
+     * Returns an idle pipeline of the pool or creates a new one, which is cheap
+     * once the annotators are loaded. Return it with {@link #release}.
+     */
+    public StanfordCoreNLP borrow() {
+        final StanfordCoreNLP pipeline = idle.poll();
+        return pipeline != null ? pipeline : new StanfordCoreNLP(properties);
+    }
+
+    private void touch() {
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        memoryManager.touch(name);
+        for (Path file : files) {
+            final String reservation = modelFiles.get(file);
+            if (reservation != null) {
+                memoryManager.touch(reservation);
+            }
+        }
+    }
+
+    public void release(StanfordCoreNLP pipeline) {
+        if (idle.size() < MAX_IDLE) {
+            idle.offer(pipeline);
+        }
+    }
+
+    /**
+     * Normalizes a configuration into its key: the properties sorted by name, with
+     * trimmed values and the spaces removed from the annotator list.
+     *
+     * @throws XPathException if the configuration has an annotator or property not
+     * allowed, e.g. customAnnotatorClass, or a model outside the database
+     */
+    static String normalize(Properties configuration) throws XPathException {
+        final String annotators = configuration.getProperty("annotators");
+        if (annotators == null || annotators.trim().isEmpty()) {
+            throw new XPathException("The pipeline configuration has no annotators");
+        }
+        final Map<String, String> sorted = new TreeMap<>();
+        for (String name : configuration.stringPropertyNames()) {
+            sorted.put(name.trim(), configuration.getProperty(name).trim());
+        }
+        sorted.put("annotators", annotators.replaceAll("\\s+", ""));
+        for (String annotator : sorted.get("annotators").split(",")) {
+            if (!ANNOTATORS.contains(annotator)) {
+                throw new XPathException("The annotator " + annotator + " is not supported, only " + String.join(", ", ANNOTATORS));
+            }
+        }
+        for (Map.Entry<String, String> property : sorted.entrySet()) {
+            final String name = property.getKey();
+            if (MODEL_PROPERTIES.contains(name)) {
+                for (String value : property.getValue().split(",")) {
+                    if (!value.trim().startsWith("/db/")) {
+                        throw new XPathException("The pipeline property " + name + " must refer to binary resources in the database, starting with /db/");
+                    }
+                }
+            } else if (!"annotators".equals(name) && !OPTION_PROPERTIES.contains(name)) {
+                throw new XPathException("The pipeline property " + name + " is not supported, only annotators, " +
+                    String.join(", ", MODEL_PROPERTIES) + ", " + String.join(", ", OPTION_PROPERTIES));
+            }
+        }
+        final StringBuilder key = new StringBuilder();
+        for (Map.Entry<String, String> property : sorted.entrySet()) {
+            key.append(property.getKey()).append('=').append(property.getValue()).append('\n');
+        }
+        return key.toString();
+    }
+
+    private static PipelinePool create(DBBroker broker, String key) throws XPathException, PermissionDeniedException, IOException {
+        final Properties properties = new Properties();
+        final Set<Path> files = new LinkedHashSet<>();
+        for (String line : key.split("\n")) {
+            final int eq = line.indexOf('=');
+            final String name = line.substring(0, eq);
+            final String[] values = line.substring(eq + 1).split(",");
+            if (MODEL_PROPERTIES.contains(name)) {
+                for (int i = 0; i < values.length; i++) {
+                    final Path file = getModelFile(broker, values[i].trim());
+                    files.add(file);
+                    values[i] = file.toString();
+                }
+            }
+            properties.setProperty(name, String.join(",", values));
+        }
+
+        // the annotators of model files already in use by other pools are shared, not loaded again
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        while (true) {
+            final List<Path> admitted = new ArrayList<>();
+            final String name = memoryManager.uniqueName("pipeline " + properties.getProperty("annotators"));
+            try {
+                final long generation;
+                synchronized (memoryManager) {
+                    synchronized (pools) {
+                        for (Path file : files) {
+                            if (!modelFiles.containsKey(file)) {
+                                final String reservation = memoryManager.uniqueName("pipeline model " + file.getFileName());
+                                memoryManager.admit(reservation, "pipeline model", ModelMemoryManager.estimateSize(file));
+                                modelFiles.put(file, reservation);
+                                admitted.add(file);
+                            }
+                        }
+                        memoryManager.admit(name, "pipeline", 0);
+                        generation = clears;
+                    }
+                }
+                final long start = System.nanoTime();
+                final PipelinePool pool = new PipelinePool(name, properties, files);
+                pool.idle.offer(new StanfordCoreNLP(properties));
+                ModuleMetrics.getInstance().modelLoad(System.nanoTime() - start);
+                synchronized (memoryManager) {
+                    synchronized (pools) {
+                        if (clears == generation) {
+                            pools.put(key, pool);
+                            memoryManager.loaded(name, () -> evict(key, pool));
+                            for (Path file : admitted) {
+                                memoryManager.loaded(modelFiles.get(file), PipelinePool::clear);
+                            }
+                            return pool;
+                        }
+                    }
+                }
+            } catch (XPathException | IOException | Error e) {
+                release(name, admitted);
+                throw e;
+            } catch (RuntimeException e) {
+                release(name, admitted);
+                throw new XPathException("Unable to create the " + properties.getProperty("annotators") + " pipeline: " + e.getMessage(), e);
+            }
+            // the shared annotators were dropped while the pipeline was created, so its model files are reserved again
+            release(name, admitted);
+        }
+    }
+
+    private static void release(String name, List<Path> admitted) {
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        synchronized (memoryManager) {
+            synchronized (pools) {
+                memoryManager.release(name);
+                for (Path file : admitted) {
+                    final String reservation = modelFiles.remove(file);
+                    if (reservation != null) {
+                        memoryManager.release(reservation);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void evict(String key, PipelinePool pool) {
+        synchronized (ModelMemoryManager.getInstance()) {
+            synchronized (pools) {
+                pools.remove(key, pool);
+                // the shared annotators are only released when no pool uses them any more
+                if (pools.isEmpty()) {
+                    clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all pools and the shared annotators, returning the reservations of their model files.
+     */
+    private static void clear() {
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        synchronized (memoryManager) {
+            synchronized (pools) {
+                for (PipelinePool pool : pools.values()) {
+                    memoryManager.release(pool.name);
+                }
+                pools.clear();
+                StanfordCoreNLP.clearAnnotatorPool();
+                for (String reservation : modelFiles.values()) {
+                    memoryManager.release(reservation);
+                }
+                modelFiles.clear();
+                clears++;
+            }
+        }
+    }
+
+    private static void checkModels(DBBroker broker, String key) throws XPathException, PermissionDeniedException {
+        for (String line : key.split("\n")) {
+            final int eq = line.indexOf('=');
+            if (MODEL_PROPERTIES.contains(line.substring(0, eq))) {
+                for (String value : line.substring(eq + 1).split(",")) {
+                    ModelCache.getModelDocument(broker, value.trim(), "pipeline");
+                }
+            }
+        }
+    }
+
+    private static Path getModelFile(DBBroker broker, String modelPath) throws XPathException, PermissionDeniedException, IOException {
+        return broker.getBinaryFile(ModelCache.getModelDocument(broker, modelPath, "pipeline"));
+    }
+}
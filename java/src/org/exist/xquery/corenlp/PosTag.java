@@ -0,0 +1,274 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo: copied from stanford-ner by wolfgangmm and myself.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.process.TokenizerFactory;
+import edu.stanford.nlp.process.WordToSentenceProcessor;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.security.PermissionDeniedException;
+import org.exist.util.ParametersExtractor;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.Batches;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+import org.exist.xquery.corenlp.util.TokenizerFactories;
+import org.exist.xquery.value.*;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Part-of-speech tagging with a MaxentTagger model, e.g. the bundled
+ * resources/pos/swedish-pos-tagger-model. Every token is wrapped in a w
+ * element with its tag in the pos attribute. Sentences are tagged in
+ * batches on parallel threads.
+ *
+ * @author ljo
+ */
+public class PosTag extends MeasuredFunction {
+
+    private final static String CONFIGURATION_DESCRIPTION =
+        "The tagging configuration, e.g. &lt;parameters&gt;&lt;param name='output' value='inline'/&gt;&lt;param name='threads' value='4'/&gt;&lt;param name='batchSize' value='64'/&gt;&lt;/parameters&gt;. " +
+        "output is inline (default), the text with the tokens wrapped in w elements, or spans, only the w elements with the character offsets of the tokens in begin and end attributes. " +
+        "Sentences are tagged in batches of batchSize (default 64) sentences on up to threads (default the number of available processors) threads.";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("pos-tag-string", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Part-of-speech tag the provided text string. Returns a sequence of text nodes and w elements " +
+                "with the tag of each token in the pos attribute.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("model", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the tagger model to load. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "String of text to analyze.")
+                },
+                new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE,
+                    "Sequence of text nodes and w elements denoting the tagged tokens in the text")
+            ),
+            new FunctionSignature(
+                new QName("pos-tag-string", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Part-of-speech tag the provided text string. Returns a sequence of text nodes and w elements " +
+                "with the tag of each token in the pos attribute, or only the w elements with their offsets.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("model", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the tagger model to load. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "String of text to analyze."),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.ZERO_OR_ONE,
+                        CONFIGURATION_DESCRIPTION)
+                },
+                new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE,
+                    "Sequence of text nodes and w elements denoting the tagged tokens in the text")
+            ),
+            new FunctionSignature(
+                new QName("pos-tag-node", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Part-of-speech tag the text of a node and all its sub-nodes. Returns a new in-memory document. " +
+                "Tokens are enclosed in inline w elements with the tag in the pos attribute.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("model", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the tagger model to load. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("node", Type.NODE, Cardinality.EXACTLY_ONE,
+                        "The node to process.")
+                },
+                new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE,
+                    "An in-memory node")
+            ),
+            new FunctionSignature(
+                new QName("pos-tag-node", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Part-of-speech tag the text of a node and all its sub-nodes. Returns a new in-memory document. " +
+                "Tokens are enclosed in inline w elements with the tag in the pos attribute.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("model", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                        "The path to the tagger model to load. Should point to a binary resource " +
+                        "stored within the database"),
+                    new FunctionParameterSequenceType("node", Type.NODE, Cardinality.EXACTLY_ONE,
+                        "The node to process."),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.ZERO_OR_ONE,
+                        CONFIGURATION_DESCRIPTION + " The output parameter is ignored, tokens are always marked up inline.")
+                },
+                new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE,
+                    "An in-memory node")
+            )
+    };
+
+    private final static String TOKENIZER_OPTIONS = TokenizerFactories.options(true, false, null);
+    private final static WordToSentenceProcessor<CoreLabel> SENTENCE_SPLITTER =
+        new WordToSentenceProcessor<>(WordToSentenceProcessor.NewlineIsSentenceBreak.TWO_CONSECUTIVE);
+
+    /**
+     * Tagger models by database path, shared with the dependency parser.
+     */
+    final static ModelCache<MaxentTagger> TAGGERS = new ModelCache<>("tagger", modelFile -> {
+        final Properties config = new Properties();
+        config.setProperty("verbose", "false");
+        return new MaxentTagger(modelFile.toString(), config, false);
+    });
+
+    public PosTag(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        String modelPath = args[0].getStringValue();
+        Properties parameters = new Properties();
+        if (getArgumentCount() == 3 && !args[2].isEmpty()) {
+            parameters = ParametersExtractor.parseParameters(((NodeValue)args[2].itemAt(0)).getNode());
+        }
+        final int threads;
+        final int batchSize;
+        final boolean spans;
+        try {
+            threads = Math.max(1, Integer.valueOf(parameters.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+            batchSize = Math.max(1, Integer.valueOf(parameters.getProperty("batchSize", "64")));
+            spans = "spans".equals(parameters.getProperty("output", "inline"));
+        } catch (NumberFormatException e) {
+            throw new XPathException(this, "Invalid tagging configuration: " + e.getMessage(), e);
+        }
+
+        context.pushDocumentContext();
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, context.getBroker(), modelPath, threads)) {
+            final MaxentTagger tagger = TAGGERS.get(context.getBroker(), modelPath);
+            if (isCalledAs("pos-tag-string")) {
+                final MemTreeBuilder builder = context.getDocumentBuilder();
+                final ValueSequence result = new ValueSequence();
+                tagText(tagger, args[1].getStringValue(), builder, result, spans, permit.getPermits(), batchSize);
+                return result;
+            } else {
+                return tagNode(tagger, (NodeValue) args[1].itemAt(0), permit.getPermits(), batchSize);
+            }
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(this, "Permission denied to read tagger model resource", e);
+        } catch (IOException e) {
+            throw new XPathException(this, "Error while reading tagger model resource: " + e.getMessage(), e);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private Sequence tagNode(MaxentTagger tagger, NodeValue node, int threads, int batchSize) throws XPathException {
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            final DocumentBuilderReceiver receiver = new POSDocumentReceiver(builder, tagger, threads, batchSize);
+            final int nodeNr = builder.getDocument().getLastNode();
+            node.toSAX(context.getBroker(), receiver, new Properties());
+            return builder.getDocument().getNode(nodeNr + 1);
+        } catch (SAXException e) {
+            throw new XPathException(this, e);
+        }
+    }
+
+    private void tagText(MaxentTagger tagger, String text, MemTreeBuilder builder, ValueSequence result, boolean spans, int threads, int batchSize) throws XPathException {
+        final long start = System.nanoTime();
+        final TokenizerFactory<CoreLabel> tokenizerFactory = TokenizerFactories.getFactory(TokenizerFactories.DEFAULT_TOKENIZER, TOKENIZER_OPTIONS);
+        final List<List<CoreLabel>> sentences = SENTENCE_SPLITTER.process(tokenizerFactory.getTokenizer(new StringReader(text)).tokenize());
+        Batches.process(sentences, batchSize, threads, (i, sentence) -> tagger.tagCoreLabels(sentence));
+        long tokens = 0;
+        for (List<CoreLabel> sentence : sentences) {
+            tokens += sentence.size();
+        }
+        ModuleMetrics.getInstance().tokens(tokens, System.nanoTime() - start);
+
+        final StringBuilder buf = new StringBuilder();
+        boolean first = true;
+        for (List<CoreLabel> sentence : sentences) {
+            for (CoreLabel word : sentence) {
+                if (first && !spans && word.before() != null) {
+                    buf.append(word.before());
+                }
+                first = false;
+                writeText(builder, buf, result);
+                final AttributesImpl attribs = new AttributesImpl();
+                attribs.addAttribute("", "pos", "pos", "CDATA", word.tag());
+                if (spans) {
+                    attribs.addAttribute("", "begin", "begin", "CDATA", String.valueOf(word.beginPosition()));
+                    attribs.addAttribute("", "end", "end", "CDATA", String.valueOf(word.endPosition()));
+                }
+                final int nodeNr = builder.startElement("", "w", "w", attribs);
+                builder.characters(word.originalText() != null ? word.originalText() : word.word());
+                builder.endElement();
+                if (result != null) {
+                    result.add(builder.getDocument().getNode(nodeNr));
+                }
+                if (!spans && word.after() != null) {
+                    buf.append(word.after());
+                }
+            }
+        }
+        if (first && !spans) {
+            buf.append(text);
+        }
+        writeText(builder, buf, result);
+    }
+
+    private void writeText(MemTreeBuilder builder, StringBuilder buf, ValueSequence result) {
+        if (buf.length() > 0) {
+            int node = builder.characters(buf.toString());
+            if (result != null) {
+                result.add(builder.getDocument().getNode(node));
+            }
+            buf.setLength(0);
+        }
+    }
+
+    private class POSDocumentReceiver extends DocumentBuilderReceiver {
+
+        private MemTreeBuilder builder;
+        private MaxentTagger tagger;
+        private final int threads;
+        private final int batchSize;
+
+        public POSDocumentReceiver(MemTreeBuilder builder, MaxentTagger tagger, int threads, int batchSize) {
+            super(builder, true);
+            this.builder = builder;
+            this.tagger = tagger;
+            this.threads = threads;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void characters(CharSequence seq) throws SAXException {
+            tag(seq.toString());
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int len) throws SAXException {
+            tag(new String(ch, start, len));
+        }
+
+        private void tag(String s) throws SAXException {
+            try {
+                tagText(tagger, s, builder, null, false, threads, batchSize);
+            } catch (XPathException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pre-screen of the text nodes passed to a classifier, so that segments
+ * which cannot contain entities are written through without tokenizing and
+ * decoding them. A scan of the character classes skips segments without
+ * letters, and without digits too if the classifier has numeric labels such
+ * as DATE or MONEY. The learned mode in addition skips segments without
+ * upper case letters once the classifier has been seen to find entities in
+ * at most the threshold ratio of them; every {@value #SAMPLE_INTERVAL}th
+ * such segment is still classified to keep the ratio up to date. Kept per
+ * classifier and shared by all queries.
+ *
+ * @author ljo
+ */
+public class Prescreen {
+
+    /**
+     * Module parameter: none, characters (default) or learned.
+     */
+    public final static String PRESCREEN = "prescreen";
+
+    /**
+     * Module parameter: ratio of segments without upper case letters with entities
+     * below which the learned mode skips them, by default 0.001.
+     */
+    public final static String PRESCREEN_THRESHOLD = "prescreenThreshold";
+
+    public enum Mode { NONE, CHARACTERS, LEARNED }
+
+    private final static Set<String> NUMERIC_LABELS = new HashSet<>(Arrays.asList(
+        "DATE", "TIME", "DURATION", "SET", "MONEY", "PERCENT", "NUMBER", "ORDINAL"));
+    private final static int MIN_SAMPLES = 1000;
+    final static int SAMPLE_INTERVAL = 64;
+
+    // character classes of a segment: no letters, no upper case letters, others
+    private final static int NONE = 0;
+    private final static int LOWER_CASE = 1;
+    private final static int OTHER = 2;
+
+    private static volatile Mode mode = Mode.CHARACTERS;
+    private static volatile double threshold = 0.001;
+
+    private final boolean numericEntities;
+    private final LongAdder lowerCaseSegments = new LongAdder();
+    private final LongAdder lowerCaseEntities = new LongAdder();
+    private final AtomicLong skippedLowerCase = new AtomicLong();
+
+    public Prescreen(AbstractSequenceClassifier<CoreLabel> classifier) {
+        boolean numeric = false;
+        for (String label : classifier.classIndex) {
+            numeric |= NUMERIC_LABELS.contains(label);
+        }
+        this.numericEntities = numeric;
+    }
+
+    public static void setMode(Mode mode) {
+        Prescreen.mode = mode;
+    }
+
+    public static void setThreshold(double threshold) {
+        Prescreen.threshold = threshold;
+    }
+
+    /**
+     * Whether the segment may contain entities and has to be classified.
+     * Classified segments without upper case letters are to be reported back
+     * through {@link #classified(CharSequence, boolean)}.
+     */
+    public boolean mayContainEntities(CharSequence text) {
+        final Mode current = mode;
+        if (current == Mode.NONE) {
+            return true;
+        }
+        final int characterClass = scan(text);
+        boolean classify = characterClass != NONE;
+        if (characterClass == LOWER_CASE && current == Mode.LEARNED) {
+            final long samples = lowerCaseSegments.sum();
+            if (samples >= MIN_SAMPLES && lowerCaseEntities.sum() <= threshold * samples) {
+                classify = skippedLowerCase.incrementAndGet() % SAMPLE_INTERVAL == 0;
+            }
+        }
+        ModuleMetrics.getInstance().prescreened(!classify);
+        return classify;
+    }
+
+    /**
+     * Records whether the classifier found entities in a classified segment.
+     */
+    public void classified(CharSequence text, boolean entities) {
+        if (mode == Mode.LEARNED && scan(text) == LOWER_CASE) {
+            lowerCaseSegments.increment();
+            if (entities) {
+                lowerCaseEntities.increment();
+            }
+        }
+    }
+
+    private int scan(CharSequence text) {
+        boolean letters = false;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 128) {
+                if (c >= 'A' && c <= 'Z') {
+                    return OTHER;
+                } else if (c >= 'a' && c <= 'z') {
+                    letters = true;
+                } else if (c >= '0' && c <= '9' && numericEntities) {
+                    letters = true;
+                }
+            } else if (Character.isUpperCase(c) || Character.isTitleCase(c)) {
+                return OTHER;
+            } else if (Character.isLetter(c) || Character.isSurrogate(c) || (numericEntities && Character.isDigit(c))) {
+                letters = true;
+            }
+        }
+        return letters ? LOWER_CASE : NONE;
+    }
+}
@@ -18,8 +18,14 @@
  */
 package org.exist.xquery.corenlp;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.FunctionDef;
+import org.exist.xquery.Module;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.corenlp.util.ModuleExecutors;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
 
 import java.util.List;
 import java.util.Map;
@@ -30,27 +36,115 @@ import java.util.Map;
  * @author ljo
  */
 public class StanfordCoreNLPModule extends AbstractInternalModule {
+    private final static Logger LOG = LogManager.getLogger(StanfordCoreNLPModule.class);
 
     public final static String NAMESPACE_URI = "http://exist-db.org/xquery/stanford-corenlp";
     public final static String PREFIX = "corenlp";
 
+    /**
+     * Module parameter: size in bytes up to which generated documents are kept in memory
+     * before being spilled to a temporary file.
+     */
+    public final static String OUTPUT_SPILL_THRESHOLD = "outputSpillThreshold";
+
+    /**
+     * Module parameter: heap size in bytes that loaded models may take up together.
+     * Defaults to half of the maximum heap.
+     */
+    public final static String MODEL_MEMORY_BUDGET = "modelMemoryBudget";
+
     public final static FunctionDef[] functions = {
+        new FunctionDef(Annotate.signatures[0], Annotate.class),
         new FunctionDef(Classify.signatures[0], Classify.class),
         new FunctionDef(Classify.signatures[1], Classify.class),
         new FunctionDef(Classify.signatures[2], Classify.class),
         new FunctionDef(Classify.signatures[3], Classify.class),
         new FunctionDef(Classify.signatures[4], Classify.class),
         new FunctionDef(Classify.signatures[5], Classify.class),
+        new FunctionDef(AnnotateCollection.signatures[0], AnnotateCollection.class),
         new FunctionDef(ClassifyUploaded.signatures[0], ClassifyUploaded.class),
         new FunctionDef(ClassifyUploaded.signatures[1], ClassifyUploaded.class),
+        new FunctionDef(CompactClassifier.signatures[0], CompactClassifier.class),
+        new FunctionDef(DependencyParse.signatures[0], DependencyParse.class),
+        new FunctionDef(DependencyParse.signatures[1], DependencyParse.class),
+        new FunctionDef(EvaluateClassifier.signatures[0], EvaluateClassifier.class),
+        new FunctionDef(LoadedModels.signatures[0], LoadedModels.class),
+        new FunctionDef(MapClassifier.signatures[0], MapClassifier.class),
+        new FunctionDef(MatchGazetteer.signatures[0], MatchGazetteer.class),
+        new FunctionDef(MatchGazetteer.signatures[1], MatchGazetteer.class),
+        new FunctionDef(MatchGazetteer.signatures[2], MatchGazetteer.class),
+        new FunctionDef(MatchGazetteer.signatures[3], MatchGazetteer.class),
+        new FunctionDef(PosTag.signatures[0], PosTag.class),
+        new FunctionDef(PosTag.signatures[1], PosTag.class),
+        new FunctionDef(PosTag.signatures[2], PosTag.class),
+        new FunctionDef(PosTag.signatures[3], PosTag.class),
+        new FunctionDef(SweepClassifier.signatures[0], SweepClassifier.class),
         new FunctionDef(TrainClassifier.signatures[0], TrainClassifier.class),
         new FunctionDef(Tokenize.signatures[0], Tokenize.class),
         new FunctionDef(Tokenize.signatures[1], Tokenize.class),
-        new FunctionDef(Tokenize.signatures[2], Tokenize.class)
+        new FunctionDef(Tokenize.signatures[2], Tokenize.class),
+        new FunctionDef(Tokenize.signatures[3], Tokenize.class)
     };
 
     public StanfordCoreNLPModule(Map<String, List<? extends Object>> parameters) {
         super(functions, parameters, false);
+        ModuleMetrics.getInstance().register();
+        for (Map.Entry<String, List<? extends Object>> parameter : parameters.entrySet()) {
+            final List<? extends Object> values = parameter.getValue();
+            if (values == null || values.isEmpty() || values.get(0) == null) {
+                continue;
+            }
+            final String name = parameter.getKey();
+            final String value = values.get(0).toString().trim();
+            try {
+                if (MODEL_MEMORY_BUDGET.equals(name)) {
+                    ModelMemoryManager.getInstance().setBudget(nonNegative(Long.parseLong(value)));
+                } else if (ModuleExecutors.VIRTUAL_THREADS.equals(name)) {
+                    ModuleExecutors.setVirtualThreads(Boolean.parseBoolean(value));
+                } else if (ModuleExecutors.COMPUTE_THREADS.equals(name)) {
+                    ModuleExecutors.setComputeThreads(Integer.parseInt(value));
+                } else if (ConcurrencyLimiter.CONCURRENCY_LIMIT.equals(name)) {
+                    ConcurrencyLimiter.getInstance().setDefaultLimit(Integer.parseInt(value));
+                } else if (name.startsWith(ConcurrencyLimiter.CONCURRENCY_LIMIT + ".")) {
+                    ConcurrencyLimiter.getInstance().setFunctionLimit(name.substring(ConcurrencyLimiter.CONCURRENCY_LIMIT.length() + 1), Integer.parseInt(value));
+                } else if (ConcurrencyLimiter.MAX_QUEUE_TIME.equals(name)) {
+                    ConcurrencyLimiter.getInstance().setMaxQueueTime(nonNegative(Long.parseLong(value)));
+                } else if (Prescreen.PRESCREEN.equals(name)) {
+                    Prescreen.setMode(Prescreen.Mode.valueOf(value.toUpperCase()));
+                } else if (Prescreen.PRESCREEN_THRESHOLD.equals(name)) {
+                    Prescreen.setThreshold(Double.parseDouble(value));
+                }
+            } catch (IllegalArgumentException e) {
+                // a typo in conf.xml should not make every query importing the module fail
+                LOG.error("Ignoring invalid value '" + value + "' of module parameter " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static long nonNegative(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("must not be negative");
+        }
+        return value;
+    }
+
+    /**
+     * Look up a module parameter as configured in conf.xml.
+     *
+     * @param context the current query context
+     * @param name the parameter name
+     * @param defaultValue returned if the module or parameter is not available
+     * @return the first configured value of the parameter or the default value
+     */
+    public static String getModuleParameter(XQueryContext context, String name, String defaultValue) {
+        Module module = context.getModule(NAMESPACE_URI);
+        if (module instanceof StanfordCoreNLPModule) {
+            List<? extends Object> values = ((StanfordCoreNLPModule) module).getParameter(name);
+            if (values != null && !values.isEmpty() && values.get(0) != null) {
+                return values.get(0).toString();
+            }
+        }
+        return defaultValue;
     }
 
     @Override
@@ -0,0 +1,408 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.util.ParametersExtractor;
+import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.CRFModels;
+import org.exist.xquery.corenlp.util.CancellableCRFClassifier;
+import org.exist.xquery.corenlp.util.Cancellation;
+import org.exist.xquery.corenlp.util.CrossValidation;
+import org.exist.xquery.corenlp.util.Evaluation;
+import org.exist.xquery.corenlp.util.ModuleExecutors;
+import org.exist.xquery.corenlp.util.Spreadsheet;
+import org.exist.xquery.corenlp.util.Spreadsheet.InputDocType;
+import org.exist.xquery.corenlp.util.TokenBuffer;
+import org.exist.xquery.value.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Sweeps a grid of CRF training properties: each combination is
+ * cross-validated, the trials running in parallel. A trial is stopped early
+ * when its F1 over the folds done so far falls clearly below the best one
+ * over the same folds. The trials are ranked by F1 and reported with the
+ * size and speed of their models.
+ *
+ * @author ljo
+ */
+public class SweepClassifier extends MeasuredFunction {
+    private final static Logger LOG = LogManager.getLogger(SweepClassifier.class);
+
+    /**
+     * The CRF properties a grid may vary: features computed from the words and
+     * tags of the spreadsheet and optimizer settings. Properties naming files,
+     * like gazettes, lexicons or serializeTo, are left out.
+     */
+    private final static Set<String> GRID_PROPERTIES = new TreeSet<>(Arrays.asList(
+        "useWord", "useClassFeature", "useNGrams", "noMidNGrams", "maxNGramLeng", "lowercaseNGrams", "dehyphenateNGrams",
+        "useDisjunctive", "disjunctionWidth", "useWideDisjunctive", "usePrev", "useNext", "useWordPairs", "useSymWordPairs",
+        "useSequences", "usePrevSequences", "useNextSequences", "useLongSequences", "useBoundarySequences", "maxLeft", "maxRight",
+        "wordShape", "useTypeSeqs", "useTypeSeqs2", "useTypeSeqs3", "useTypeySequences", "useShapeConjunctions", "useDisjShape",
+        "useOccurrencePatterns", "useLastRealWord", "useNextRealWord", "usePosition", "useBeginSent",
+        "useTags", "useWordTag", "useSymTags", "useTaggySequences", "useKnownLCWords", "featureCountThreshold",
+        "sigma", "epsilon", "priorType", "QNsize", "tolerance", "maxIterations"));
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                new QName("sweep-classifier", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Cross-validate CRF classifiers trained with each combination of a grid of training properties on the annotations in the provided spreadsheet document. " +
+                "Returns the trials ranked by F1, with the size and classification speed of their models.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                        "The sweep configuration, e.g. &lt;parameters&gt;&lt;param name='inputFormat' value='ods'/&gt;&lt;param name='backgroundSymbol' value='O'/&gt;&lt;param name='folds' value='3'/&gt;&lt;param name='threads' value='4'/&gt;&lt;/parameters&gt;. " +
+                        "Available input formats ods (default), xlsx, xls or tsv. folds defaults to 3, threads to the number of available processors. " +
+                        "earlyStopMargin (default 0.05) is how far below the best F1 over the same folds a trial may fall before it is stopped, 1 never stops trials. " +
+                        "Grids with more than maxTrials (default 100) combinations are refused. " +
+                        "A time limit in milliseconds can be given as timeout."),
+                    new FunctionParameterSequenceType("grid", Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                        "The training properties to vary, each with its values separated by whitespace, e.g. &lt;parameters&gt;&lt;param name='maxNGramLeng' value='4 6'/&gt;&lt;param name='wordShape' value='chris2useLC dan2useLC'/&gt;&lt;/parameters&gt;. " +
+                        "Properties not in the grid are those used by train-classifier-spreadsheet-doc. Only feature and optimizer properties that read no files may be varied."),
+                    new FunctionParameterSequenceType("uploaded-file", Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE,
+                        "The uploaded file with your annotated text. If no file is posted in the request you need to provide localFilePath in the configuration parameter.")
+                },
+                new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                    "A sweep-classifier element with a trial element per combination")
+            )
+    };
+
+    private static class Trial {
+        private final int number;
+        private final TreeMap<String, String> values;
+        private Evaluation evaluation;
+        private double f1Deviation;
+        private int folds;
+        private boolean stopped = false;
+        private boolean pareto = false;
+        private long features;
+        private long weights;
+        private long modelBytes;
+        private long tokensPerSecond;
+        private long nanos;
+
+        Trial(final int number, final TreeMap<String, String> values) {
+            this.number = number;
+            this.values = values;
+        }
+
+        /**
+         * Whether this completed trial is at least as accurate, small and fast as the other one and better in one of them.
+         */
+        boolean dominates(final Trial other) {
+            final double f1 = evaluation.getF1();
+            final double otherF1 = other.evaluation.getF1();
+            return f1 >= otherF1 && modelBytes <= other.modelBytes && tokensPerSecond >= other.tokensPerSecond &&
+                (f1 > otherF1 || modelBytes < other.modelBytes || tokensPerSecond > other.tokensPerSecond);
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    public SweepClassifier(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final Properties parameters = ParametersExtractor.parseParameters(((NodeValue)args[0].itemAt(0)).getNode());
+        final Properties grid = ParametersExtractor.parseParameters(((NodeValue)args[1].itemAt(0)).getNode());
+        final BinaryValue uploadedFile = args[2].isEmpty() ? null : (BinaryValue) args[2].itemAt(0);
+
+        final InputDocType inputFormat = InputDocType.spreadsheet(parameters.getProperty("inputFormat", "ods"));
+        final String localFilePath = parameters.getProperty("localFilePath");
+        final String backgroundSymbol = parameters.getProperty("backgroundSymbol", "O");
+        final int tagCol;
+        final int folds;
+        final int threads;
+        final double earlyStopMargin;
+        final int maxTrials;
+        final long timeout;
+        try {
+            tagCol = Integer.valueOf(parameters.getProperty("tagCol", "-1"));
+            folds = Integer.valueOf(parameters.getProperty("folds", "3"));
+            threads = Integer.valueOf(parameters.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            earlyStopMargin = Double.parseDouble(parameters.getProperty("earlyStopMargin", "0.05"));
+            maxTrials = Integer.valueOf(parameters.getProperty("maxTrials", "100"));
+            timeout = Long.valueOf(parameters.getProperty(Cancellation.TIMEOUT,
+                StanfordCoreNLPModule.getModuleParameter(context, Cancellation.TIMEOUT, "0")));
+        } catch (NumberFormatException e) {
+            throw new XPathException(this, "Invalid sweep configuration: " + e.getMessage(), e);
+        }
+        if (uploadedFile == null && localFilePath == null) {
+            throw new XPathException(this, "No spreadsheet document given, either upload one or provide localFilePath in the configuration");
+        }
+        final List<Trial> trials = trials(grid, maxTrials);
+
+        final Cancellation cancellation = new Cancellation(context, this, timeout);
+        final TokenBuffer documents = Spreadsheet.readSpreadsheet(inputFormat, uploadedFile, localFilePath, tagCol);
+        if (documents.sentences() == 0) {
+            throw new XPathException(this, "No annotated text extracted from the spreadsheet document!");
+        }
+        cancellation.check();
+
+        // per fold, the best F1 of a trial over the folds up to it
+        final double[] best = new double[folds];
+        final long start = System.nanoTime();
+        final int parallel;
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, "uploaded", threads)) {
+            parallel = Math.min(permit.getPermits(), trials.size());
+            final ExecutorService executor = ModuleExecutors.newComputeExecutor(parallel);
+            try {
+                final List<Future<?>> results = new ArrayList<>(trials.size());
+                for (Trial trial : trials) {
+                    results.add(executor.submit(() -> {
+                        runTrial(trial, documents, folds, backgroundSymbol, earlyStopMargin, best, cancellation);
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XPathException(this, "Interrupted while sweeping");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof XPathException) {
+                    throw (XPathException) e.getCause();
+                }
+                LOG.error(e.getCause());
+                throw new XPathException(this, "Error while sweeping: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        rank(trials);
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            AttributesImpl attribs = new AttributesImpl();
+            attribs.addAttribute("", "trials", "trials", "CDATA", String.valueOf(trials.size()));
+            attribs.addAttribute("", "folds", "folds", "CDATA", String.valueOf(folds));
+            attribs.addAttribute("", "sentences", "sentences", "CDATA", String.valueOf(documents.sentences()));
+            attribs.addAttribute("", "threads", "threads", "CDATA", String.valueOf(parallel));
+            attribs.addAttribute("", "milliseconds", "milliseconds", "CDATA", String.valueOf(elapsed / 1000000));
+            final int nodeNr = builder.startElement("", "sweep-classifier", "sweep-classifier", attribs);
+            for (int i = 0; i < trials.size(); i++) {
+                writeTrial(builder, i + 1, trials.get(i));
+            }
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    /**
+     * Returns a trial per combination of the grid values.
+     *
+     * @throws XPathException if the grid has more than maxTrials combinations
+     */
+    private List<Trial> trials(final Properties grid, final int maxTrials) throws XPathException {
+        List<TreeMap<String, String>> combinations = new ArrayList<>();
+        combinations.add(new TreeMap<>());
+        for (String name : new TreeSet<>(grid.stringPropertyNames())) {
+            if (!GRID_PROPERTIES.contains(name)) {
+                throw new XPathException(this, "The property " + name + " can not be varied in a sweep, only " + String.join(", ", GRID_PROPERTIES));
+            }
+            final String[] values = grid.getProperty(name).trim().split("\\s+");
+            if (values[0].isEmpty()) {
+                throw new XPathException(this, "No values given for " + name + " in the grid");
+            }
+            if ((long) combinations.size() * values.length > maxTrials) {
+                throw new XPathException(this, "The grid has more than maxTrials (" + maxTrials + ") combinations, vary fewer properties or values or raise maxTrials");
+            }
+            final List<TreeMap<String, String>> extended = new ArrayList<>(combinations.size() * values.length);
+            for (TreeMap<String, String> combination : combinations) {
+                for (String value : values) {
+                    final TreeMap<String, String> next = new TreeMap<>(combination);
+                    next.put(name, value);
+                    extended.add(next);
+                }
+            }
+            combinations = extended;
+        }
+        final List<Trial> trials = new ArrayList<>(combinations.size());
+        for (TreeMap<String, String> combination : combinations) {
+            trials.add(new Trial(trials.size() + 1, combination));
+        }
+        return trials;
+    }
+
+    private void runTrial(final Trial trial, final TokenBuffer documents, final int folds, final String backgroundSymbol, final double earlyStopMargin, final double[] best, final Cancellation cancellation) throws XPathException {
+        final long start = System.nanoTime();
+        final Properties props = TrainClassifier.defaultProperties();
+        props.putAll(trial.values);
+        final CrossValidation crossValidation = new CrossValidation(documents, folds, props, backgroundSymbol, cancellation);
+
+        final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+        final String features = memoryManager.uniqueName("sweep trial " + trial.number + " features");
+        final String reservation = memoryManager.uniqueName("sweep trial " + trial.number);
+        memoryManager.admit(features, "sweep trial features", crossValidation.estimateFeatureSize());
+        try {
+            crossValidation.extractFeatures();
+            memoryManager.admit(reservation, "sweep trial", crossValidation.estimateFoldSize());
+            for (int fold = 0; fold < folds; fold++) {
+                final CancellableCRFClassifier classifier = crossValidation.train(fold);
+                crossValidation.evaluate(fold, classifier);
+                if (fold == folds - 1) {
+                    measure(trial, classifier);
+                } else if (stop(best, fold, crossValidation.getEvaluation().getF1(), earlyStopMargin)) {
+                    trial.stopped = true;
+                    LOG.debug("Stopped trial " + trial.number + " " + trial.values + " after " + (fold + 1) + " of " + folds + " folds");
+                    break;
+                }
+            }
+        } finally {
+            memoryManager.release(reservation);
+            memoryManager.release(features);
+        }
+        trial.evaluation = crossValidation.getEvaluation();
+        trial.f1Deviation = crossValidation.getF1Deviation();
+        trial.folds = crossValidation.getEvaluatedFolds();
+        trial.tokensPerSecond = crossValidation.getTokensPerSecond();
+        trial.nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Records the F1 of a trial over the folds up to the given one and tells
+     * whether it falls more than the margin below the best one so far.
+     */
+    private static boolean stop(final double[] best, final int fold, final double f1, final double margin) {
+        synchronized (best) {
+            if (f1 < best[fold] - margin) {
+                return true;
+            }
+            best[fold] = Math.max(best[fold], f1);
+            return false;
+        }
+    }
+
+    /**
+     * Records the features and weights left after dropping zero weights and
+     * the size of the gzipped serialized model.
+     */
+    private void measure(final Trial trial, final CancellableCRFClassifier classifier) throws XPathException {
+        for (double[] row : CRFModels.getWeights(classifier)) {
+            boolean nonZero = false;
+            for (double w : row) {
+                if (w != 0.0) {
+                    trial.weights++;
+                    nonZero = true;
+                }
+            }
+            if (nonZero) {
+                trial.features++;
+            }
+        }
+        final CountingOutputStream counter = new CountingOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(counter)))) {
+            classifier.serializeClassifier(oos);
+        } catch (IOException ioe) {
+            throw new XPathException(this, "Unable to measure serialized classifier: " + ioe.getMessage(), ioe);
+        }
+        trial.modelBytes = counter.count;
+    }
+
+    /**
+     * Orders completed trials before stopped ones, each by F1, and marks the
+     * completed trials no other one is more accurate, smaller and faster than.
+     */
+    private static void rank(final List<Trial> trials) {
+        Collections.sort(trials, Comparator.<Trial, Boolean>comparing(trial -> trial.stopped)
+            .thenComparing(trial -> -trial.evaluation.getF1())
+            .thenComparingInt(trial -> trial.number));
+        for (Trial trial : trials) {
+            if (trial.stopped) {
+                continue;
+            }
+            trial.pareto = true;
+            for (Trial other : trials) {
+                if (!other.stopped && other.dominates(trial)) {
+                    trial.pareto = false;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void writeTrial(final MemTreeBuilder builder, final int rank, final Trial trial) {
+        AttributesImpl attribs = new AttributesImpl();
+        attribs.addAttribute("", "rank", "rank", "CDATA", String.valueOf(rank));
+        attribs.addAttribute("", "f1", "f1", "CDATA", Evaluation.format(trial.evaluation.getF1()));
+        attribs.addAttribute("", "f1-stddev", "f1-stddev", "CDATA", Evaluation.format(trial.f1Deviation));
+        attribs.addAttribute("", "token-accuracy", "token-accuracy", "CDATA", Evaluation.format(trial.evaluation.getTokenAccuracy()));
+        attribs.addAttribute("", "folds", "folds", "CDATA", String.valueOf(trial.folds));
+        if (trial.stopped) {
+            attribs.addAttribute("", "stopped", "stopped", "CDATA", "true");
+        } else {
+            attribs.addAttribute("", "features", "features", "CDATA", String.valueOf(trial.features));
+            attribs.addAttribute("", "weights", "weights", "CDATA", String.valueOf(trial.weights));
+            attribs.addAttribute("", "model-bytes", "model-bytes", "CDATA", String.valueOf(trial.modelBytes));
+            attribs.addAttribute("", "pareto", "pareto", "CDATA", String.valueOf(trial.pareto));
+        }
+        attribs.addAttribute("", "tokens-per-second", "tokens-per-second", "CDATA", String.valueOf(trial.tokensPerSecond));
+        attribs.addAttribute("", "milliseconds", "milliseconds", "CDATA", String.valueOf(trial.nanos / 1000000));
+        builder.startElement("", "trial", "trial", attribs);
+        for (Map.Entry<String, String> value : trial.values.entrySet()) {
+            attribs = new AttributesImpl();
+            attribs.addAttribute("", "name", "name", "CDATA", value.getKey());
+            attribs.addAttribute("", "value", "value", "CDATA", value.getValue());
+            builder.startElement("", "param", "param", attribs);
+            builder.endElement();
+        }
+        builder.endElement();
+    }
+}
@@ -39,6 +39,8 @@ import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.Tokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
 import edu.stanford.nlp.process.WordToSentenceProcessor;
 import edu.stanford.nlp.sequences.SeqClassifierFlags;
 
@@ -70,13 +72,18 @@ import org.exist.util.io.TemporaryFileManager;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.*;
 import org.exist.xquery.corenlp.util.DefaultBinaryValueManager;
+import org.exist.xquery.corenlp.util.ModuleMetrics;
+import org.exist.xquery.corenlp.util.SpillingOutputStream;
 import org.exist.xquery.value.*;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 import org.exist.xquery.corenlp.util.Spreadsheet.InputDocType;
 import org.exist.xquery.corenlp.util.Spreadsheet.OutDocType;
 import org.exist.xquery.corenlp.util.Spreadsheet.TextDocType;
 import org.exist.xquery.corenlp.util.Spreadsheet;
 import org.exist.xquery.corenlp.util.Textdocument;
+import org.exist.xquery.corenlp.util.TokenBuffer;
+import org.exist.xquery.corenlp.util.TokenizerFactories;
 
 import org.jopendocument.dom.ODPackage;
 import org.jopendocument.dom.ODDocument;
@@ -84,22 +91,39 @@ import org.jopendocument.dom.text.TextDocument;
 import org.jopendocument.dom.spreadsheet.Sheet;
 import org.jopendocument.dom.spreadsheet.SpreadSheet;
 
-public class Tokenize extends BasicFunction {
+public class Tokenize extends MeasuredFunction {
     private final static Logger LOG = LogManager.getLogger(Tokenize.class);
+    private final static WordToSentenceProcessor<CoreLabel> SENTENCE_SPLITTER =
+	new WordToSentenceProcessor<>(WordToSentenceProcessor.NewlineIsSentenceBreak.TWO_CONSECUTIVE);
 
     public final static FunctionSignature signatures[] = {
             new FunctionSignature(
                 new QName("tokenize-string", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
-                "Tokenize the provided text string. Returns a sequence of text nodes.",
+                "Tokenize the provided text string. Returns a sequence of token strings.",
                 new SequenceType[] {
                     new FunctionParameterSequenceType("tokenizer", Type.STRING, Cardinality.EXACTLY_ONE,
                         "The fully qualified name of an alternative tokenizer to load. Must be avaliable on the classpath."),
                         new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
                                 "String of text to analyze.")
                 },
-                new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE_OR_MORE,
+                new FunctionReturnSequenceType(Type.STRING, Cardinality.ZERO_OR_MORE,
                     "Sequence of segmented tokens from the string")
             ),
+            new FunctionSignature(
+                new QName("tokenize-string", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
+                "Tokenize the provided text string. Returns a sequence of token strings or, with the offsets parameter set, " +
+                "token elements carrying the begin and end character offsets, e.g. &lt;token begin='0' end='5'&gt;Hello&lt;/token&gt;.",
+                new SequenceType[] {
+                    new FunctionParameterSequenceType("tokenizer", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "The fully qualified name of an alternative tokenizer to load. Must be avaliable on the classpath."),
+                    new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                        "String of text to analyze."),
+                    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.ZERO_OR_ONE,
+                        "The tokenizer configuration, e.g. &lt;parameters&gt;&lt;param name='offsets' value='true'/&gt;&lt;param name='tokenizeNLs' value='false'/&gt;&lt;param name='tokenizerOptions' value='americanize=false'/&gt;&lt;/parameters&gt;.")
+                },
+                new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_MORE,
+                    "Sequence of segmented tokens from the string, as strings or token elements")
+            ),
             new FunctionSignature(
                 new QName("tokenize-wp-doc", StanfordCoreNLPModule.NAMESPACE_URI, StanfordCoreNLPModule.PREFIX),
                 "Tokenize the text in the provided wordprocessing document. Returns a spreadsheet with one token per row annotated with the background symbol in column two.",
@@ -128,18 +152,7 @@ public class Tokenize extends BasicFunction {
             )
     };
 
-    private Path tempInFile = null;
-    private Path tempOutFile = null;
-    private BinaryValueFromBinaryString uploadedFileBase64String = null;
-    private static PTBTokenizer<CoreLabel> cachedTokenizer = null;
     private AnalyzeContextInfo cachedContextInfo;
-    private Properties parameters = new Properties();
-
-    private InputDocType inputFormat = InputDocType.ODT;
-    private OutDocType outputFormat = OutDocType.ODS;
-    private String backgroundSymbol = "O";
-    private String localFilePath = null;
-    private boolean tokenizeNLs = false;
 
     public Tokenize(XQueryContext context, FunctionSignature signature) {
         super(context, signature);
@@ -155,22 +168,49 @@ public class Tokenize extends BasicFunction {
     public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
         String tokenizerClassPath = args[0].getStringValue();
 
+        if (isCalledAs("tokenize-string")) {
+	    boolean offsets = false;
+	    boolean stringTokenizeNLs = false;
+	    String stringTokenizerOptions = null;
+	    if (getArgumentCount() == 3 && !args[2].isEmpty()) {
+		Properties stringParameters = ParametersExtractor.parseParameters(((NodeValue)args[2].itemAt(0)).getNode());
+		offsets = Boolean.valueOf(stringParameters.getProperty("offsets", "false"));
+		stringTokenizeNLs = Boolean.valueOf(stringParameters.getProperty("tokenizeNLs", "false"));
+		stringTokenizerOptions = stringParameters.getProperty("tokenizerOptions");
+	    }
+	    TokenizerFactory<CoreLabel> stringTokenizerFactory =
+		TokenizerFactories.getFactory(tokenizerClassPath, TokenizerFactories.options(false, stringTokenizeNLs, stringTokenizerOptions));
+	    if (!offsets) {
+		return tokenizeString(stringTokenizerFactory, args[1].getStringValue(), false);
+	    }
+	    context.pushDocumentContext();
+	    try {
+		return tokenizeString(stringTokenizerFactory, args[1].getStringValue(), true);
+	    } finally {
+		context.popDocumentContext();
+	    }
+	}
+
+	// the function object may be evaluated concurrently, so the state of a call is kept in locals
+	SpillingOutputStream outputStream = null;
+	BinaryValue uploadedFile = null;
+	Properties parameters = new Properties();
+	InputDocType inputFormat = InputDocType.ODT;
+	OutDocType outputFormat = OutDocType.ODS;
+	String backgroundSymbol = "O";
+	String localFilePath = null;
+	boolean tokenizeNLs = false;
+	String tokenizerOptions = null;
         context.pushDocumentContext();
         try {
-	    String text = "";
+	    int outputSpillThreshold = Integer.valueOf(StanfordCoreNLPModule.getModuleParameter(context, StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD, String.valueOf(SpillingOutputStream.DEFAULT_THRESHOLD)));
             if (isCalledAs("tokenize-wp-doc")) {
 		if (!args[1].isEmpty()) {
 		    parameters = ParametersExtractor.parseParameters(((NodeValue)args[1].itemAt(0)).getNode());
 		}
 		if (!args[2].isEmpty()) {
-		    uploadedFileBase64String = new BinaryValueFromBinaryString(new Base64BinaryValueType(), args[2].getStringValue());
+		    uploadedFile = (BinaryValue) args[2].itemAt(0);
 		}
-
-		tempInFile = TemporaryFileManager.getInstance().getTemporaryFile();
-		tempOutFile = TemporaryFileManager.getInstance().getTemporaryFile();
-
-            } else if (isCalledAs("tokenize-string")) {
-                text = args[1].getStringValue();
             }
 
 	    for (String property : parameters.stringPropertyNames()) {
@@ -205,41 +245,77 @@ public class Tokenize extends BasicFunction {
 		} else if ("tokenizeNLs".equals(property)) {
 		    String value = parameters.getProperty(property);
 		    tokenizeNLs = Boolean.valueOf(value);
+		} else if ("tokenizerOptions".equals(property)) {
+		    String value = parameters.getProperty(property);
+		    tokenizerOptions = value;
+		} else if (StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD.equals(property)) {
+		    String value = parameters.getProperty(property);
+		    outputSpillThreshold = Integer.valueOf(value);
 		}
 	    }
  
-	    text = Textdocument.readTextDocument(inputFormat, uploadedFileBase64String, localFilePath);
+	    final TokenBuffer sentences = new TokenBuffer();
+	    final TokenizerFactory<CoreLabel> tokenizerFactory = TokenizerFactories.getFactory(tokenizerClassPath, TokenizerFactories.options(true, tokenizeNLs, tokenizerOptions));
+	    final long start = System.nanoTime();
+	    Textdocument.readTextDocument(inputFormat, uploadedFile, localFilePath, paragraph -> tokenizeParagraph(tokenizerFactory, paragraph, sentences));
+	    ModuleMetrics.getInstance().tokens(sentences.tokens(), System.nanoTime() - start);
 
-	    BinaryValueManager bvm = new DefaultBinaryValueManager(context);
-	    Base64BinaryDocument bvfis = null; 
-	    if ("".equals(text)) {
+	    BinaryValue result = null;
+	    if (sentences.sentences() == 0) {
 		LOG.error("No text extracted from the word processor document!");
 	    } else {
-		tokenizeString(text, outputFormat);
-		bvfis = Base64BinaryDocument.getInstance(bvm, Files.newInputStream(tempOutFile));
+		outputStream = new SpillingOutputStream(outputSpillThreshold);
+		Spreadsheet.createSpreadsheet(sentences, outputFormat, outputStream, backgroundSymbol);
+		result = outputStream.toBinaryValue(context);
 	    }
-	    return bvfis;
+	    return result;
         } catch (IOException ioe) {
 	    throw new XPathException(this, "Error while reading document: " + ioe.getMessage(), ioe);
         } finally {
             context.popDocumentContext();
-	    if (tempInFile != null) {
-		TemporaryFileManager.getInstance().returnTemporaryFile(tempInFile);
-	    }
-	    if (tempOutFile != null) {
-		TemporaryFileManager.getInstance().returnTemporaryFile(tempOutFile);
+	    if (outputStream != null) {
+		outputStream.release();
 	    }
 
         }
     }
 
-    private void tokenizeString(String text, final OutDocType outputFormat) {
-	PTBTokenizer<CoreLabel> tokenizer =
-	    PTBTokenizer.newPTBTokenizer(new StringReader(text), tokenizeNLs, true);
-	cachedTokenizer = tokenizer;
+    /**
+     * Tokenizes the string without any sentence splitting or intermediary documents.
+     * Tokens are returned with their original text, not the PTB escaped form.
+     */
+    private Sequence tokenizeString(final TokenizerFactory<CoreLabel> stringTokenizerFactory, final String text, final boolean offsets) throws XPathException {
+	final long start = System.nanoTime();
+	ValueSequence result = new ValueSequence();
+	Tokenizer<CoreLabel> tokenizer = stringTokenizerFactory.getTokenizer(new StringReader(text));
+	MemTreeBuilder builder = offsets ? context.getDocumentBuilder() : null;
+	while (tokenizer.hasNext()) {
+	    CoreLabel token = tokenizer.next();
+	    final int begin = token.beginPosition();
+	    final int end = token.endPosition();
+	    final String value = begin >= 0 && end <= text.length() ? text.substring(begin, end) : token.word();
+	    if (offsets) {
+		AttributesImpl attribs = new AttributesImpl();
+		attribs.addAttribute("", "begin", "begin", "CDATA", String.valueOf(begin));
+		attribs.addAttribute("", "end", "end", "CDATA", String.valueOf(end));
+		final int nodeNr = builder.startElement("", "token", "token", attribs);
+		builder.characters(value);
+		builder.endElement();
+		result.add(builder.getDocument().getNode(nodeNr));
+	    } else {
+		result.add(new StringValue(value));
+	    }
+	}
+	ModuleMetrics.getInstance().tokens(result.getItemCount(), System.nanoTime() - start);
+	return result;
+    }
+
+    private static void tokenizeParagraph(TokenizerFactory<CoreLabel> tokenizerFactory, String paragraph, TokenBuffer sentences) {
+	Tokenizer<CoreLabel> tokenizer = tokenizerFactory.getTokenizer(new StringReader(paragraph));
 	List<CoreLabel> tokens = tokenizer.tokenize();
-	List<List<CoreLabel>> sentences = new WordToSentenceProcessor(WordToSentenceProcessor.NewlineIsSentenceBreak.TWO_CONSECUTIVE).wordsToSentences(tokens);
-	Spreadsheet.createSpreadsheet(sentences, tokens.size(), outputFormat, tempOutFile, backgroundSymbol);
+	for (List<CoreLabel> sentence : SENTENCE_SPLITTER.wordsToSentences(tokens)) {
+	    sentences.add(sentence);
+	}
     }
 
 }
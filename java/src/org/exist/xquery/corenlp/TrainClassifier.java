@@ -32,7 +32,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
@@ -77,10 +76,17 @@ import org.exist.util.io.Resource;
 import org.exist.util.io.TemporaryFileManager;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.*;
+import org.exist.xquery.corenlp.util.CancellableCRFClassifier;
+import org.exist.xquery.corenlp.util.Cancellation;
+import org.exist.xquery.corenlp.util.CrossValidation;
 import org.exist.xquery.corenlp.util.DefaultBinaryValueManager;
+import org.exist.xquery.corenlp.util.Evaluation;
+import org.exist.xquery.corenlp.util.SpillingOutputStream;
 import org.exist.xquery.value.*;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 import org.exist.xquery.corenlp.util.Spreadsheet.InputDocType;
+import org.exist.xquery.corenlp.util.TokenBuffer;
 import org.exist.xquery.corenlp.util.Spreadsheet;
 
 import org.jopendocument.dom.ODPackage;
@@ -88,7 +94,7 @@ import org.jopendocument.dom.ODDocument;
 import org.jopendocument.dom.spreadsheet.Sheet;
 import org.jopendocument.dom.spreadsheet.SpreadSheet;
 
-public class TrainClassifier extends BasicFunction {
+public class TrainClassifier extends MeasuredFunction {
     private final static Logger LOG = LogManager.getLogger(TrainClassifier.class);
 
     public final static FunctionSignature signatures[] = {
@@ -99,18 +105,19 @@ public class TrainClassifier extends BasicFunction {
                     new FunctionParameterSequenceType("classifier", Type.STRING, Cardinality.ZERO_OR_ONE,
                         "The fully qualified name of an alternative classifier to load. Must be available on the classpath."),
 		    new FunctionParameterSequenceType("configuration", Type.ELEMENT, Cardinality.EXACTLY_ONE,
-                                "The training configuration, e.g. &lt;parameters&gt;&lt;param name='inputFormat' value='ods'/&gt;&lt;param name='backgroundSymbol' value='O'/&gt;&lt;param name='wordCol' value='0'/&gt;&lt;param name='answerCol' value='1'/&gt;&lt;param name='tagCol' value='2'/&gt;&lt;/parameters&gt;. Available input formats ods (default), xlsx, xls or tsv."),
+                                "The training configuration, e.g. &lt;parameters&gt;&lt;param name='inputFormat' value='ods'/&gt;&lt;param name='backgroundSymbol' value='O'/&gt;&lt;param name='wordCol' value='0'/&gt;&lt;param name='answerCol' value='1'/&gt;&lt;param name='tagCol' value='2'/&gt;&lt;/parameters&gt;. Available input formats ods (default), xlsx, xls or tsv. A time limit in milliseconds can be given as timeout. " +
+                                "With folds set to k of at least 2, k-fold cross-validation is run instead on up to threads threads (default the number of available processors)."),
                         new FunctionParameterSequenceType("uploaded-file", Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE,
                                 "The uploaded file with your annotated text to train a classifier from. If no file is posted in the request you need to provide localFilePath in the configuration parameter.")
                 },
                 new FunctionReturnSequenceType(Type.ITEM, Cardinality.EXACTLY_ONE,
-                        "The trained serialised CRF classifier")
+                        "The trained serialised CRF classifier, or with folds a cross-validation element with the scores per fold and in total")
             )
     };
 
-    private Path tempInFile = null;
-    private Path tempOutFile = null;
-    private BinaryValueFromBinaryString uploadedFileBase64String = null;
+    private SpillingOutputStream outputStream = null;
+    private int outputSpillThreshold = SpillingOutputStream.DEFAULT_THRESHOLD;
+    private BinaryValue uploadedFile = null;
     private AnalyzeContextInfo cachedContextInfo;
     private Properties parameters = new Properties();
     private InputDocType inputFormat = InputDocType.ODS;
@@ -121,6 +128,9 @@ public class TrainClassifier extends BasicFunction {
     private int wordCol = 0;
     private int answerCol = 1;
     private int tagCol = -1;
+    private long timeout = 0;
+    private int folds = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
 
     public TrainClassifier(XQueryContext context, FunctionSignature signature) {
         super(context, signature);
@@ -136,7 +146,9 @@ public class TrainClassifier extends BasicFunction {
     public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
         context.pushDocumentContext();
         try {
-	    Collection<List<CoreLabel>> documents;
+	    TokenBuffer documents;
+	    outputSpillThreshold = Integer.valueOf(StanfordCoreNLPModule.getModuleParameter(context, StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD, String.valueOf(SpillingOutputStream.DEFAULT_THRESHOLD)));
+	    timeout = Long.valueOf(StanfordCoreNLPModule.getModuleParameter(context, Cancellation.TIMEOUT, "0"));
 	    if (!args[0].isEmpty()) {
 		classifierClassPath = args[0].getStringValue();
 	    }
@@ -146,10 +158,8 @@ public class TrainClassifier extends BasicFunction {
 	    }
 
 	    if (!args[2].isEmpty()) {
-		uploadedFileBase64String = new BinaryValueFromBinaryString(new Base64BinaryValueType(), args[2].getStringValue());
+		uploadedFile = (BinaryValue) args[2].itemAt(0);
 	    }
-	    tempInFile = TemporaryFileManager.getInstance().getTemporaryFile();
-	    tempOutFile = TemporaryFileManager.getInstance().getTemporaryFile();
 
 	    for (String property : parameters.stringPropertyNames()) {
 		if ("inputFormat".equals(property)) {
@@ -181,40 +191,105 @@ public class TrainClassifier extends BasicFunction {
 		} else if ("tagCol".equals(property)) {
 		    String value = parameters.getProperty(property);
 		    tagCol = Integer.valueOf(value);
-		} 
+		} else if (Cancellation.TIMEOUT.equals(property)) {
+		    String value = parameters.getProperty(property);
+		    timeout = Long.valueOf(value);
+		} else if (StanfordCoreNLPModule.OUTPUT_SPILL_THRESHOLD.equals(property)) {
+		    String value = parameters.getProperty(property);
+		    outputSpillThreshold = Integer.valueOf(value);
+		} else if ("folds".equals(property)) {
+		    String value = parameters.getProperty(property);
+		    folds = Integer.valueOf(value);
+		} else if ("threads".equals(property)) {
+		    String value = parameters.getProperty(property);
+		    threads = Integer.valueOf(value);
+		}
 	    }
  
-	    documents = Spreadsheet.readSpreadsheet(inputFormat, uploadedFileBase64String, localFilePath, tagCol);
+	    final Cancellation cancellation = new Cancellation(context, this, timeout);
+	    documents = Spreadsheet.readSpreadsheet(inputFormat, uploadedFile, localFilePath, tagCol);
+	    cancellation.check();
 
-	    BinaryValueManager bvm = new DefaultBinaryValueManager(context);
-	    Base64BinaryDocument bvfis = null;
-	    if (documents.isEmpty()) {
+	    BinaryValue result = null;
+	    if (documents.sentences() == 0) {
 		LOG.error("No annotated text extracted from the spreadsheet document!");
 		throw new XPathException(this, "No annotated text extracted from the spreadsheet document!");
+	    } else if (folds > 0) {
+		return crossValidate(documents, cancellation);
 	    } else {
-		trainClassifier(documents, inputFormat);
-		bvfis = Base64BinaryDocument.getInstance(bvm, Files.newInputStream(tempOutFile));
+		outputStream = new SpillingOutputStream(outputSpillThreshold);
+		try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, "uploaded")) {
+		    trainClassifier(documents, inputFormat, cancellation);
+		}
+		result = outputStream.toBinaryValue(context);
 	    }
-	    return bvfis;
+	    return result;
         } catch (IOException ioe) {
 	    throw new XPathException(this, "Error while reading text document: " + ioe.getMessage(), ioe);
         } finally {
             context.popDocumentContext();
-	    if (tempInFile != null) {
-		TemporaryFileManager.getInstance().returnTemporaryFile(tempInFile);
-	    }
-	    if (tempOutFile != null) {
-		TemporaryFileManager.getInstance().returnTemporaryFile(tempOutFile);
+	    if (outputStream != null) {
+		outputStream.release();
 	    }
 
         }
     }
 
-    private void trainClassifier(Collection<List<CoreLabel>> documents, final InputDocType inputFormat) throws XPathException {
+    /**
+     * Trains and evaluates the fold models on as many threads as permitted and
+     * as fit into the free model memory budget. The features and a single fold
+     * are admitted even if that takes evicting cached models.
+     */
+    private Sequence crossValidate(final TokenBuffer documents, final Cancellation cancellation) throws XPathException {
+	final ModelMemoryManager memoryManager = ModelMemoryManager.getInstance();
+	final String features = memoryManager.uniqueName("cross-validation features");
+	final String reservation = memoryManager.uniqueName("cross-validation");
+	final long start = System.nanoTime();
+	try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.getInstance().acquire(this, "uploaded", threads)) {
+	    final CrossValidation crossValidation = new CrossValidation(documents, folds, defaultProperties(), backgroundSymbol, cancellation);
+	    memoryManager.admit(features, "cross-validation features", crossValidation.estimateFeatureSize());
+	    final int parallel;
+	    try {
+		crossValidation.extractFeatures();
+		final long foldSize = Math.max(1, crossValidation.estimateFoldSize());
+		final long available = Math.max(0, memoryManager.getBudget() - memoryManager.getUsed());
+		parallel = (int) Math.max(1, Math.min(Math.min(permit.getPermits(), folds), available / foldSize));
+		memoryManager.admit(reservation, "cross-validation", parallel * foldSize);
+		try {
+		    crossValidation.run(parallel);
+		} finally {
+		    memoryManager.release(reservation);
+		}
+	    } finally {
+		memoryManager.release(features);
+	    }
+	    final long elapsed = System.nanoTime() - start;
+
+	    final Evaluation evaluation = crossValidation.getEvaluation();
+	    final MemTreeBuilder builder = context.getDocumentBuilder();
+	    final AttributesImpl attribs = new AttributesImpl();
+	    attribs.addAttribute("", "folds", "folds", "CDATA", String.valueOf(folds));
+	    attribs.addAttribute("", "sentences", "sentences", "CDATA", String.valueOf(evaluation.getSentences()));
+	    attribs.addAttribute("", "tokens", "tokens", "CDATA", String.valueOf(evaluation.getTokens()));
+	    attribs.addAttribute("", "token-accuracy", "token-accuracy", "CDATA", Evaluation.format(evaluation.getTokenAccuracy()));
+	    attribs.addAttribute("", "f1", "f1", "CDATA", Evaluation.format(evaluation.getF1()));
+	    attribs.addAttribute("", "f1-stddev", "f1-stddev", "CDATA", Evaluation.format(crossValidation.getF1Deviation()));
+	    attribs.addAttribute("", "threads", "threads", "CDATA", String.valueOf(parallel));
+	    attribs.addAttribute("", "milliseconds", "milliseconds", "CDATA", String.valueOf(elapsed / 1000000));
+	    final int nodeNr = builder.startElement("", "cross-validation", "cross-validation", attribs);
+	    crossValidation.write(builder);
+	    builder.endElement();
+	    return builder.getDocument().getNode(nodeNr);
+	}
+    }
+
+    /**
+     * The CRF feature settings used in training.
+     */
+    static Properties defaultProperties() {
 	final Properties props = new Properties();
 	// fixme! - check ocrTrain configurable under other name?
 	//props.setProperty("ocrTrain", "true");
-	//props.setProperty("serializeTo", tempOutFile.toAbsolutePath().toString());
 	props.setProperty("useClassFeature", "true");
 	props.setProperty("useWord", "true");
 	props.setProperty("useNGrams", "true");
@@ -230,18 +305,29 @@ public class TrainClassifier extends BasicFunction {
 	props.setProperty("useTypeSeqs2", "true");
 	props.setProperty("useTypeySequences", "true");
 	props.setProperty("wordShape", "chris2useLC");
+	return props;
+    }
 
-	CRFClassifier<CoreLabel> classifier = new CRFClassifier(props);
-        classifier.train(documents, new ColumnDocumentReaderAndWriter());
+    private void trainClassifier(TokenBuffer documents, final InputDocType inputFormat, final Cancellation cancellation) throws XPathException {
+	CRFClassifier<CoreLabel> classifier = new CancellableCRFClassifier(defaultProperties(), cancellation);
+	try {
+	    classifier.train(documents.documents(), new ColumnDocumentReaderAndWriter());
+	} catch (Cancellation.CancelledException e) {
+	    throw e.getCause();
+	}
 	if (gzipOutput) {
 	    try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(
-			new GZIPOutputStream(Files.newOutputStream(tempOutFile))))) {
+			new GZIPOutputStream(outputStream)))) {
 	    classifier.serializeClassifier(oos);
 	    } catch (IOException ioe) {
-		throw new XPathException(this, "Unable to write gzipped serialized classifier to temp file: " + ioe.getMessage(), ioe);
+		throw new XPathException(this, "Unable to write gzipped serialized classifier: " + ioe.getMessage(), ioe);
 	    }
 	} else {
-	    classifier.serializeClassifier(tempOutFile.toAbsolutePath().toString());
+	    try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(outputStream))) {
+		classifier.serializeClassifier(oos);
+	    } catch (IOException ioe) {
+		throw new XPathException(this, "Unable to write serialized classifier: " + ioe.getMessage(), ioe);
+	    }
 	}
     }
 }
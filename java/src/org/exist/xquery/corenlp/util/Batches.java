@@ -0,0 +1,88 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.exist.xquery.XPathException;
+
+/**
+ * Processes the items of a list, e.g. sentences, in batches on parallel
+ * threads. A list of a single batch is processed on the calling thread.
+ *
+ * @author ljo
+ */
+public class Batches {
+
+    public interface Task<T> {
+	void process(int index, T item) throws Exception;
+    }
+
+    /**
+     * Runs the task for every item, in batches of batchSize items on up to threads
+     * threads, and waits for all of them.
+     */
+    public static <T> void process(final List<T> items, final int batchSize, final int threads, final Task<T> task) throws XPathException {
+	final int batches = (items.size() + batchSize - 1) / batchSize;
+	if (threads <= 1 || batches <= 1) {
+	    for (int i = 0; i < items.size(); i++) {
+		try {
+		    task.process(i, items.get(i));
+		} catch (XPathException e) {
+		    throw e;
+		} catch (Exception e) {
+		    throw new XPathException(e.getMessage(), e);
+		}
+	    }
+	    return;
+	}
+
+	final ExecutorService executor = ModuleExecutors.newComputeExecutor(Math.min(threads, batches));
+	try {
+	    final List<Future<?>> futures = new ArrayList<>(batches);
+	    for (int from = 0; from < items.size(); from += batchSize) {
+		final int start = from;
+		final int end = Math.min(from + batchSize, items.size());
+		futures.add(executor.submit(() -> {
+		    for (int i = start; i < end; i++) {
+			task.process(i, items.get(i));
+		    }
+		    return null;
+		}));
+	    }
+	    for (Future<?> future : futures) {
+		future.get();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new XPathException("Interrupted while processing batches");
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof XPathException) {
+		throw (XPathException) e.getCause();
+	    }
+	    throw new XPathException(e.getCause().getMessage(), e.getCause());
+	} finally {
+	    executor.shutdownNow();
+	}
+    }
+}
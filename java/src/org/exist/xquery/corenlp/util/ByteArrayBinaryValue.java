@@ -0,0 +1,79 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.BinaryValueManager;
+import org.exist.xquery.value.BinaryValueType;
+
+/**
+ * Binary value reading directly from a byte array, without caching a copy of it.
+ * Converting it to another binary type shares the array.
+ *
+ * @author ljo
+ */
+public class ByteArrayBinaryValue extends BinaryValue {
+    private final byte[] buf;
+    private final int count;
+    private boolean closed = false;
+
+    public ByteArrayBinaryValue(BinaryValueManager manager, BinaryValueType binaryValueType, byte[] buf, int count) {
+	super(manager, binaryValueType);
+	this.buf = buf;
+	this.count = count;
+    }
+
+    @Override
+    public BinaryValue convertTo(BinaryValueType binaryValueType) throws XPathException {
+	if (binaryValueType.getClass().equals(getBinaryValueType().getClass())) {
+	    return this;
+	}
+	return new ByteArrayBinaryValue(getManager(), binaryValueType, buf, count);
+    }
+
+    @Override
+    public void streamBinaryTo(OutputStream os) throws IOException {
+	os.write(buf, 0, count);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+	return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    @Override
+    public boolean isClosed() {
+	return closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+	closed = true;
+    }
+
+    @Override
+    public void incrementSharedReferences() {
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ie.crf.CRFLabel;
+import edu.stanford.nlp.ie.crf.CliquePotentialFunction;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.Index;
+
+import org.exist.xquery.XPathException;
+
+/**
+ * Access to the weights and feature index of CRF classifiers, which CoreNLP
+ * keeps package private, and compaction of trained models: features whose
+ * weights are all close to zero are pruned, the remaining weights can be
+ * reduced in precision and the feature index is replaced by a
+ * {@link CompactIndex}. The result is still an ordinary CRFClassifier.
+ *
+ * @author ljo
+ */
+public class CRFModels {
+
+    public enum Precision {DOUBLE, FLOAT, INT16, INT8};
+
+    private final static Field WEIGHTS = field("weights");
+    private final static Field FEATURE_INDEX = field("featureIndex");
+    private final static Field CLIQUE_POTENTIAL_FUNCTION = field("cliquePotentialFunction");
+    private final static Field LABEL_INDICES = field("labelIndices");
+    private final static Field MAP = field("map");
+
+    public static class CompactionReport {
+	public int features;
+	public int keptFeatures;
+	public long weights;
+	public long nonZeroWeights;
+	public double threshold;
+	public Precision precision;
+
+	@Override
+	public String toString() {
+	    return "kept " + keptFeatures + " of " + features + " features, " + nonZeroWeights + " of " + weights +
+		" weights non-zero (threshold " + threshold + ", precision " + precision.name().toLowerCase() + ")";
+	}
+    }
+
+    private static Field field(final String name) {
+	try {
+	    final Field field = CRFClassifier.class.getDeclaredField(name);
+	    field.setAccessible(true);
+	    return field;
+	} catch (NoSuchFieldException | SecurityException e) {
+	    return null;
+	}
+    }
+
+    private static Field checked(final Field field) throws XPathException {
+	if (field == null) {
+	    throw new XPathException("The CRFClassifier of this CoreNLP version does not provide access to its weights and feature index");
+	}
+	return field;
+    }
+
+    public static double[][] getWeights(final CRFClassifier<?> classifier) throws XPathException {
+	try {
+	    return (double[][]) checked(WEIGHTS).get(classifier);
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+    }
+
+    /**
+     * Replaces the weights, dropping the clique potential function created from the previous ones.
+     */
+    public static void setWeights(final CRFClassifier<?> classifier, final double[][] weights) throws XPathException {
+	try {
+	    checked(WEIGHTS).set(classifier, weights);
+	    checked(CLIQUE_POTENTIAL_FUNCTION).set(classifier, null);
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+    }
+
+    /**
+     * Replaces the clique potential function used in classification, which is otherwise created from the weights.
+     */
+    public static void setCliquePotentialFunction(final CRFClassifier<?> classifier, final CliquePotentialFunction function) throws XPathException {
+	try {
+	    checked(CLIQUE_POTENTIAL_FUNCTION).set(classifier, function);
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Index<String> getFeatureIndex(final CRFClassifier<?> classifier) throws XPathException {
+	try {
+	    return (Index<String>) checked(FEATURE_INDEX).get(classifier);
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+    }
+
+    public static void setFeatureIndex(final CRFClassifier<?> classifier, final Index<String> featureIndex) throws XPathException {
+	try {
+	    checked(FEATURE_INDEX).set(classifier, featureIndex);
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+    }
+
+    /**
+     * Returns the number of weights the classifier has or will have once
+     * trained, from the clique size of each feature in its feature index.
+     */
+    @SuppressWarnings("unchecked")
+    public static long countWeights(final CRFClassifier<?> classifier) throws XPathException {
+	try {
+	    final List<Index<CRFLabel>> labelIndices = (List<Index<CRFLabel>>) checked(LABEL_INDICES).get(classifier);
+	    final int[] map = (int[]) checked(MAP).get(classifier);
+	    if (labelIndices == null || map == null) {
+		throw new XPathException("The classifier has no feature index yet");
+	    }
+	    long weights = 0;
+	    for (int clique : map) {
+		weights += labelIndices.get(clique).size();
+	    }
+	    return weights;
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+    }
+
+    /**
+     * Converts weights as returned by the optimizer to the per feature arrays used in classification.
+     */
+    @SuppressWarnings("unchecked")
+    public static double[][] to2D(final CRFClassifier<?> classifier, final double[] weights) throws XPathException {
+	try {
+	    return classifier.to2D(weights, (List<Index<CRFLabel>>) checked(LABEL_INDICES).get(classifier), (int[]) checked(MAP).get(classifier));
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+    }
+
+    /**
+     * Makes a classifier share the flags, feature factories, feature and label
+     * indices of another one, without its weights. The shared state is only
+     * read in training and classification, so both can be trained and used
+     * concurrently.
+     */
+    public static void share(final CRFClassifier<?> from, final CRFClassifier<?> to) throws XPathException {
+	try {
+	    for (Class<?> c : new Class<?>[] {AbstractSequenceClassifier.class, CRFClassifier.class}) {
+		for (Field field : c.getDeclaredFields()) {
+		    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+			field.setAccessible(true);
+			field.set(to, field.get(from));
+		    }
+		}
+	    }
+	} catch (IllegalAccessException | SecurityException e) {
+	    throw new XPathException("The CRFClassifier of this CoreNLP version does not allow sharing its feature index: " + e.getMessage(), e);
+	}
+	setWeights(to, null);
+    }
+
+    /**
+     * Compacts the classifier in place.
+     *
+     * @param threshold weights with a smaller absolute value are set to zero; features
+     *        with only such weights are removed
+     * @param precision precision the remaining weights are rounded to. They are still
+     *        held as doubles, but compress considerably better when serialized.
+     */
+    public static CompactionReport compact(final CRFClassifier<?> classifier, final double threshold, final Precision precision) throws XPathException {
+	final double[][] weights = getWeights(classifier);
+	final Index<String> featureIndex = getFeatureIndex(classifier);
+	if (weights == null || featureIndex == null || weights.length != featureIndex.size()) {
+	    throw new XPathException("The classifier has no trained weights to compact");
+	}
+
+	double max = 0.0;
+	for (double[] row : weights) {
+	    for (double w : row) {
+		max = Math.max(max, Math.abs(w));
+	    }
+	}
+	final double scale;
+	switch (precision) {
+	case INT16:
+	    scale = max / Short.MAX_VALUE;
+	    break;
+	case INT8:
+	    scale = max / Byte.MAX_VALUE;
+	    break;
+	default:
+	    scale = 0.0;
+	}
+
+	final int[] map;
+	try {
+	    map = (int[]) checked(MAP).get(classifier);
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+	if (map == null || map.length != weights.length) {
+	    throw new XPathException("The classifier's feature to clique map does not match its weights");
+	}
+
+	final CompactionReport report = new CompactionReport();
+	report.features = weights.length;
+	report.threshold = threshold;
+	report.precision = precision;
+	final List<String> keptFeatures = new ArrayList<>();
+	final List<double[]> keptWeights = new ArrayList<>();
+	final int[] keptMap = new int[map.length];
+	final Iterator<String> features = featureIndex.iterator();
+	for (int f = 0; f < weights.length; f++) {
+	    final double[] row = weights[f];
+	    final String feature = features.next();
+	    final double[] kept = new double[row.length];
+	    boolean nonZero = false;
+	    for (int i = 0; i < row.length; i++) {
+		report.weights++;
+		if (Math.abs(row[i]) >= threshold) {
+		    kept[i] = round(row[i], precision, scale);
+		    if (kept[i] != 0.0) {
+			report.nonZeroWeights++;
+			nonZero = true;
+		    }
+		}
+	    }
+	    if (nonZero) {
+		keptMap[keptFeatures.size()] = map[f];
+		keptFeatures.add(feature);
+		keptWeights.add(kept);
+	    } else {
+		report.weights -= row.length;
+	    }
+	}
+	report.keptFeatures = keptFeatures.size();
+
+	setWeights(classifier, keptWeights.toArray(new double[keptWeights.size()][]));
+	setFeatureIndex(classifier, new CompactIndex(keptFeatures));
+	try {
+	    // the clique of each feature, renumbered in step with the feature index
+	    checked(MAP).set(classifier, Arrays.copyOf(keptMap, keptFeatures.size()));
+	} catch (IllegalAccessException e) {
+	    throw new XPathException(e.getMessage(), e);
+	}
+	return report;
+    }
+
+    private static double round(final double w, final Precision precision, final double scale) {
+	switch (precision) {
+	case FLOAT:
+	    return (float) w;
+	case INT16:
+	case INT8:
+	    return scale == 0.0 ? 0.0 : Math.round(w / scale) * scale;
+	default:
+	    return w;
+	}
+    }
+
+    /**
+     * Returns the fraction of tokens given the same label in both classifications of a text.
+     */
+    public static double agreement(final List<List<CoreLabel>> expected, final List<List<CoreLabel>> actual) {
+	long tokens = 0;
+	long same = 0;
+	for (int s = 0; s < Math.min(expected.size(), actual.size()); s++) {
+	    final List<CoreLabel> expectedSentence = expected.get(s);
+	    final List<CoreLabel> actualSentence = actual.get(s);
+	    for (int t = 0; t < Math.min(expectedSentence.size(), actualSentence.size()); t++) {
+		tokens++;
+		final String label = expectedSentence.get(t).get(CoreAnnotations.AnswerAnnotation.class);
+		if (label != null && label.equals(actualSentence.get(t).get(CoreAnnotations.AnswerAnnotation.class))) {
+		    same++;
+		}
+	    }
+	}
+	return tokens == 0 ? 1.0 : (double) same / tokens;
+    }
+}
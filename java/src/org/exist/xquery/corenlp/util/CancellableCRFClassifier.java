@@ -0,0 +1,111 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.optimization.DiffFunction;
+import edu.stanford.nlp.optimization.Evaluator;
+import edu.stanford.nlp.optimization.Minimizer;
+import edu.stanford.nlp.optimization.QNMinimizer;
+import edu.stanford.nlp.util.CallbackFunction;
+import edu.stanford.nlp.util.MaxSizeConcurrentHashSet;
+import edu.stanford.nlp.util.Triple;
+
+import org.exist.xquery.XPathException;
+
+/**
+ * CRF classifier whose training checks for cancellation after each iteration
+ * of the optimizer. Besides training from documents, the feature and label
+ * indices can be built once and shared with further classifiers, which are
+ * then trained on parts of the same converted documents, as in cross-validation.
+ *
+ * @author ljo
+ */
+public class CancellableCRFClassifier extends CRFClassifier<CoreLabel> {
+    private final Cancellation cancellation;
+
+    public CancellableCRFClassifier(final Properties props, final Cancellation cancellation) {
+	super(props);
+	this.cancellation = cancellation;
+    }
+
+    /**
+     * Creates an untrained classifier sharing the indices of the given one.
+     * Known lower case words, which classification may add to, are copied.
+     */
+    public CancellableCRFClassifier(final CancellableCRFClassifier base) throws XPathException {
+	super(base.flags);
+	this.cancellation = base.cancellation;
+	CRFModels.share(base, this);
+	knownLCWords = new MaxSizeConcurrentHashSet<>(base.knownLCWords);
+	knownLCWords.setMaxSize(knownLCWords.size() + flags.maxAdditionalKnownLCWords);
+    }
+
+    @Override
+    public Minimizer<DiffFunction> getMinimizer(int featurePruneIteration, Evaluator[] evaluators) {
+	final Minimizer<DiffFunction> minimizer = super.getMinimizer(featurePruneIteration, evaluators);
+	if (minimizer instanceof QNMinimizer) {
+	    ((QNMinimizer) minimizer).setIterationCallbackFunction(new CallbackFunction() {
+		    @Override
+		    public void callback(Object... iteration) {
+			cancellation.checkUnchecked();
+		    }
+		});
+	}
+	return minimizer;
+    }
+
+    /**
+     * Builds the feature and label indices from the documents, as training does.
+     */
+    public void index(final Collection<List<CoreLabel>> documents) {
+	makeAnswerArraysAndTagIndex(documents);
+    }
+
+    /**
+     * Trains the weights on documents converted by documentsToDataAndLabelsList
+     * of a classifier with the same indices. Features not occurring in them
+     * keep a weight of zero.
+     *
+     * @throws XPathException if cancelled
+     */
+    public void train(final List<Triple<int[][][], int[], double[][][]>> documents) throws XPathException {
+	final int[][][][] data = new int[documents.size()][][][];
+	final int[][] labels = new int[documents.size()][];
+	final double[][][][] featureVals = documents.isEmpty() || documents.get(0).third() == null ? null : new double[documents.size()][][][];
+	for (int i = 0; i < data.length; i++) {
+	    final Triple<int[][][], int[], double[][][]> document = documents.get(i);
+	    data[i] = document.first();
+	    labels[i] = document.second();
+	    if (featureVals != null) {
+		featureVals[i] = document.third();
+	    }
+	}
+	try {
+	    CRFModels.setWeights(this, CRFModels.to2D(this, trainWeights(data, labels, new Evaluator[0], 0, featureVals)));
+	} catch (Cancellation.CancelledException e) {
+	    throw e.getCause();
+	}
+    }
+}
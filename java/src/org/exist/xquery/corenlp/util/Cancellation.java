@@ -0,0 +1,116 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.XQueryWatchDog;
+
+/**
+ * Cooperative cancellation of long running annotation work. The work checks
+ * in between sentences or optimizer iterations and is stopped when the query
+ * has been killed through eXist's watchdog or the time limit of the call has
+ * passed. Can be checked from any thread.
+ *
+ * @author ljo
+ */
+public class Cancellation {
+    /**
+     * Module and configuration parameter: time limit in milliseconds of a
+     * single call, 0 (default) for no limit besides the query timeout.
+     */
+    public final static String TIMEOUT = "timeout";
+
+    public final static Cancellation NONE = new Cancellation(null, null, 0);
+
+    private final XQueryWatchDog watchDog;
+    private final Expression expression;
+    private final long timeout;
+    private final long deadline;
+    private volatile XPathException cancelled = null;
+
+    /**
+     * @param context the query context, whose watchdog is consulted, or null
+     * @param expression the calling function, reported in the error
+     * @param timeout time limit in milliseconds from now, 0 for none
+     */
+    public Cancellation(final XQueryContext context, final Expression expression, final long timeout) {
+	this.watchDog = context == null ? null : context.getWatchDog();
+	this.expression = expression;
+	this.timeout = timeout;
+	this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Throws if the query has been killed or the time limit has passed.
+     */
+    public void check() throws XPathException {
+	if (cancelled == null) {
+	    if (watchDog != null) {
+		try {
+		    watchDog.proceed(expression);
+		} catch (XPathException e) {
+		    cancelled = e;
+		}
+	    }
+	    if (cancelled == null && timeout > 0 && System.nanoTime() - deadline > 0) {
+		cancelled = new XPathException(expression, "Cancelled after exceeding the time limit of " + timeout + " ms");
+	    }
+	}
+	if (cancelled != null) {
+	    throw cancelled;
+	}
+    }
+
+    /**
+     * As check(), for callbacks and iterators that cannot throw checked exceptions.
+     */
+    public void checkUnchecked() {
+	try {
+	    check();
+	} catch (XPathException e) {
+	    throw new CancelledException(e);
+	}
+    }
+
+    public boolean isCancelled() {
+	try {
+	    check();
+	    return false;
+	} catch (XPathException e) {
+	    return true;
+	}
+    }
+
+    public static class CancelledException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public CancelledException(final XPathException cause) {
+	    super(cause.getMessage(), cause);
+	}
+
+	@Override
+	public synchronized XPathException getCause() {
+	    return (XPathException) super.getCause();
+	}
+    }
+}
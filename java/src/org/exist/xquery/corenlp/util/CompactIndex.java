@@ -0,0 +1,145 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+
+/**
+ * Immutable feature index backed by primitive arrays. All strings are kept
+ * in one char array with their offsets in an int array, and looked up
+ * through an open addressing hash table of ints using the cached hash code
+ * of the string looked up. Compared to a HashIndex this saves the String,
+ * boxed Integer and hash map entry objects of every feature, several times
+ * the size of the feature text itself.
+ *
+ * @author ljo
+ */
+public class CompactIndex extends ImmutableIndex {
+    private static final long serialVersionUID = 1L;
+
+    private final char[] chars;
+    private final int[] offsets;
+    // index + 1 of the string in each slot, 0 for empty slots; rebuilt on deserialization
+    private transient int[] table;
+
+    public CompactIndex(final List<String> strings) {
+	int length = 0;
+	for (String s : strings) {
+	    length += s.length();
+	}
+	chars = new char[length];
+	offsets = new int[strings.size() + 1];
+	int offset = 0;
+	for (int i = 0; i < strings.size(); i++) {
+	    final String s = strings.get(i);
+	    s.getChars(0, s.length(), chars, offset);
+	    offsets[i] = offset;
+	    offset += s.length();
+	}
+	offsets[strings.size()] = offset;
+	buildTable();
+    }
+
+    private void buildTable() {
+	table = hashTable(chars, offsets);
+    }
+
+    /**
+     * Builds the open addressing table for the strings at the given offsets:
+     * a power of two sized int array holding index + 1 of the string in each
+     * slot, 0 for empty slots, probed linearly from String.hashCode().
+     */
+    static int[] hashTable(final char[] chars, final int[] offsets) {
+	final int size = offsets.length - 1;
+	int capacity = 16;
+	while (capacity < size * 2) {
+	    capacity <<= 1;
+	}
+	final int[] table = new int[capacity];
+	final int mask = capacity - 1;
+	for (int i = 0; i < size; i++) {
+	    int h = 0;
+	    for (int c = offsets[i]; c < offsets[i + 1]; c++) {
+		h = 31 * h + chars[c];
+	    }
+	    int slot = h & mask;
+	    while (table[slot] != 0) {
+		slot = (slot + 1) & mask;
+	    }
+	    table[slot] = i + 1;
+	}
+	return table;
+    }
+
+    private boolean equalsAt(final int index, final String s) {
+	final int start = offsets[index];
+	final int length = offsets[index + 1] - start;
+	if (length != s.length()) {
+	    return false;
+	}
+	for (int i = 0; i < length; i++) {
+	    if (chars[start + i] != s.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	buildTable();
+    }
+
+    @Override
+    public int size() {
+	return offsets.length - 1;
+    }
+
+    @Override
+    public String get(final int i) {
+	if (i < 0 || i >= size()) {
+	    throw new ArrayIndexOutOfBoundsException("Index " + i + " outside [0, " + size() + ")");
+	}
+	return new String(chars, offsets[i], offsets[i + 1] - offsets[i]);
+    }
+
+    @Override
+    public int indexOf(final String s) {
+	if (s == null) {
+	    return -1;
+	}
+	final int mask = table.length - 1;
+	int slot = s.hashCode() & mask;
+	int entry;
+	while ((entry = table[slot]) != 0) {
+	    if (equalsAt(entry - 1, s)) {
+		return entry - 1;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	return -1;
+    }
+
+    @Override
+    public String toString() {
+	return "CompactIndex of " + size() + " entries";
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.Triple;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.XPathException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * k-fold cross-validation of CRF training. The sentences are split into k
+ * contiguous folds; each fold is classified by a model trained on the other
+ * ones. Features are extracted and indexed once for all sentences and shared
+ * by the fold models, which are trained concurrently. Apart from labels only
+ * occurring in the held-out fold, a fold model scores as one trained on its
+ * sentences alone.
+ *
+ * @author ljo
+ */
+public class CrossValidation {
+    /**
+     * Doubles per weight held while training besides the two per remembered
+     * iteration of the QN minimizer: weights, gradients, search direction and
+     * the counts of the objective function.
+     */
+    private final static int DOUBLES_PER_WEIGHT = 8;
+    /**
+     * Sentences whose features are extracted to estimate the size of the
+     * features of all sentences.
+     */
+    private final static int SAMPLE_SENTENCES = 500;
+    /**
+     * Heap bytes per distinct feature: its string and its entries in the
+     * feature index.
+     */
+    private final static int BYTES_PER_FEATURE = 220;
+
+    private final TokenBuffer documents;
+    private final int folds;
+    private final String backgroundSymbol;
+    private final Cancellation cancellation;
+    private final CancellableCRFClassifier base;
+    private final Properties props;
+    private List<Triple<int[][][], int[], double[][][]>> data = null;
+    private final Evaluation[] evaluations;
+    private final long[] foldNanos;
+    private final long[] classifyNanos;
+
+    /**
+     * @throws XPathException if there are fewer sentences than folds
+     */
+    public CrossValidation(final TokenBuffer documents, final int folds, final Properties props, final String backgroundSymbol, final Cancellation cancellation) throws XPathException {
+	if (folds < 2 || folds > documents.sentences()) {
+	    throw new XPathException("The number of folds must be between 2 and the number of sentences, " + documents.sentences() + ", but is " + folds);
+	}
+	this.documents = documents;
+	this.folds = folds;
+	this.backgroundSymbol = backgroundSymbol;
+	this.cancellation = cancellation;
+	this.props = props;
+	this.base = new CancellableCRFClassifier(props, cancellation);
+	this.evaluations = new Evaluation[folds];
+	this.foldNanos = new long[folds];
+	this.classifyNanos = new long[folds];
+    }
+
+    public int getFolds() {
+	return folds;
+    }
+
+    /**
+     * Estimated heap bytes taken by the features of all sentences, extrapolated
+     * from those of the first sentences. The number of distinct features is
+     * assumed to grow in proportion to the tokens, which overestimates it for
+     * large documents.
+     */
+    public long estimateFeatureSize() throws XPathException {
+	final List<List<CoreLabel>> sample = documents.documents().subList(0, Math.min(SAMPLE_SENTENCES, documents.sentences()));
+	final CancellableCRFClassifier probe = new CancellableCRFClassifier(props, cancellation);
+	probe.index(sample);
+	long bytes = (long) CRFModels.getFeatureIndex(probe).size() * BYTES_PER_FEATURE;
+	long tokens = 0;
+	for (Triple<int[][][], int[], double[][][]> sentence : probe.documentsToDataAndLabelsList(sample)) {
+	    // array headers of 16 bytes, references of 8 bytes
+	    bytes += 16 + 8L * sentence.first().length + 16 + 4L * sentence.second().length;
+	    for (int[][] token : sentence.first()) {
+		bytes += 16 + 8L * token.length;
+		for (int[] clique : token) {
+		    bytes += 16 + 4L * clique.length;
+		}
+	    }
+	    tokens += sentence.first().length;
+	}
+	cancellation.check();
+	return tokens == 0 ? 0 : bytes * documents.tokens() / tokens;
+    }
+
+    /**
+     * Extracts and indexes the features of all sentences.
+     */
+    public void extractFeatures() throws XPathException {
+	base.index(documents.documents());
+	cancellation.check();
+	data = base.documentsToDataAndLabelsList(documents.documents());
+	cancellation.check();
+    }
+
+    private void checkExtracted() throws XPathException {
+	if (data == null) {
+	    throw new XPathException("The features have not been extracted yet");
+	}
+    }
+
+    /**
+     * Estimated heap bytes taken by training one fold model, once the features are extracted.
+     */
+    public long estimateFoldSize() throws XPathException {
+	checkExtracted();
+	return CRFModels.countWeights(base) * (2L * base.flags.QNsize + DOUBLES_PER_WEIGHT) * Double.BYTES;
+    }
+
+    private int first(final int fold) {
+	return (int) ((long) fold * documents.sentences() / folds);
+    }
+
+    /**
+     * Trains and evaluates the fold models, on up to the given number of threads.
+     */
+    public void run(final int threads) throws XPathException {
+	checkExtracted();
+	final ExecutorService executor = ModuleExecutors.newComputeExecutor(Math.min(threads, folds));
+	try {
+	    final List<Future<Evaluation>> results = new ArrayList<>(folds);
+	    for (int fold = 0; fold < folds; fold++) {
+		final int f = fold;
+		results.add(executor.submit(() -> runFold(f)));
+	    }
+	    for (int fold = 0; fold < folds; fold++) {
+		results.get(fold).get();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new XPathException("Interrupted while cross-validating");
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof XPathException) {
+		throw (XPathException) e.getCause();
+	    }
+	    throw new XPathException("Error while cross-validating: " + e.getCause().getMessage(), e.getCause());
+	} finally {
+	    executor.shutdownNow();
+	}
+    }
+
+    private Evaluation runFold(final int fold) throws XPathException {
+	final long start = System.nanoTime();
+	final Evaluation evaluation = evaluate(fold, train(fold));
+	foldNanos[fold] = System.nanoTime() - start;
+	return evaluation;
+    }
+
+    /**
+     * Trains the model of a fold on the other folds.
+     */
+    public CancellableCRFClassifier train(final int fold) throws XPathException {
+	checkExtracted();
+	final int from = first(fold);
+	final int to = first(fold + 1);
+	final List<Triple<int[][][], int[], double[][][]>> training = new ArrayList<>(data.size() - (to - from));
+	training.addAll(data.subList(0, from));
+	training.addAll(data.subList(to, data.size()));
+
+	final CancellableCRFClassifier classifier = new CancellableCRFClassifier(base);
+	classifier.train(training);
+	return classifier;
+    }
+
+    /**
+     * Classifies the sentences of a fold with its model and records the scores
+     * and the CPU time taken, or the elapsed time where the JVM does not measure
+     * thread CPU time.
+     */
+    public Evaluation evaluate(final int fold, final CancellableCRFClassifier classifier) throws XPathException {
+	final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	final boolean cpuTime = threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+	final long start = cpuTime ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+	final Evaluation evaluation = new Evaluation(backgroundSymbol);
+	for (int s = first(fold); s < first(fold + 1); s++) {
+	    cancellation.check();
+	    evaluation.add(documents, s, classifier.classifySentence(documents.sentence(s)));
+	}
+	classifyNanos[fold] = (cpuTime ? threadBean.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+	evaluations[fold] = evaluation;
+	return evaluation;
+    }
+
+    /**
+     * Number of folds evaluated so far.
+     */
+    public int getEvaluatedFolds() {
+	int evaluated = 0;
+	for (Evaluation fold : evaluations) {
+	    if (fold != null) {
+		evaluated++;
+	    }
+	}
+	return evaluated;
+    }
+
+    /**
+     * Tokens classified per second of the evaluated folds.
+     */
+    public long getTokensPerSecond() {
+	long tokens = 0;
+	long nanos = 0;
+	for (int fold = 0; fold < folds; fold++) {
+	    if (evaluations[fold] != null) {
+		tokens += evaluations[fold].getTokens();
+		nanos += classifyNanos[fold];
+	    }
+	}
+	return nanos == 0 ? 0 : tokens * 1000000000L / nanos;
+    }
+
+    /**
+     * The scores of all evaluated folds together.
+     */
+    public Evaluation getEvaluation() {
+	final Evaluation evaluation = new Evaluation(backgroundSymbol);
+	for (Evaluation fold : evaluations) {
+	    if (fold != null) {
+		evaluation.merge(fold);
+	    }
+	}
+	return evaluation;
+    }
+
+    /**
+     * Standard deviation of the F1 of the evaluated folds.
+     */
+    public double getF1Deviation() {
+	final int evaluated = getEvaluatedFolds();
+	if (evaluated == 0) {
+	    return 0.0;
+	}
+	double sum = 0.0;
+	double squares = 0.0;
+	for (Evaluation fold : evaluations) {
+	    if (fold != null) {
+		sum += fold.getF1();
+		squares += fold.getF1() * fold.getF1();
+	    }
+	}
+	final double mean = sum / evaluated;
+	return Math.sqrt(Math.max(0.0, squares / evaluated - mean * mean));
+    }
+
+    /**
+     * Writes a fold element per evaluated fold, followed by the scores of all folds
+     * together as written by {@link Evaluation#write}.
+     */
+    public void write(final MemTreeBuilder builder) {
+	for (int fold = 0; fold < folds; fold++) {
+	    final Evaluation evaluation = evaluations[fold];
+	    if (evaluation == null) {
+		continue;
+	    }
+	    final AttributesImpl attribs = new AttributesImpl();
+	    attribs.addAttribute("", "number", "number", "CDATA", String.valueOf(fold + 1));
+	    attribs.addAttribute("", "sentences", "sentences", "CDATA", String.valueOf(evaluation.getSentences()));
+	    attribs.addAttribute("", "tokens", "tokens", "CDATA", String.valueOf(evaluation.getTokens()));
+	    attribs.addAttribute("", "token-accuracy", "token-accuracy", "CDATA", Evaluation.format(evaluation.getTokenAccuracy()));
+	    attribs.addAttribute("", "f1", "f1", "CDATA", Evaluation.format(evaluation.getF1()));
+	    attribs.addAttribute("", "milliseconds", "milliseconds", "CDATA", String.valueOf(foldNanos[fold] / 1000000));
+	    builder.startElement("", "fold", "fold", attribs);
+	    builder.endElement();
+	}
+	getEvaluation().write(builder);
+    }
+}
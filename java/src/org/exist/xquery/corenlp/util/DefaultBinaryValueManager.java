@@ -35,11 +35,21 @@ public class DefaultBinaryValueManager implements BinaryValueManager {
     private final static Logger LOG = LogManager.getLogger(DefaultBinaryValueManager.class);
     final List<BinaryValue> binaryValues = new ArrayList<>();
     XQueryContext context;
+    String cacheClass = null;
 
     public DefaultBinaryValueManager(XQueryContext context) {
 	this.context = context;
     }
 
+    /**
+     * Creates a manager which overrides the configured binary cache class,
+     * e.g. to keep small generated documents in memory.
+     */
+    public DefaultBinaryValueManager(XQueryContext context, String cacheClass) {
+	this.context = context;
+	this.cacheClass = cacheClass;
+    }
+
     @Override
     public void registerBinaryValueInstance(final BinaryValue binaryValue) {
 	binaryValues.add(binaryValue);
@@ -59,6 +69,9 @@ public class DefaultBinaryValueManager implements BinaryValueManager {
     
     @Override
     public String getCacheClass() {
+	if (cacheClass != null) {
+	    return cacheClass;
+	}
 	return (String) context.getBroker().getBrokerPool().getConfiguration().getProperty(Configuration.BINARY_CACHE_CLASS_PROPERTY);
     }
 }
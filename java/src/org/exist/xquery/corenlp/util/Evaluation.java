@@ -0,0 +1,239 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Scores of a classifier against gold answers: entity level precision,
+ * recall and F1 per label and in total, and a token level confusion matrix.
+ * Entities are maximal runs of tokens with the same label other than the
+ * background symbol; a B- prefix starts a new entity and B- and I- prefixes
+ * are left out of the label. An entity counts as correct if its label and
+ * extent both match. Not thread safe: each thread scores its own sentences,
+ * and the evaluations are merged.
+ *
+ * @author ljo
+ */
+public class Evaluation {
+    private final String backgroundSymbol;
+    // per entity label: correct, gold and guessed entities
+    private final Map<String, long[]> entities = new TreeMap<>();
+    // per gold answer, per guessed answer, tokens
+    private final Map<String, Map<String, Long>> confusion = new TreeMap<>();
+    private long tokens = 0;
+    private long correctTokens = 0;
+    private long sentences = 0;
+
+    public Evaluation(final String backgroundSymbol) {
+	this.backgroundSymbol = backgroundSymbol;
+    }
+
+    /**
+     * Scores the classified tokens of a sentence against its gold answers.
+     */
+    public void add(final TokenBuffer gold, final int sentence, final List<CoreLabel> classified) {
+	final int start = gold.start(sentence);
+	final int length = gold.end(sentence) - start;
+	final String[] goldAnswers = new String[length];
+	final String[] guessedAnswers = new String[length];
+	for (int i = 0; i < length; i++) {
+	    goldAnswers[i] = answer(gold.answer(start + i));
+	    guessedAnswers[i] = answer(classified.get(i).get(CoreAnnotations.AnswerAnnotation.class));
+	    final Map<String, Long> row = confusion.computeIfAbsent(goldAnswers[i], k -> new TreeMap<>());
+	    row.merge(guessedAnswers[i], 1L, Long::sum);
+	    if (goldAnswers[i].equals(guessedAnswers[i])) {
+		correctTokens++;
+	    }
+	}
+	tokens += length;
+	sentences++;
+
+	// walk the entities of both in step, an entity is correct when both end at the same token
+	int goldStart = -1;
+	int guessedStart = -1;
+	for (int i = 0; i <= length; i++) {
+	    final boolean goldEnds = goldStart >= 0 && (i == length || !continues(goldAnswers, i));
+	    final boolean guessedEnds = guessedStart >= 0 && (i == length || !continues(guessedAnswers, i));
+	    if (goldEnds) {
+		counts(type(goldAnswers[goldStart]))[1]++;
+	    }
+	    if (guessedEnds) {
+		counts(type(guessedAnswers[guessedStart]))[2]++;
+	    }
+	    if (goldEnds && guessedEnds && goldStart == guessedStart && type(goldAnswers[goldStart]).equals(type(guessedAnswers[guessedStart]))) {
+		counts(type(goldAnswers[goldStart]))[0]++;
+	    }
+	    if (i < length) {
+		if (goldEnds || goldStart < 0) {
+		    goldStart = backgroundSymbol.equals(goldAnswers[i]) ? -1 : i;
+		}
+		if (guessedEnds || guessedStart < 0) {
+		    guessedStart = backgroundSymbol.equals(guessedAnswers[i]) ? -1 : i;
+		}
+	    }
+	}
+    }
+
+    private String answer(final String answer) {
+	return answer == null || answer.isEmpty() ? backgroundSymbol : answer;
+    }
+
+    // whether the token at i continues the entity of the token before
+    private boolean continues(final String[] answers, final int i) {
+	return !backgroundSymbol.equals(answers[i]) && !answers[i].startsWith("B-") && type(answers[i]).equals(type(answers[i - 1]));
+    }
+
+    private static String type(final String answer) {
+	return answer.startsWith("B-") || answer.startsWith("I-") ? answer.substring(2) : answer;
+    }
+
+    private long[] counts(final String label) {
+	return entities.computeIfAbsent(label, k -> new long[3]);
+    }
+
+    /**
+     * Adds the scores of the other evaluation to these.
+     */
+    public void merge(final Evaluation other) {
+	for (Map.Entry<String, long[]> entry : other.entities.entrySet()) {
+	    final long[] counts = counts(entry.getKey());
+	    for (int i = 0; i < counts.length; i++) {
+		counts[i] += entry.getValue()[i];
+	    }
+	}
+	for (Map.Entry<String, Map<String, Long>> row : other.confusion.entrySet()) {
+	    final Map<String, Long> target = confusion.computeIfAbsent(row.getKey(), k -> new TreeMap<>());
+	    for (Map.Entry<String, Long> cell : row.getValue().entrySet()) {
+		target.merge(cell.getKey(), cell.getValue(), Long::sum);
+	    }
+	}
+	tokens += other.tokens;
+	correctTokens += other.correctTokens;
+	sentences += other.sentences;
+    }
+
+    public long getTokens() {
+	return tokens;
+    }
+
+    public long getSentences() {
+	return sentences;
+    }
+
+    public double getTokenAccuracy() {
+	return tokens == 0 ? 0 : (double) correctTokens / tokens;
+    }
+
+    /**
+     * Micro averaged F1 over all entities.
+     */
+    public double getF1() {
+	final long[] total = total();
+	return f1(precision(total), recall(total));
+    }
+
+    private long[] total() {
+	final long[] total = new long[3];
+	for (long[] counts : entities.values()) {
+	    for (int i = 0; i < total.length; i++) {
+		total[i] += counts[i];
+	    }
+	}
+	return total;
+    }
+
+    private static double precision(final long[] counts) {
+	return counts[2] == 0 ? 0 : (double) counts[0] / counts[2];
+    }
+
+    private static double recall(final long[] counts) {
+	return counts[1] == 0 ? 0 : (double) counts[0] / counts[1];
+    }
+
+    private static double f1(final double precision, final double recall) {
+	return precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+    }
+
+    /**
+     * Writes an entities element per label and one with the total, followed
+     * by the confusion-matrix element with a row per gold answer holding the
+     * number of tokens per guessed answer.
+     */
+    public void write(final MemTreeBuilder builder) {
+	for (Map.Entry<String, long[]> entry : entities.entrySet()) {
+	    writeEntities(builder, entry.getKey(), entry.getValue());
+	}
+	writeEntities(builder, null, total());
+
+	final TreeSet<String> answers = new TreeSet<>(confusion.keySet());
+	for (Map<String, Long> row : confusion.values()) {
+	    answers.addAll(row.keySet());
+	}
+	builder.startElement("", "confusion-matrix", "confusion-matrix", new AttributesImpl());
+	for (String goldAnswer : answers) {
+	    final Map<String, Long> row = confusion.get(goldAnswer);
+	    AttributesImpl attribs = new AttributesImpl();
+	    attribs.addAttribute("", "gold", "gold", "CDATA", goldAnswer);
+	    builder.startElement("", "row", "row", attribs);
+	    for (String guessedAnswer : answers) {
+		final Long count = row == null ? null : row.get(guessedAnswer);
+		attribs = new AttributesImpl();
+		attribs.addAttribute("", "guessed", "guessed", "CDATA", guessedAnswer);
+		attribs.addAttribute("", "tokens", "tokens", "CDATA", String.valueOf(count == null ? 0 : count));
+		builder.startElement("", "cell", "cell", attribs);
+		builder.endElement();
+	    }
+	    builder.endElement();
+	}
+	builder.endElement();
+    }
+
+    private static void writeEntities(final MemTreeBuilder builder, final String label, final long[] counts) {
+	final double precision = precision(counts);
+	final double recall = recall(counts);
+	final AttributesImpl attribs = new AttributesImpl();
+	if (label != null) {
+	    attribs.addAttribute("", "label", "label", "CDATA", label);
+	}
+	attribs.addAttribute("", "gold", "gold", "CDATA", String.valueOf(counts[1]));
+	attribs.addAttribute("", "guessed", "guessed", "CDATA", String.valueOf(counts[2]));
+	attribs.addAttribute("", "correct", "correct", "CDATA", String.valueOf(counts[0]));
+	attribs.addAttribute("", "precision", "precision", "CDATA", format(precision));
+	attribs.addAttribute("", "recall", "recall", "CDATA", format(recall));
+	attribs.addAttribute("", "f1", "f1", "CDATA", format(f1(precision, recall)));
+	final String name = label == null ? "total" : "entities";
+	builder.startElement("", name, name, attribs);
+	builder.endElement();
+    }
+
+    public static String format(final double value) {
+	return String.format(Locale.ROOT, "%.4f", value);
+    }
+}
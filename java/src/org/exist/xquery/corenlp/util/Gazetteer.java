@@ -0,0 +1,393 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.process.TokenizerFactory;
+
+import org.exist.xquery.XPathException;
+
+/**
+ * Dictionary entity matcher: an Aho-Corasick automaton over the tokens of
+ * the entries of a gazetteer list, matching all entries in one pass over
+ * the tokens of a sentence. The automaton is kept in primitive arrays, the
+ * transitions of each state sorted by token in one shared pair of arrays
+ * and those of the start state in a table indexed by token, so a list of
+ * millions of entries takes a few ints per token of its entries. Matching
+ * is thread safe.
+ *
+ * The list is read as UTF-8 lines of an entry and its label separated by a
+ * tab, like the mapping files of RegexNER. Lines without a label are given the
+ * default label; empty lines and lines starting with # are skipped. Of
+ * repeated entries the last one counts. Entries are matched token by token
+ * and case sensitively, as split by the PTB tokenizer.
+ *
+ * @author ljo
+ */
+public class Gazetteer {
+    public final static String DEFAULT_LABEL = "MISC";
+    private final static String TOKENIZER_OPTIONS = TokenizerFactories.options(false, false, null);
+
+    private final CompactIndex tokens;
+    private final String[] labels;
+    // transitions of the start state by token, 0 for none
+    private final int[] startNext;
+    // transitions of the other states: tokens and targets of state s in [edges[s], edges[s + 1])
+    private final int[] edges;
+    private final int[] edgeTokens;
+    private final int[] edgeTargets;
+    private final int[] fail;
+    // label of the entry ending in the state or -1, its length in tokens and the next state on the failure chain with a label
+    private final int[] output;
+    private final int[] depth;
+    private final int[] outputLink;
+
+    private Gazetteer(final CompactIndex tokens, final String[] labels, final int[] startNext, final int[] edges, final int[] edgeTokens, final int[] edgeTargets,
+		      final int[] fail, final int[] output, final int[] depth, final int[] outputLink) {
+	this.tokens = tokens;
+	this.labels = labels;
+	this.startNext = startNext;
+	this.edges = edges;
+	this.edgeTokens = edgeTokens;
+	this.edgeTargets = edgeTargets;
+	this.fail = fail;
+	this.output = output;
+	this.depth = depth;
+	this.outputLink = outputLink;
+    }
+
+    public static Gazetteer load(final Path file) throws XPathException, IOException {
+	try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+	    return compile(reader, DEFAULT_LABEL);
+	}
+    }
+
+    /**
+     * Compiles the gazetteer list read from the reader.
+     */
+    public static Gazetteer compile(final Reader list, final String defaultLabel) throws XPathException, IOException {
+	final TokenizerFactory<CoreLabel> tokenizerFactory = TokenizerFactories.getFactory(TokenizerFactories.DEFAULT_TOKENIZER, TOKENIZER_OPTIONS);
+	final Map<String, Integer> tokenIds = new HashMap<>();
+	final List<String> tokenList = new ArrayList<>();
+	final Map<String, Integer> labelIds = new HashMap<>();
+	final List<String> labelList = new ArrayList<>();
+	final List<Entry> entries = new ArrayList<>();
+	final BufferedReader reader = list instanceof BufferedReader ? (BufferedReader) list : new BufferedReader(list);
+	final List<String> words = new ArrayList<>();
+	String line;
+	while ((line = reader.readLine()) != null) {
+	    if (line.isEmpty() || line.charAt(0) == '#') {
+		continue;
+	    }
+	    final int tab = line.indexOf('\t');
+	    final String entry = tab < 0 ? line : line.substring(0, tab);
+	    final String label = tab < 0 ? defaultLabel : line.substring(tab + 1).trim();
+	    words.clear();
+	    tokenize(entry, tokenizerFactory, words);
+	    if (words.isEmpty() || label.isEmpty()) {
+		continue;
+	    }
+	    final int[] ids = new int[words.size()];
+	    for (int i = 0; i < ids.length; i++) {
+		ids[i] = id(words.get(i), tokenIds, tokenList);
+	    }
+	    entries.add(new Entry(ids, id(label, labelIds, labelList)));
+	}
+	return build(new CompactIndex(tokenList), labelList.toArray(new String[labelList.size()]), entries);
+    }
+
+    private static int id(final String s, final Map<String, Integer> ids, final List<String> list) {
+	Integer id = ids.get(s);
+	if (id == null) {
+	    id = list.size();
+	    ids.put(s, id);
+	    list.add(s);
+	}
+	return id;
+    }
+
+    /**
+     * Splits an entry on white space, and words with other than letters and
+     * digits further as the tokenizer would.
+     */
+    private static void tokenize(final String entry, final TokenizerFactory<CoreLabel> tokenizerFactory, final List<String> words) {
+	for (String word : entry.trim().split("\\s+")) {
+	    if (word.isEmpty()) {
+		continue;
+	    }
+	    boolean plain = true;
+	    for (int i = 0; i < word.length() && plain; i++) {
+		plain = Character.isLetterOrDigit(word.charAt(i));
+	    }
+	    if (plain) {
+		words.add(word);
+	    } else {
+		for (CoreLabel token : tokenizerFactory.getTokenizer(new StringReader(word)).tokenize()) {
+		    words.add(token.word());
+		}
+	    }
+	}
+    }
+
+    private static class Entry {
+	final int[] tokens;
+	final int label;
+
+	Entry(final int[] tokens, final int label) {
+	    this.tokens = tokens;
+	    this.label = label;
+	}
+    }
+
+    /**
+     * Builds the trie from the entries in sorted order, so that the states are
+     * numbered depth first and the children of each state come in token order,
+     * then the failure and output links breadth first.
+     */
+    private static Gazetteer build(final CompactIndex tokens, final String[] labels, final List<Entry> entries) {
+	// stable, so the last of repeated entries comes last
+	entries.sort((a, b) -> {
+		final int n = Math.min(a.tokens.length, b.tokens.length);
+		for (int i = 0; i < n; i++) {
+		    if (a.tokens[i] != b.tokens[i]) {
+			return Integer.compare(a.tokens[i], b.tokens[i]);
+		    }
+		}
+		return Integer.compare(a.tokens.length, b.tokens.length);
+	    });
+	int maxStates = 1;
+	for (Entry entry : entries) {
+	    maxStates += entry.tokens.length;
+	}
+	int[] parent = new int[maxStates];
+	int[] token = new int[maxStates];
+	int[] output = new int[maxStates];
+	int[] depth = new int[maxStates];
+	output[0] = -1;
+	int states = 1;
+	// states along the previous entry
+	int[] path = new int[16];
+	int[] previous = new int[0];
+	for (Entry entry : entries) {
+	    if (path.length <= entry.tokens.length) {
+		path = Arrays.copyOf(path, entry.tokens.length * 2);
+	    }
+	    int shared = 0;
+	    while (shared < entry.tokens.length && shared < previous.length && entry.tokens[shared] == previous[shared]) {
+		shared++;
+	    }
+	    for (int i = shared; i < entry.tokens.length; i++) {
+		final int state = states++;
+		parent[state] = i == 0 ? 0 : path[i - 1];
+		token[state] = entry.tokens[i];
+		output[state] = -1;
+		depth[state] = i + 1;
+		path[i] = state;
+	    }
+	    output[path[entry.tokens.length - 1]] = entry.label;
+	    previous = entry.tokens;
+	}
+
+	final int[] startNext = new int[tokens.size()];
+	final int[] edges = new int[states + 1];
+	for (int state = 1; state < states; state++) {
+	    if (parent[state] == 0) {
+		startNext[token[state]] = state;
+	    } else {
+		edges[parent[state] + 1]++;
+	    }
+	}
+	for (int state = 0; state < states; state++) {
+	    edges[state + 1] += edges[state];
+	}
+	final int[] edgeTokens = new int[edges[states]];
+	final int[] edgeTargets = new int[edges[states]];
+	final int[] filled = Arrays.copyOf(edges, states);
+	for (int state = 1; state < states; state++) {
+	    if (parent[state] != 0) {
+		final int edge = filled[parent[state]]++;
+		edgeTokens[edge] = token[state];
+		edgeTargets[edge] = state;
+	    }
+	}
+
+	final int[] fail = new int[states];
+	final int[] outputLink = new int[states];
+	final int[] queue = new int[states];
+	int head = 0;
+	int tail = 0;
+	for (int next : startNext) {
+	    if (next != 0) {
+		queue[tail++] = next;
+	    }
+	}
+	final Gazetteer gazetteer = new Gazetteer(tokens, labels, startNext, edges, edgeTokens, edgeTargets,
+						  fail, Arrays.copyOf(output, states), Arrays.copyOf(depth, states), outputLink);
+	while (head < tail) {
+	    final int state = queue[head++];
+	    for (int edge = edges[state]; edge < edges[state + 1]; edge++) {
+		final int child = edgeTargets[edge];
+		int f = fail[state];
+		int next;
+		while ((next = gazetteer.next(f, edgeTokens[edge])) < 0 && f != 0) {
+		    f = fail[f];
+		}
+		fail[child] = next < 0 ? 0 : next;
+		outputLink[child] = output[fail[child]] >= 0 ? fail[child] : outputLink[fail[child]];
+		queue[tail++] = child;
+	    }
+	}
+	return gazetteer;
+    }
+
+    /**
+     * The state reached from the state on the token, or -1.
+     */
+    private int next(final int state, final int token) {
+	if (state == 0) {
+	    final int next = startNext[token];
+	    return next == 0 ? -1 : next;
+	}
+	int low = edges[state];
+	int high = edges[state + 1] - 1;
+	while (low <= high) {
+	    final int mid = (low + high) >>> 1;
+	    final int t = edgeTokens[mid];
+	    if (t < token) {
+		low = mid + 1;
+	    } else if (t > token) {
+		high = mid - 1;
+	    } else {
+		return edgeTargets[mid];
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Number of entries, not counting repeated ones.
+     */
+    public int size() {
+	int size = 0;
+	for (int label : output) {
+	    if (label >= 0) {
+		size++;
+	    }
+	}
+	return size;
+    }
+
+    /**
+     * Labels the leftmost longest matches of the entries in the sentence,
+     * setting the AnswerAnnotation of their tokens. With overwrite, matches
+     * replace the labels already set, and an entity, i.e. a run of tokens with
+     * the same label, that a match only partly covers is reset to the background
+     * symbol outside the match rather than left in fragments; otherwise only
+     * matches of tokens all labeled with the background symbol, or not at all,
+     * are labeled.
+     *
+     * @return the number of matches labeled
+     */
+    public int label(final List<CoreLabel> sentence, final boolean overwrite, final String backgroundSymbol) {
+	final int size = sentence.size();
+	// length and label of the longest match starting at each token
+	final int[] lengths = new int[size];
+	final int[] matchLabels = new int[size];
+	int state = 0;
+	for (int i = 0; i < size; i++) {
+	    final int token = tokens.indexOf(sentence.get(i).word());
+	    if (token < 0) {
+		state = 0;
+		continue;
+	    }
+	    int next;
+	    while ((next = next(state, token)) < 0 && state != 0) {
+		state = fail[state];
+	    }
+	    state = next < 0 ? 0 : next;
+	    for (int s = output[state] >= 0 ? state : outputLink[state]; s > 0; s = outputLink[s]) {
+		final int start = i - depth[s] + 1;
+		if (depth[s] > lengths[start]) {
+		    lengths[start] = depth[s];
+		    matchLabels[start] = output[s];
+		}
+	    }
+	}
+	int matches = 0;
+	// tokens labeled by earlier matches, which are not part of the entities found before
+	final boolean[] matched = new boolean[size];
+	for (int i = 0; i < size; ) {
+	    final int length = lengths[i];
+	    if (length == 0) {
+		i++;
+		continue;
+	    }
+	    boolean free = overwrite;
+	    if (!free) {
+		free = true;
+		for (int j = i; j < i + length && free; j++) {
+		    final String answer = sentence.get(j).get(CoreAnnotations.AnswerAnnotation.class);
+		    free = answer == null || answer.equals(backgroundSymbol);
+		}
+	    }
+	    if (free) {
+		if (overwrite) {
+		    resetEntity(sentence, i - 1, -1, sentence.get(i).get(CoreAnnotations.AnswerAnnotation.class), matched, backgroundSymbol);
+		    resetEntity(sentence, i + length, 1, sentence.get(i + length - 1).get(CoreAnnotations.AnswerAnnotation.class), matched, backgroundSymbol);
+		}
+		for (int j = i; j < i + length; j++) {
+		    sentence.get(j).set(CoreAnnotations.AnswerAnnotation.class, labels[matchLabels[i]]);
+		    matched[j] = true;
+		}
+		matches++;
+		i += length;
+	    } else {
+		i++;
+	    }
+	}
+	return matches;
+    }
+
+    /**
+     * Resets the tokens from the given one on in the given direction to the
+     * background symbol as long as they continue the entity with the label.
+     */
+    private static void resetEntity(final List<CoreLabel> sentence, final int from, final int step, final String label, final boolean[] matched, final String backgroundSymbol) {
+	if (label == null || label.equals(backgroundSymbol)) {
+	    return;
+	}
+	for (int j = from; j >= 0 && j < sentence.size() && !matched[j] && label.equals(sentence.get(j).get(CoreAnnotations.AnswerAnnotation.class)); j += step) {
+	    sentence.get(j).set(CoreAnnotations.AnswerAnnotation.class, backgroundSymbol);
+	}
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.stanford.nlp.io.RuntimeIOException;
+import edu.stanford.nlp.util.Index;
+
+/**
+ * Base of the immutable feature indexes, implementing the Index methods
+ * in terms of size(), get(int) and indexOf(String).
+ *
+ * @author ljo
+ */
+abstract class ImmutableIndex implements Index<String> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The index is immutable, so nothing is ever added.
+     */
+    @Override
+    public int indexOf(final String s, final boolean add) {
+	return indexOf(s);
+    }
+
+    @Override
+    public int addToIndex(final String s) {
+	throw new UnsupportedOperationException(getClass().getSimpleName() + " is immutable");
+    }
+
+    @Override
+    public List<String> objectsList() {
+	return new AbstractList<String>() {
+	    @Override
+	    public String get(int index) {
+		return ImmutableIndex.this.get(index);
+	    }
+
+	    @Override
+	    public int size() {
+		return ImmutableIndex.this.size();
+	    }
+	};
+    }
+
+    @Override
+    public Collection<String> objects(final int[] indices) {
+	final List<String> objects = new ArrayList<>(indices.length);
+	for (int i : indices) {
+	    objects.add(get(i));
+	}
+	return objects;
+    }
+
+    @Override
+    public boolean isLocked() {
+	return true;
+    }
+
+    @Override
+    public void lock() {
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Override
+    public void saveToWriter(final Writer out) throws IOException {
+	for (int i = 0; i < size(); i++) {
+	    out.write(i + "=" + get(i) + System.lineSeparator());
+	}
+    }
+
+    @Override
+    public void saveToFilename(final String file) {
+	try (Writer out = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+	    saveToWriter(out);
+	} catch (IOException e) {
+	    throw new RuntimeIOException(e);
+	}
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+	return o instanceof String && indexOf((String) o) >= 0;
+    }
+
+    @Override
+    public boolean add(final String s) {
+	throw new UnsupportedOperationException(getClass().getSimpleName() + " is immutable");
+    }
+
+    @Override
+    public boolean addAll(final Collection<? extends String> c) {
+	throw new UnsupportedOperationException(getClass().getSimpleName() + " is immutable");
+    }
+
+    @Override
+    public void clear() {
+	throw new UnsupportedOperationException(getClass().getSimpleName() + " is immutable");
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+	return objectsList().iterator();
+    }
+
+}
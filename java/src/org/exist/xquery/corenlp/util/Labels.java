@@ -0,0 +1,122 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary of the answer and tag labels of a call, e.g. O, PERSON or NN,
+ * mapping each to a small int id. Every label is kept once, however many
+ * tokens carry it, and the writers encode each label once. Labels are looked
+ * up from any char sequence without creating a string. Ids can be
+ * interned and resolved from different threads, as long as they are passed
+ * on safely, e.g. with the tokens through a queue.
+ *
+ * @author ljo
+ */
+public class Labels {
+    public final static int NONE = -1;
+
+    // replaced as a whole when growing, so that a thread handed an id, e.g.
+    // through a queue, sees its entry in whichever array it reads
+    private volatile String[] labels = new String[16];
+    private int size = 0;
+    // id + 1 of the label in each slot, 0 for empty slots
+    private int[] table = new int[32];
+
+    /**
+     * The id of the label, added if new, or NONE for null.
+     */
+    public int id(final CharSequence label) {
+	return label == null ? NONE : id(label, 0, label.length());
+    }
+
+    /**
+     * The id of the label at start to end of the text, added if new.
+     */
+    public synchronized int id(final CharSequence text, final int start, final int end) {
+	int h = 0;
+	for (int i = start; i < end; i++) {
+	    h = 31 * h + text.charAt(i);
+	}
+	final int mask = table.length - 1;
+	int slot = h & mask;
+	int entry;
+	while ((entry = table[slot]) != 0) {
+	    if (equalsAt(labels[entry - 1], text, start, end)) {
+		return entry - 1;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	return add(text.subSequence(start, end).toString(), slot);
+    }
+
+    private int add(final String label, final int slot) {
+	final int id = size;
+	if (id == labels.length) {
+	    final String[] grown = Arrays.copyOf(labels, id * 2);
+	    grown[id] = label;
+	    labels = grown;
+	} else {
+	    labels[id] = label;
+	}
+	size++;
+	if (size * 2 > table.length) {
+	    rehash();
+	} else {
+	    table[slot] = id + 1;
+	}
+	return id;
+    }
+
+    private void rehash() {
+	table = new int[table.length * 2];
+	final int mask = table.length - 1;
+	for (int id = 0; id < size; id++) {
+	    int slot = labels[id].hashCode() & mask;
+	    while (table[slot] != 0) {
+		slot = (slot + 1) & mask;
+	    }
+	    table[slot] = id + 1;
+	}
+    }
+
+    private static boolean equalsAt(final String label, final CharSequence text, final int start, final int end) {
+	if (label.length() != end - start) {
+	    return false;
+	}
+	for (int i = 0; i < label.length(); i++) {
+	    if (label.charAt(i) != text.charAt(start + i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * The label of the id, always the same string instance, or null for NONE.
+     */
+    public String label(final int id) {
+	return id == NONE ? null : labels[id];
+    }
+
+    public synchronized int size() {
+	return size;
+    }
+}
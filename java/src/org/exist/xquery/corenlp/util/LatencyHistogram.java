@@ -0,0 +1,114 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with power of two microsecond buckets.
+ * Recording is a couple of striped additions, so it is cheap enough to
+ * wrap every function call.
+ *
+ * @author ljo
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+    private final static int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0L);
+
+    public LatencyHistogram() {
+	for (int i = 0; i < BUCKETS; i++) {
+	    buckets[i] = new LongAdder();
+	}
+    }
+
+    public void record(final long nanos) {
+	final long micros = nanos / 1000;
+	final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	buckets[bucket].increment();
+	count.increment();
+	totalNanos.add(nanos);
+	maxNanos.accumulate(nanos);
+    }
+
+    @Override
+    public long getCount() {
+	return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+	final long n = count.sum();
+	return n == 0 ? 0.0 : totalNanos.sum() / (n * 1000000.0);
+    }
+
+    @Override
+    public double getMaxMillis() {
+	return maxNanos.get() / 1000000.0;
+    }
+
+    @Override
+    public double get50thPercentileMillis() {
+	return percentileMillis(0.50);
+    }
+
+    @Override
+    public double get95thPercentileMillis() {
+	return percentileMillis(0.95);
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+	return percentileMillis(0.99);
+    }
+
+    @Override
+    public long[] getBuckets() {
+	final long[] counts = new long[BUCKETS];
+	for (int i = 0; i < BUCKETS; i++) {
+	    counts[i] = buckets[i].sum();
+	}
+	return counts;
+    }
+
+    private double percentileMillis(final double percentile) {
+	final long[] counts = getBuckets();
+	long total = 0;
+	for (long c : counts) {
+	    total += c;
+	}
+	if (total == 0) {
+	    return 0.0;
+	}
+	final long rank = (long) Math.ceil(percentile * total);
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += counts[i];
+	    if (seen >= rank) {
+		// bucket i holds latencies below 2^i microseconds
+		return Math.min((1L << i) / 1000.0, getMaxMillis());
+	    }
+	}
+	return getMaxMillis();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+/**
+ * Call latency of a corenlp function, as exposed over JMX.
+ *
+ * @author ljo
+ */
+public interface LatencyHistogramMXBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    /**
+     * Upper bound of the latency bucket holding the 50th percentile.
+     */
+    double get50thPercentileMillis();
+
+    double get95thPercentileMillis();
+
+    double get99thPercentileMillis();
+
+    /**
+     * Number of calls per power of two microseconds bucket, the first bucket holding calls below one microsecond.
+     */
+    long[] getBuckets();
+}
@@ -0,0 +1,108 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.ObjectStreamException;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+/**
+ * Immutable feature index over the tables of a memory mapped model, laid out
+ * like a {@link CompactIndex}: the feature strings as one block of chars,
+ * their offsets and the open addressing hash table, all read in place.
+ * Only absolute reads are used, so the index is safe for concurrent use.
+ * When serialized it is written as a CompactIndex.
+ *
+ * @author ljo
+ */
+public class MappedIndex extends ImmutableIndex {
+    private static final long serialVersionUID = 1L;
+
+    private final transient CharBuffer chars;
+    private final transient IntBuffer offsets;
+    private final transient IntBuffer table;
+    private final transient int size;
+    private final transient int mask;
+
+    public MappedIndex(final CharBuffer chars, final IntBuffer offsets, final IntBuffer table) {
+	this.chars = chars;
+	this.offsets = offsets;
+	this.table = table;
+	this.size = offsets.limit() - 1;
+	this.mask = table.limit() - 1;
+    }
+
+    private boolean equalsAt(final int index, final String s) {
+	final int start = offsets.get(index);
+	final int length = offsets.get(index + 1) - start;
+	if (length != s.length()) {
+	    return false;
+	}
+	for (int i = 0; i < length; i++) {
+	    if (chars.get(start + i) != s.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+	return new CompactIndex(new ArrayList<>(objectsList()));
+    }
+
+    @Override
+    public int size() {
+	return size;
+    }
+
+    @Override
+    public String get(final int i) {
+	if (i < 0 || i >= size) {
+	    throw new ArrayIndexOutOfBoundsException("Index " + i + " outside [0, " + size + ")");
+	}
+	final int start = offsets.get(i);
+	final char[] s = new char[offsets.get(i + 1) - start];
+	for (int c = 0; c < s.length; c++) {
+	    s[c] = chars.get(start + c);
+	}
+	return new String(s);
+    }
+
+    @Override
+    public int indexOf(final String s) {
+	if (s == null) {
+	    return -1;
+	}
+	int slot = s.hashCode() & mask;
+	int entry;
+	while ((entry = table.get(slot)) != 0) {
+	    if (equalsAt(entry - 1, s)) {
+		return entry - 1;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	return -1;
+    }
+
+    @Override
+    public String toString() {
+	return "MappedIndex of " + size + " entries";
+    }
+}
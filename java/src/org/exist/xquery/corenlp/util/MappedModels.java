@@ -0,0 +1,341 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ie.crf.CliquePotentialFunction;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.Index;
+
+import org.exist.xquery.XPathException;
+
+/**
+ * Memory mapped CRF models. The weights and feature index, nearly all of a
+ * trained model, are written as flat tables which are mapped read only from
+ * the file on loading instead of being deserialized onto the heap. Loading
+ * only deserializes the remaining small header, and the mapped pages are
+ * shared through the page cache by all classifiers, and processes, using
+ * the same file.
+ *
+ * The file starts with a fixed header of
+ * <pre>
+ *   magic "EXCRFMAP", int version, int weight size (4 or 8 bytes),
+ *   int header length, int features, int chars, int hash table size, long weights
+ * </pre>
+ * followed by the serialized classifier without weights and features, the
+ * feature chars, the feature offsets, the feature hash table, the weight row
+ * offsets and the weights, each section aligned to 8 bytes. All values are
+ * big endian.
+ *
+ * @author ljo
+ */
+public class MappedModels {
+    public final static int VERSION = 1;
+
+    private final static byte[] MAGIC = "EXCRFMAP".getBytes(StandardCharsets.US_ASCII);
+    private final static int FIXED_HEADER_LENGTH = 40;
+
+    /**
+     * Returns true if the file is a mapped model.
+     */
+    public static boolean isMappedModel(final Path file) throws IOException {
+	try (InputStream is = Files.newInputStream(file)) {
+	    final byte[] magic = new byte[MAGIC.length];
+	    int read = 0;
+	    int n;
+	    while (read < magic.length && (n = is.read(magic, read, magic.length - read)) > 0) {
+		read += n;
+	    }
+	    return read == magic.length && Arrays.equals(magic, MAGIC);
+	}
+    }
+
+    /**
+     * Returns the length of the serialized header of a mapped model, the part loaded onto the heap.
+     */
+    public static int getHeaderLength(final Path file) throws IOException {
+	try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+	    final ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_LENGTH);
+	    while (header.hasRemaining() && channel.read(header) > 0) {
+	    }
+	    header.flip();
+	    return checkHeader(header, file).getInt(16);
+	}
+    }
+
+    private static ByteBuffer checkHeader(final ByteBuffer buffer, final Path file) throws IOException {
+	final byte[] magic = new byte[MAGIC.length];
+	if (buffer.limit() < FIXED_HEADER_LENGTH) {
+	    throw new IOException(file + " is not a mapped model");
+	}
+	buffer.duplicate().get(magic);
+	if (!Arrays.equals(magic, MAGIC)) {
+	    throw new IOException(file + " is not a mapped model");
+	}
+	if (buffer.getInt(8) != VERSION) {
+	    throw new IOException(file + " is a mapped model of unsupported version " + buffer.getInt(8));
+	}
+	return buffer;
+    }
+
+    /**
+     * Writes the classifier as a mapped model. The weights are written as
+     * doubles, or rounded to floats halving the size of the weight table.
+     */
+    public static void write(final CRFClassifier<?> classifier, final OutputStream os, final boolean floatWeights) throws XPathException, IOException {
+	final double[][] weights = CRFModels.getWeights(classifier);
+	final Index<String> featureIndex = CRFModels.getFeatureIndex(classifier);
+	if (weights == null || featureIndex == null || weights.length != featureIndex.size()) {
+	    throw new XPathException("The classifier has no trained weights to write");
+	}
+
+	// the header is the serialized classifier with empty weights and features
+	final ByteArrayOutputStream header = new ByteArrayOutputStream();
+	CRFModels.setWeights(classifier, new double[0][]);
+	CRFModels.setFeatureIndex(classifier, new CompactIndex(Collections.<String>emptyList()));
+	try (ObjectOutputStream oos = new ObjectOutputStream(header)) {
+	    classifier.serializeClassifier(oos);
+	} finally {
+	    CRFModels.setWeights(classifier, weights);
+	    CRFModels.setFeatureIndex(classifier, featureIndex);
+	}
+
+	final List<String> features = new ArrayList<>(featureIndex.objectsList());
+	int charCount = 0;
+	for (String feature : features) {
+	    charCount += feature.length();
+	}
+	final char[] chars = new char[charCount];
+	final int[] offsets = new int[features.size() + 1];
+	int offset = 0;
+	for (int i = 0; i < features.size(); i++) {
+	    final String feature = features.get(i);
+	    feature.getChars(0, feature.length(), chars, offset);
+	    offsets[i] = offset;
+	    offset += feature.length();
+	}
+	offsets[features.size()] = offset;
+	final int[] table = CompactIndex.hashTable(chars, offsets);
+	long weightCount = 0;
+	for (double[] row : weights) {
+	    weightCount += row.length;
+	}
+	final int weightSize = floatWeights ? 4 : 8;
+	final long length = sectionOffsets(header.size(), chars.length, offsets.length, table.length)[5] + weightCount * weightSize;
+	if (length > Integer.MAX_VALUE) {
+	    throw new XPathException("The classifier is too large to be memory mapped");
+	}
+
+	final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+	out.write(MAGIC);
+	out.writeInt(VERSION);
+	out.writeInt(weightSize);
+	out.writeInt(header.size());
+	out.writeInt(features.size());
+	out.writeInt(chars.length);
+	out.writeInt(table.length);
+	out.writeLong(weightCount);
+	header.writeTo(out);
+	pad(out);
+	for (char c : chars) {
+	    out.writeChar(c);
+	}
+	pad(out);
+	for (int o : offsets) {
+	    out.writeInt(o);
+	}
+	pad(out);
+	for (int slot : table) {
+	    out.writeInt(slot);
+	}
+	pad(out);
+	int row = 0;
+	for (double[] w : weights) {
+	    out.writeInt(row);
+	    row += w.length;
+	}
+	out.writeInt(row);
+	pad(out);
+	for (double[] w : weights) {
+	    for (double d : w) {
+		if (floatWeights) {
+		    out.writeFloat((float) d);
+		} else {
+		    out.writeDouble(d);
+		}
+	    }
+	}
+	out.flush();
+    }
+
+    private static void pad(final DataOutputStream out) throws IOException {
+	while (out.size() % 8 != 0) {
+	    out.write(0);
+	}
+    }
+
+    private static long align(final long offset) {
+	return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Returns the offsets of the header, chars, feature offsets, hash table,
+     * weight row offsets and weights sections.
+     */
+    private static long[] sectionOffsets(final int headerLength, final int chars, final int offsets, final int table) {
+	final long[] sections = new long[6];
+	sections[0] = FIXED_HEADER_LENGTH;
+	sections[1] = align(sections[0] + headerLength);
+	sections[2] = align(sections[1] + 2L * chars);
+	sections[3] = align(sections[2] + 4L * offsets);
+	sections[4] = align(sections[3] + 4L * table);
+	sections[5] = align(sections[4] + 4L * offsets);
+	return sections;
+    }
+
+    private static ByteBuffer section(final ByteBuffer buffer, final long offset, final long length) {
+	final ByteBuffer section = buffer.duplicate();
+	section.position((int) offset);
+	section.limit((int) (offset + length));
+	return section.slice();
+    }
+
+    /**
+     * Loads a mapped model. The weights and feature index stay in the mapped
+     * file, which remains mapped for as long as the classifier is reachable.
+     * As the classifier has no weights on the heap, it can classify, but not
+     * be trained further, combined or serialized.
+     */
+    public static CRFClassifier<CoreLabel> load(final Path file) throws XPathException, IOException, ClassNotFoundException {
+	final ByteBuffer buffer;
+	try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+	    if (channel.size() > Integer.MAX_VALUE) {
+		throw new IOException(file + " is too large to be memory mapped");
+	    }
+	    buffer = checkHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+	}
+	final int weightSize = buffer.getInt(12);
+	final int headerLength = buffer.getInt(16);
+	final int features = buffer.getInt(20);
+	final int chars = buffer.getInt(24);
+	final int tableSize = buffer.getInt(28);
+	final long weightCount = buffer.getLong(32);
+	final long[] sections = sectionOffsets(headerLength, chars, features + 1, tableSize);
+	if (sections[5] + weightCount * weightSize > buffer.limit()) {
+	    throw new IOException(file + " is truncated");
+	}
+
+	final byte[] header = new byte[headerLength];
+	section(buffer, sections[0], headerLength).get(header);
+	final CRFClassifier<CoreLabel> classifier;
+	try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(header))) {
+	    classifier = CRFClassifier.getClassifier(ois);
+	}
+
+	CRFModels.setFeatureIndex(classifier, new MappedIndex(
+	    section(buffer, sections[1], 2L * chars).asCharBuffer(),
+	    section(buffer, sections[2], 4L * (features + 1)).asIntBuffer(),
+	    section(buffer, sections[3], 4L * tableSize).asIntBuffer()));
+	final IntBuffer rows = section(buffer, sections[4], 4L * (features + 1)).asIntBuffer();
+	final ByteBuffer values = section(buffer, sections[5], weightCount * weightSize);
+	CRFModels.setWeights(classifier, new double[0][]);
+	CRFModels.setCliquePotentialFunction(classifier, weightSize == 4
+	    ? new FloatPotentialFunction(rows, values.asFloatBuffer())
+	    : new DoublePotentialFunction(rows, values.asDoubleBuffer()));
+	return classifier;
+    }
+
+    /**
+     * The linear clique potential of CoreNLP, the sum of the weights of the
+     * clique features for the label, reading the weights from the mapped table.
+     */
+    private abstract static class MappedPotentialFunction implements CliquePotentialFunction {
+	private final IntBuffer rows;
+
+	MappedPotentialFunction(final IntBuffer rows) {
+	    this.rows = rows;
+	}
+
+	abstract double weight(int index);
+
+	@Override
+	public double computeCliquePotential(final int cliqueSize, final int labelIndex, final int[] cliqueFeatures, final double[] featureVal, final int posInSent) {
+	    double output = 0.0;
+	    for (int m = 0; m < cliqueFeatures.length; m++) {
+		double dotProd = weight(rows.get(cliqueFeatures[m]) + labelIndex);
+		if (featureVal != null) {
+		    dotProd *= featureVal[m];
+		}
+		output += dotProd;
+	    }
+	    return output;
+	}
+    }
+
+    private static class DoublePotentialFunction extends MappedPotentialFunction {
+	private final DoubleBuffer weights;
+
+	DoublePotentialFunction(final IntBuffer rows, final DoubleBuffer weights) {
+	    super(rows);
+	    this.weights = weights;
+	}
+
+	@Override
+	double weight(final int index) {
+	    return weights.get(index);
+	}
+    }
+
+    private static class FloatPotentialFunction extends MappedPotentialFunction {
+	private final FloatBuffer weights;
+
+	FloatPotentialFunction(final IntBuffer rows, final FloatBuffer weights) {
+	    super(rows);
+	    this.weights = weights;
+	}
+
+	@Override
+	double weight(final int index) {
+	    return weights.get(index);
+	}
+    }
+}
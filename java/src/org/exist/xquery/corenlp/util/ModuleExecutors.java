@@ -0,0 +1,276 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * The executors the module runs its parallel work on. CPU bound work, like
+ * CRF inference, tagging and parsing, runs on one module wide pool of
+ * platform threads, sized with the computeThreads module parameter, and
+ * each call on at most the number of threads it asked for. Work that mostly
+ * waits, like reading uploads and binary resources, decompression of
+ * models from slow storage and writing spilled output, can run on virtual
+ * threads instead, one per task, when enabled with the virtualThreads
+ * module parameter on Java 21 or later. Virtual threads are created through
+ * reflection, so the module still builds and runs on Java 8.
+ *
+ * @author ljo
+ */
+public class ModuleExecutors {
+    private final static Logger LOG = LogManager.getLogger(ModuleExecutors.class);
+    public final static String VIRTUAL_THREADS = "virtualThreads";
+    public final static String COMPUTE_THREADS = "computeThreads";
+
+    private final static Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadFactory();
+    private static volatile boolean virtualThreads = false;
+
+    private final static ThreadLocal<Boolean> IN_COMPUTE_POOL = new ThreadLocal<>();
+    private final static ThreadPoolExecutor COMPUTE = newComputePool(Runtime.getRuntime().availableProcessors());
+
+    private static ThreadPoolExecutor newComputePool(final int threads) {
+	final AtomicInteger count = new AtomicInteger();
+	final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+		final Thread thread = new Thread(() -> {
+			IN_COMPUTE_POOL.set(Boolean.TRUE);
+			runnable.run();
+		    }, "corenlp-compute-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	    });
+	pool.allowCoreThreadTimeOut(true);
+	return pool;
+    }
+
+    /**
+     * Sets the number of platform threads CPU bound work of all calls may run on together.
+     */
+    public static void setComputeThreads(final int threads) {
+	if (threads < 1) {
+	    throw new IllegalArgumentException("must be at least 1");
+	}
+	synchronized (COMPUTE) {
+	    if (threads > COMPUTE.getMaximumPoolSize()) {
+		COMPUTE.setMaximumPoolSize(threads);
+		COMPUTE.setCorePoolSize(threads);
+	    } else {
+		COMPUTE.setCorePoolSize(threads);
+		COMPUTE.setMaximumPoolSize(threads);
+	    }
+	}
+    }
+
+    public static int getComputeThreads() {
+	return COMPUTE.getMaximumPoolSize();
+    }
+
+    private static Method findVirtualThreadFactory() {
+	try {
+	    return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	} catch (NoSuchMethodException | SecurityException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Returns true if this Java version provides virtual threads.
+     */
+    public static boolean isVirtualThreadsAvailable() {
+	return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Enables virtual threads for waiting work, if available.
+     */
+    public static void setVirtualThreads(final boolean enabled) {
+	if (enabled && !isVirtualThreadsAvailable()) {
+	    LOG.warn("Virtual threads require Java 21 or later, using platform threads on Java " + System.getProperty("java.version"));
+	}
+	virtualThreads = enabled;
+    }
+
+    public static boolean isVirtualThreads() {
+	return virtualThreads && isVirtualThreadsAvailable();
+    }
+
+    /**
+     * Returns an executor for CPU bound work of a single call, which runs at most the
+     * given number of tasks at a time on the module wide compute pool. Shutting it down
+     * only affects the tasks of that call.
+     */
+    public static ExecutorService newComputeExecutor(final int threads) {
+	return new ComputeExecutor(Math.max(1, threads));
+    }
+
+    /**
+     * Returns an executor for work that mostly waits on I/O: a virtual thread per task if
+     * enabled, otherwise a pool of the given number of platform threads.
+     */
+    public static ExecutorService newIOExecutor(final int platformThreads) {
+	if (isVirtualThreads()) {
+	    final ExecutorService executor = newVirtualThreadPerTaskExecutor();
+	    if (executor != null) {
+		return executor;
+	    }
+	}
+	return Executors.newFixedThreadPool(Math.max(1, platformThreads));
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+	try {
+	    return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+	} catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+	    // e.g. a preview feature not enabled on Java 19 and 20
+	    LOG.warn("Unable to create virtual threads, using platform threads: " + e);
+	    virtualThreads = false;
+	    return null;
+	}
+    }
+
+    /**
+     * Runs the tasks of one call on the shared compute pool, at most threads at a time.
+     * The tasks of a call that itself runs on the pool are run on the calling thread,
+     * so that nested calls can not take up all pool threads while waiting on each other.
+     */
+    private final static class ComputeExecutor extends AbstractExecutorService {
+	private final int threads;
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+	private final Set<Thread> running = new HashSet<>();
+	private int active = 0;
+	private boolean shutdown = false;
+	private boolean stopped = false;
+
+	ComputeExecutor(final int threads) {
+	    this.threads = threads;
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+	    synchronized (this) {
+		if (shutdown) {
+		    throw new RejectedExecutionException("Executor has been shut down");
+		}
+		if (IN_COMPUTE_POOL.get() == null) {
+		    if (active >= threads) {
+			queue.add(command);
+			return;
+		    }
+		    active++;
+		}
+	    }
+	    if (IN_COMPUTE_POOL.get() != null) {
+		command.run();
+		return;
+	    }
+	    try {
+		COMPUTE.execute(() -> work(command));
+	    } catch (RejectedExecutionException e) {
+		finished();
+		throw e;
+	    }
+	}
+
+	private void work(Runnable task) {
+	    final Thread thread = Thread.currentThread();
+	    while (task != null) {
+		synchronized (this) {
+		    if (stopped) {
+			break;
+		    }
+		    running.add(thread);
+		}
+		try {
+		    task.run();
+		} finally {
+		    synchronized (this) {
+			running.remove(thread);
+		    }
+		    // an interrupt meant for this call must not reach the next task of the pool thread
+		    Thread.interrupted();
+		}
+		synchronized (this) {
+		    task = queue.poll();
+		}
+	    }
+	    finished();
+	}
+
+	private synchronized void finished() {
+	    active--;
+	    notifyAll();
+	}
+
+	@Override
+	public synchronized void shutdown() {
+	    shutdown = true;
+	}
+
+	@Override
+	public synchronized List<Runnable> shutdownNow() {
+	    shutdown = true;
+	    stopped = true;
+	    final List<Runnable> pending = new ArrayList<>(queue);
+	    queue.clear();
+	    for (Thread thread : running) {
+		thread.interrupt();
+	    }
+	    return pending;
+	}
+
+	@Override
+	public synchronized boolean isShutdown() {
+	    return shutdown;
+	}
+
+	@Override
+	public synchronized boolean isTerminated() {
+	    return shutdown && active == 0 && queue.isEmpty();
+	}
+
+	@Override
+	public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+	    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+	    while (!isTerminated()) {
+		final long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+		    return false;
+		}
+		TimeUnit.NANOSECONDS.timedWait(this, remaining);
+	    }
+	    return true;
+	}
+    }
+}
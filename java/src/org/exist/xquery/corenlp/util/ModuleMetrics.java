@@ -0,0 +1,282 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.xquery.FunctionSignature;
+
+/**
+ * Metrics of the module: per function call latency, model loads, classifier
+ * cache hits and misses, tokens processed, text segments skipped by the
+ * pre-screen and document bytes read and written.
+ * All counters are lock free and shared by all queries. They are registered
+ * as MXBeans in the platform MBean server under the domain
+ * {@value #DOMAIN}, the module counters as type=Module and the latency of
+ * each function as type=Function,name=...,arity=...
+ *
+ * @author ljo
+ */
+public class ModuleMetrics implements ModuleMetricsMXBean {
+    private final static Logger LOG = LogManager.getLogger(ModuleMetrics.class);
+    public final static String DOMAIN = "org.exist.xquery.corenlp";
+
+    private final static ModuleMetrics INSTANCE = new ModuleMetrics();
+
+    private final ConcurrentMap<String, LatencyHistogram> functions = new ConcurrentHashMap<>();
+    private final LongAdder modelLoads = new LongAdder();
+    private final LongAdder modelLoadNanos = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder tokenNanos = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder segments = new LongAdder();
+    private final LongAdder skippedSegments = new LongAdder();
+    private volatile boolean registered = false;
+
+    public static ModuleMetrics getInstance() {
+	return INSTANCE;
+    }
+
+    /**
+     * Registers the module MXBean, once per JVM.
+     */
+    public synchronized void register() {
+	if (registered) {
+	    return;
+	}
+	registered = true;
+	register("type=Module", this);
+	for (Map.Entry<String, LatencyHistogram> function : functions.entrySet()) {
+	    registerFunction(function.getKey(), function.getValue());
+	}
+    }
+
+    /**
+     * Records the latency of a function call.
+     */
+    public void functionCall(final FunctionSignature signature, final long nanos) {
+	final String key = "name=" + signature.getName().getLocalPart() + ",arity=" + signature.getArgumentCount();
+	LatencyHistogram histogram = functions.get(key);
+	if (histogram == null) {
+	    final LatencyHistogram created = new LatencyHistogram();
+	    histogram = functions.putIfAbsent(key, created);
+	    if (histogram == null) {
+		histogram = created;
+		if (registered) {
+		    registerFunction(key, created);
+		}
+	    }
+	}
+	histogram.record(nanos);
+    }
+
+    public void modelLoad(final long nanos) {
+	modelLoads.increment();
+	modelLoadNanos.add(nanos);
+    }
+
+    public void cacheHit() {
+	cacheHits.increment();
+    }
+
+    public void cacheMiss() {
+	cacheMisses.increment();
+    }
+
+    /**
+     * Records tokens processed and the time it took to process them.
+     */
+    public void tokens(final long count, final long nanos) {
+	tokens.add(count);
+	tokenNanos.add(nanos);
+    }
+
+    /**
+     * Records a text segment seen by the pre-screen and whether it was skipped.
+     */
+    public void prescreened(final boolean skipped) {
+	segments.increment();
+	if (skipped) {
+	    skippedSegments.increment();
+	}
+    }
+
+    /**
+     * Wraps the stream so the bytes read from it are counted.
+     */
+    public InputStream countRead(final InputStream is) {
+	return new FilterInputStream(is) {
+	    @Override
+	    public int read() throws IOException {
+		final int b = super.read();
+		if (b >= 0) {
+		    bytesRead.increment();
+		}
+		return b;
+	    }
+
+	    @Override
+	    public int read(byte[] b, int off, int len) throws IOException {
+		final int n = super.read(b, off, len);
+		if (n > 0) {
+		    bytesRead.add(n);
+		}
+		return n;
+	    }
+
+	    @Override
+	    public long skip(long n) throws IOException {
+		final long skipped = super.skip(n);
+		bytesRead.add(skipped);
+		return skipped;
+	    }
+	};
+    }
+
+    /**
+     * Wraps the stream so the bytes written to it are counted.
+     */
+    public OutputStream countWritten(final OutputStream os) {
+	return new FilterOutputStream(os) {
+	    @Override
+	    public void write(int b) throws IOException {
+		out.write(b);
+		bytesWritten.increment();
+	    }
+
+	    @Override
+	    public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		bytesWritten.add(len);
+	    }
+	};
+    }
+
+    public LatencyHistogram getFunction(final String name, final int arity) {
+	return functions.get("name=" + name + ",arity=" + arity);
+    }
+
+    @Override
+    public long getModelLoads() {
+	return modelLoads.sum();
+    }
+
+    @Override
+    public double getModelLoadTimeMillis() {
+	return modelLoadNanos.sum() / 1000000.0;
+    }
+
+    @Override
+    public double getMeanModelLoadTimeMillis() {
+	final long loads = modelLoads.sum();
+	return loads == 0 ? 0.0 : modelLoadNanos.sum() / (loads * 1000000.0);
+    }
+
+    @Override
+    public long getCacheHits() {
+	return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+	return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+	final long hits = cacheHits.sum();
+	final long total = hits + cacheMisses.sum();
+	return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public long getTokens() {
+	return tokens.sum();
+    }
+
+    @Override
+    public double getTokensPerSecond() {
+	final long nanos = tokenNanos.sum();
+	return nanos == 0 ? 0.0 : tokens.sum() * 1000000000.0 / nanos;
+    }
+
+    @Override
+    public long getBytesRead() {
+	return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+	return bytesWritten.sum();
+    }
+
+    @Override
+    public long getPrescreenedSegments() {
+	return segments.sum();
+    }
+
+    @Override
+    public long getSkippedSegments() {
+	return skippedSegments.sum();
+    }
+
+    @Override
+    public double getSkipRatio() {
+	final long total = segments.sum();
+	return total == 0 ? 0.0 : (double) skippedSegments.sum() / total;
+    }
+
+    private void registerFunction(final String key, final LatencyHistogram histogram) {
+	register("type=Function," + key, histogram);
+    }
+
+    /**
+     * Registers an MXBean under the module domain with the given key properties.
+     */
+    public static void register(final String properties, final Object mbean) {
+	try {
+	    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    final ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+	    if (!server.isRegistered(name)) {
+		server.registerMBean(mbean, name);
+	    }
+	} catch (JMException e) {
+	    LOG.warn("Unable to register metrics " + properties + ": " + e.getMessage(), e);
+	}
+    }
+}
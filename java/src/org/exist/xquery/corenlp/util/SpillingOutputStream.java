@@ -0,0 +1,148 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.exist.util.io.TemporaryFileManager;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Base64BinaryValueType;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.BinaryValueFromFile;
+
+/**
+ * Output stream for generated documents. Keeps the written bytes in memory
+ * and only spills them to a temporary file once the threshold is exceeded.
+ * The result is handed out as a binary value reading directly from the buffer
+ * or the spilled file, so no further copy is made before streaming.
+ *
+ * @author ljo
+ */
+public class SpillingOutputStream extends OutputStream {
+    public final static int DEFAULT_THRESHOLD = 8 * 1024 * 1024;
+
+    private final int threshold;
+    private byte[] buf = new byte[8192];
+    private int count = 0;
+    private Path spillFile = null;
+    private OutputStream spillStream = null;
+    private boolean closed = false;
+
+    public SpillingOutputStream(int threshold) {
+	this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+	if (spillStream == null && count + 1 > threshold) {
+	    spill();
+	}
+	if (spillStream != null) {
+	    spillStream.write(b);
+	} else {
+	    ensureCapacity(count + 1);
+	    buf[count++] = (byte) b;
+	}
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+	if (spillStream == null && count + len > threshold) {
+	    spill();
+	}
+	if (spillStream != null) {
+	    spillStream.write(b, off, len);
+	} else {
+	    ensureCapacity(count + len);
+	    System.arraycopy(b, off, buf, count, len);
+	    count += len;
+	}
+    }
+
+    @Override
+    public void flush() throws IOException {
+	if (spillStream != null) {
+	    spillStream.flush();
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	if (!closed) {
+	    closed = true;
+	    if (spillStream != null) {
+		spillStream.close();
+	    }
+	}
+    }
+
+    public boolean isSpilled() {
+	return spillStream != null;
+    }
+
+    /**
+     * Closes the stream and returns its content as a binary value. A spilled
+     * file is handed over to the value, which is registered with the context
+     * and returns the file to the temporary file manager once the query's
+     * binary values are cleaned up.
+     */
+    public BinaryValue toBinaryValue(XQueryContext context) throws IOException, XPathException {
+	close();
+	if (spillFile == null) {
+	    return new ByteArrayBinaryValue(new DefaultBinaryValueManager(context), new Base64BinaryValueType(), buf, count);
+	} else {
+	    final Path file = spillFile;
+	    final BinaryValue value = BinaryValueFromFile.getInstance(context, new Base64BinaryValueType(), file,
+		(closed, path) -> TemporaryFileManager.getInstance().returnTemporaryFile(path));
+	    spillFile = null;
+	    return value;
+	}
+    }
+
+    /**
+     * Returns the spill file, if any, to the temporary file manager, unless it
+     * has been handed over to a binary value.
+     */
+    public void release() {
+	if (spillFile != null) {
+	    TemporaryFileManager.getInstance().returnTemporaryFile(spillFile);
+	    spillFile = null;
+	}
+    }
+
+    private void spill() throws IOException {
+	spillFile = TemporaryFileManager.getInstance().getTemporaryFile();
+	spillStream = new BufferedOutputStream(Files.newOutputStream(spillFile));
+	spillStream.write(buf, 0, count);
+	buf = null;
+	count = 0;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+	if (minCapacity > buf.length) {
+	    buf = Arrays.copyOf(buf, Math.max(buf.length << 1, minCapacity));
+	}
+    }
+}
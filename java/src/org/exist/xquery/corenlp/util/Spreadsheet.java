@@ -34,21 +34,26 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ie.crf.CRFClassifier;
 import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.ling.CoreAnnotations;
-import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.process.PTBTokenizer;
 import edu.stanford.nlp.process.WordToSentenceProcessor;
 import edu.stanford.nlp.sequences.SeqClassifierFlags;
@@ -63,6 +68,7 @@ import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CreationHelper;
 import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.RichTextString;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
@@ -94,64 +100,135 @@ import org.jopendocument.dom.spreadsheet.SpreadSheet;
 public class Spreadsheet {
     private final static Logger LOG = LogManager.getLogger(Spreadsheet.class);
 
-    public enum InputDocType {ODS, XLSX, XLS, TSV, ODT, DOCX, DOC, TXT};
+    public enum InputDocType {
+	ODS, XLSX, XLS, TSV, ODT, DOCX, DOC, TXT;
+
+	/**
+	 * Returns the spreadsheet format of an inputFormat parameter value.
+	 */
+	public static InputDocType spreadsheet(final String value) throws XPathException {
+	    switch (value) {
+	    case "ods":
+		return ODS;
+	    case "xlsx":
+		return XLSX;
+	    case "xls":
+		return XLS;
+	    case "tsv":
+		return TSV;
+	    default:
+		throw new XPathException("Unknown input format " + value + ", expected ods, xlsx, xls or tsv");
+	    }
+	}
+    };
     public enum TextDocType {ODT, DOCX, DOC, TXT};
     public enum OutDocType {ODS, XSLX, XSL, TSV};
 
-    public static void createSpreadsheet(List<List<CoreLabel>> sentences, int tokens, final OutDocType outputFormat, final Path tempOutFile, final String backgroundSymbol) {
+    private final static byte[] TSV_QUOTE = Utf8Output.ascii("\"");
+    private final static byte[] TSV_NEWLINE = Utf8Output.ascii("\n");
+
+    private final static String ODS_NAMESPACES =
+	"xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\" " +
+	"xmlns:style=\"urn:oasis:names:tc:opendocument:xmlns:style:1.0\" " +
+	"xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\" " +
+	"xmlns:table=\"urn:oasis:names:tc:opendocument:xmlns:table:1.0\" " +
+	"office:version=\"1.2\"";
+    private final static byte[] ODS_MIMETYPE = Utf8Output.ascii("application/vnd.oasis.opendocument.spreadsheet");
+    private final static byte[] ODS_MANIFEST = Utf8Output.ascii(
+	"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+	"<manifest:manifest xmlns:manifest=\"urn:oasis:names:tc:opendocument:xmlns:manifest:1.0\" manifest:version=\"1.2\">" +
+	"<manifest:file-entry manifest:media-type=\"application/vnd.oasis.opendocument.spreadsheet\" manifest:full-path=\"/\"/>" +
+	"<manifest:file-entry manifest:media-type=\"text/xml\" manifest:full-path=\"content.xml\"/>" +
+	"<manifest:file-entry manifest:media-type=\"text/xml\" manifest:full-path=\"styles.xml\"/>" +
+	"</manifest:manifest>");
+    private final static byte[] ODS_STYLES = Utf8Output.ascii(
+	"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+	"<office:document-styles " + ODS_NAMESPACES + "><office:styles/><office:automatic-styles/><office:master-styles/></office:document-styles>");
+    private final static byte[] ODS_CONTENT_START = Utf8Output.ascii(
+	"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+	"<office:document-content " + ODS_NAMESPACES + ">" +
+	"<office:automatic-styles><style:style style:family=\"table\" style:name=\"ta0\"><style:table-properties table:display=\"true\"/></style:style></office:automatic-styles>" +
+	"<office:body><office:spreadsheet><table:table table:name=\"Sheet1\" table:style-name=\"ta0\"><table:table-column table:number-columns-repeated=\"2\"/>");
+    private final static byte[] ODS_CONTENT_END = Utf8Output.ascii("</table:table></office:spreadsheet></office:body></office:document-content>");
+    private final static byte[] ODS_CELL_START = Utf8Output.ascii("<table:table-cell office:value-type=\"string\"><text:p>");
+    private final static byte[] ODS_WORD_CELL_START = Utf8Output.ascii("<table:table-row><table:table-cell office:value-type=\"string\"><text:p>");
+    private final static byte[] ODS_WORD_CELL_END = Utf8Output.ascii("</text:p></table:table-cell>");
+    private final static byte[] ODS_ANSWER_CELL_END = Utf8Output.ascii("</text:p></table:table-cell></table:table-row>");
+    private final static byte[] ODS_EMPTY_ROW = Utf8Output.ascii("<table:table-row><table:table-cell table:number-columns-repeated=\"2\"/></table:table-row>");
+
+    public static void createSpreadsheet(final TokenBuffer tokens, final OutDocType outputFormat, final OutputStream outputStream, final String backgroundSymbol) {
+	createSpreadsheet(Collections.singletonList(tokens), outputFormat, outputStream, backgroundSymbol, Cancellation.NONE);
+    }
+
+    /**
+     * Writes the sentences of the buffers as they are produced, e.g. by an
+     * earlier stage of a pipeline. Checks the cancellation in between
+     * sentences, throwing a Cancellation.CancelledException when the call
+     * has been cancelled.
+     */
+    public static void createSpreadsheet(Iterable<TokenBuffer> buffers, final OutDocType outputFormat, final OutputStream outputStream, final String backgroundSymbol, final Cancellation cancellation) {
+	final OutputStream os = ModuleMetrics.getInstance().countWritten(outputStream);
 	switch(outputFormat) {
 	case ODS:
-	    createODSSpreadsheet(sentences, tokens, tempOutFile, backgroundSymbol);
+	    createODSSpreadsheet(buffers, os, backgroundSymbol, cancellation);
 	    break;
 	case XSLX:
-	    createXSLXSpreadsheet(sentences, outputFormat, tempOutFile, backgroundSymbol);
-	    break;
 	case XSL:
-	    createXSLXSpreadsheet(sentences, outputFormat, tempOutFile, backgroundSymbol);
+	    createXSLXSpreadsheet(buffers, outputFormat, os, backgroundSymbol, cancellation);
 	    break;
 	case TSV:
-	    createTSVSpreadsheet(sentences, tempOutFile, backgroundSymbol);
+	    createTSVSpreadsheet(buffers, os, backgroundSymbol, cancellation);
 	    break;
 	}
     }
 
-    private static void createODSSpreadsheet(List<List<CoreLabel>> sentences, int tokens, final Path tempOutFile, final String backgroundSymbol) {
-	SpreadSheet spreadSheet = SpreadSheet.create(1, 2, sentences.size() + tokens);
-
-	Sheet sheet = spreadSheet.getSheet(0);
-
-	int lineIndex = 0;
-	for (List<CoreLabel> sentence : sentences) {
-	    for (CoreLabel token : sentence) {
-		String value = token.get(CoreAnnotations.OriginalTextAnnotation.class);
-		sheet.setValueAt(value, 0, lineIndex);
-		if (token.get(CoreAnnotations.AnswerAnnotation.class) == null) {
-		    sheet.setValueAt(backgroundSymbol, 1, lineIndex);
-		} else {
-		    sheet.setValueAt(token.get(CoreAnnotations.AnswerAnnotation.class), 1, lineIndex);
+    /**
+     * Writes the package directly rather than through a jOpenDocument sheet,
+     * which looks up every cell anew, streaming the rows into content.xml.
+     */
+    private static void createODSSpreadsheet(Iterable<TokenBuffer> buffers, final OutputStream os, final String backgroundSymbol, final Cancellation cancellation) {
+	final EncodedLabels<byte[]> answerCells = new EncodedLabels<>(label -> concat(ODS_CELL_START, Utf8Output.xml(label), ODS_ANSWER_CELL_END), backgroundSymbol);
+	try {
+	    final ZipOutputStream zip = new ZipOutputStream(os);
+	    final ZipEntry mimetype = new ZipEntry("mimetype");
+	    // the mimetype comes first and uncompressed, so that the type can be told from the first bytes
+	    mimetype.setMethod(ZipEntry.STORED);
+	    mimetype.setSize(ODS_MIMETYPE.length);
+	    final CRC32 crc = new CRC32();
+	    crc.update(ODS_MIMETYPE);
+	    mimetype.setCrc(crc.getValue());
+	    zip.putNextEntry(mimetype);
+	    zip.write(ODS_MIMETYPE);
+	    zip.putNextEntry(new ZipEntry("META-INF/manifest.xml"));
+	    zip.write(ODS_MANIFEST);
+	    zip.putNextEntry(new ZipEntry("styles.xml"));
+	    zip.write(ODS_STYLES);
+	    zip.putNextEntry(new ZipEntry("content.xml"));
+	    final Utf8Output content = new Utf8Output(zip);
+	    content.write(ODS_CONTENT_START);
+	    for (TokenBuffer buffer : buffers) {
+		final char[] chars = buffer.chars();
+		for (int s = 0; s < buffer.sentences(); s++) {
+		    cancellation.checkUnchecked();
+		    for (int i = buffer.start(s); i < buffer.end(s); i++) {
+			content.write(ODS_WORD_CELL_START);
+			content.writeXml(chars, buffer.offset(i), buffer.offset(i + 1));
+			content.write(ODS_WORD_CELL_END);
+			content.write(answerCells.get(buffer, i));
+		    }
+		    content.write(ODS_EMPTY_ROW);
 		}
-
-		lineIndex++;
 	    }
-	    sheet.setValueAt("", 0, lineIndex);
-	    sheet.setValueAt("", 1, lineIndex);
-	    lineIndex++;
-	}
-
-	try (OutputStream os = Files.newOutputStream(tempOutFile)) {
-	    spreadSheet.getPackage().save(os);
-	} catch (FileNotFoundException fe) {
-	    LOG.error(fe);
+	    content.write(ODS_CONTENT_END);
+	    content.flush();
+	    zip.finish();
+	    os.flush();
 	} catch (IOException ioe) {
 	    LOG.error(ioe);
-	} finally {
-	    if (spreadSheet != null) {
-		spreadSheet = null;
-	    }
 	}
     }
 
-    private static void createXSLXSpreadsheet(List<List<CoreLabel>> sentences, OutDocType outputFormat, final Path tempOutFile, final String backgroundSymbol) {
+    private static void createXSLXSpreadsheet(Iterable<TokenBuffer> buffers, OutDocType outputFormat, final OutputStream os, final String backgroundSymbol, final Cancellation cancellation) {
 	Workbook workbook = null;
 	if (outputFormat == OutDocType.XSLX) {
 	    workbook = new SXSSFWorkbook();
@@ -167,28 +244,29 @@ public class Spreadsheet {
 	// Header
 	CellStyle headerStyle = workbook.createCellStyle();
 	headerStyle.setFont(boldFont);
+	// one cell value per label, shared by all its cells
+	final EncodedLabels<RichTextString> answerValues = new EncodedLabels<>(creationHelper::createRichTextString, backgroundSymbol);
+	final RichTextString empty = creationHelper.createRichTextString("");
 	int lineIndex = 0;
-	for (List<CoreLabel> sentence : sentences) {
-	    for (CoreLabel token : sentence) {
-		String value = token.get(CoreAnnotations.OriginalTextAnnotation.class);
-		Row row = sheet.createRow(lineIndex);
-		row.createCell(0).setCellValue(creationHelper.createRichTextString(value));
-		if (token.get(CoreAnnotations.AnswerAnnotation.class) == null) {
-		    row.createCell(1).setCellValue(creationHelper.createRichTextString(backgroundSymbol));
-		} else {
-		    row.createCell(1).setCellValue(creationHelper.createRichTextString(token.get(CoreAnnotations.AnswerAnnotation.class)));
+	for (TokenBuffer buffer : buffers) {
+	    for (int s = 0; s < buffer.sentences(); s++) {
+		cancellation.checkUnchecked();
+		for (int i = buffer.start(s); i < buffer.end(s); i++) {
+		    Row row = sheet.createRow(lineIndex);
+		    row.createCell(0).setCellValue(creationHelper.createRichTextString(buffer.word(i)));
+		    row.createCell(1).setCellValue(answerValues.get(buffer, i));
+		    lineIndex++;
 		}
-
+		Row row = sheet.createRow(lineIndex);
+		row.createCell(0).setCellValue(empty);
+		row.createCell(1).setCellValue(empty);
 		lineIndex++;
 	    }
-	    Row row = sheet.createRow(lineIndex);
-	    row.createCell(0).setCellValue(creationHelper.createRichTextString(""));
-	    row.createCell(1).setCellValue(creationHelper.createRichTextString(""));
-	    lineIndex++;
 	}
 
-	try (OutputStream os = Files.newOutputStream(tempOutFile)) { 
+	try {
 	    workbook.write(os);
+	    os.flush();
 	} catch (FileNotFoundException fe) {
 	    LOG.error(fe);
 	} catch (IOException ioe) {
@@ -204,113 +282,159 @@ public class Spreadsheet {
 	}
     }
 
-    private static void createTSVSpreadsheet(List<List<CoreLabel>> sentences, final Path tempOutFile, final String backgroundSymbol) {
-	BufferedWriter tsv = null;
-	String separator = "\t";
+    /**
+     * Writes "word"TAB"answer" lines, encoding the words straight from the
+     * buffers and the rest of each line from pre-encoded bytes per answer.
+     */
+    private static void createTSVSpreadsheet(Iterable<TokenBuffer> buffers, final OutputStream os, final String backgroundSymbol, final Cancellation cancellation) {
+	final EncodedLabels<byte[]> lineEnds = new EncodedLabels<>(label -> ("\"\t\"" + label + "\"\n").getBytes(StandardCharsets.UTF_8), backgroundSymbol);
+	final Utf8Output tsv = new Utf8Output(os);
 	try {
-	    tsv = Files.newBufferedWriter(tempOutFile);
-	    for (List<CoreLabel> sentence : sentences) {
-		for (CoreLabel token : sentence) {
-		    String value = token.get(CoreAnnotations.OriginalTextAnnotation.class);
-		    tsv.append("\"");
-		    tsv.append(value);
-		    tsv.append("\"");
-		    tsv.append(separator);
-		    tsv.append("\"");
-		    if (token.get(CoreAnnotations.AnswerAnnotation.class) == null) {
-			tsv.append(backgroundSymbol);
-		    } else {
-			tsv.append(token.get(CoreAnnotations.AnswerAnnotation.class));
+	    for (TokenBuffer buffer : buffers) {
+		final char[] chars = buffer.chars();
+		for (int s = 0; s < buffer.sentences(); s++) {
+		    cancellation.checkUnchecked();
+		    for (int i = buffer.start(s); i < buffer.end(s); i++) {
+			tsv.write(TSV_QUOTE);
+			tsv.write(chars, buffer.offset(i), buffer.offset(i + 1));
+			tsv.write(lineEnds.get(buffer, i));
 		    }
-		    tsv.append("\"");
-		    tsv.append("\n");
+		    tsv.write(TSV_NEWLINE);
 		}
-		tsv.append("\n");
 	    }
-	    tsv.close();
-	} catch (FileNotFoundException fe) {
-	    LOG.error(fe);
+	    tsv.flush();
 	} catch (IOException ioe) {
 	    LOG.error(ioe);
-	} finally {
-	    if (tsv != null) {
-		tsv = null;
-	    }
 	}
     }
 
-    public static Collection<List<CoreLabel>> readSpreadsheet(final InputDocType inputFormat, BinaryValueFromBinaryString uploadedFileBase64String, final String localFilePath, final int tagCol) throws XPathException {
-	Collection<List<CoreLabel>> res = null;
-	if (uploadedFileBase64String == null && localFilePath == null) {
-	    res = readODSSpreadsheet(uploadedFileBase64String, "/db/temp/swe-clarin/user-annotated.ods", tagCol);
-	} else {
-	    switch(inputFormat) {
-	    case ODS:
-		res = readODSSpreadsheet(uploadedFileBase64String, localFilePath, tagCol);
-		break;
-	    case XLSX:
-		res = readXLSXSpreadsheet(uploadedFileBase64String, localFilePath, inputFormat);
-		break;
-	    case XLS:
-		res = readXLSXSpreadsheet(uploadedFileBase64String, localFilePath, inputFormat);
-		break;
-	    case TSV:
-		res = readTSVSpreadsheet(uploadedFileBase64String, localFilePath);
-		break;
+    private static byte[] concat(final byte[]... parts) {
+	int length = 0;
+	for (byte[] part : parts) {
+	    length += part.length;
+	}
+	final byte[] bytes = new byte[length];
+	int offset = 0;
+	for (byte[] part : parts) {
+	    System.arraycopy(part, 0, bytes, offset, part.length);
+	    offset += part.length;
+	}
+	return bytes;
+    }
+
+    /**
+     * The answers of the written tokens in the form of the output format,
+     * created once per label and background symbol.
+     */
+    private static class EncodedLabels<T> {
+	private final Function<String, T> encoder;
+	private final T background;
+	private Labels labels = null;
+	private Object[] encoded = new Object[0];
+
+	EncodedLabels(final Function<String, T> encoder, final String backgroundSymbol) {
+	    this.encoder = encoder;
+	    this.background = encoder.apply(backgroundSymbol);
+	}
+
+	@SuppressWarnings("unchecked")
+	T get(final TokenBuffer buffer, final int token) {
+	    final int id = buffer.answerId(token);
+	    if (id == Labels.NONE) {
+		return background;
+	    }
+	    if (buffer.labels() != labels) {
+		labels = buffer.labels();
+		encoded = new Object[0];
+	    }
+	    if (id >= encoded.length) {
+		encoded = Arrays.copyOf(encoded, Math.max(id + 1, encoded.length * 2));
 	    }
+	    if (encoded[id] == null) {
+		encoded[id] = encoder.apply(labels.label(id));
+	    }
+	    return (T) encoded[id];
+	}
+    }
+
+    public static TokenBuffer readSpreadsheet(final InputDocType inputFormat, BinaryValue uploadedFile, final String localFilePath, final int tagCol) throws XPathException {
+	try (InputStream is = openSpreadsheet(uploadedFile, localFilePath)) {
+	    return readSpreadsheet(uploadedFile == null && localFilePath == null ? InputDocType.ODS : inputFormat, is, tagCol);
+	} catch (IOException ioe) {
+	    throw new XPathException("Error while reading spreadsheet document: " + ioe.getMessage(), ioe);
+	}
+    }
+
+    /**
+     * Opens the uploaded spreadsheet, or else the local file or the default
+     * spreadsheet with the permissions of the broker of the calling thread.
+     * The default spreadsheet is an ODS document.
+     */
+    public static InputStream openSpreadsheet(BinaryValue uploadedFile, final String localFilePath) throws IOException {
+	if (uploadedFile != null) {
+	    return uploadedFile.getInputStream();
+	}
+	return new Resource(localFilePath != null ? localFilePath : "/db/temp/swe-clarin/user-annotated.ods").getInputStream();
+    }
+
+    /**
+     * Reads a spreadsheet from a stream opened by {@link #openSpreadsheet}, which
+     * the caller closes.
+     */
+    public static TokenBuffer readSpreadsheet(final InputDocType inputFormat, final InputStream documentStream, final int tagCol) throws XPathException {
+	final InputStream is = ModuleMetrics.getInstance().countRead(documentStream);
+	TokenBuffer res = null;
+	switch(inputFormat) {
+	case ODS:
+	    res = readODSSpreadsheet(is, tagCol);
+	    break;
+	case XLSX:
+	    res = readXLSXSpreadsheet(is, inputFormat);
+	    break;
+	case XLS:
+	    res = readXLSXSpreadsheet(is, inputFormat);
+	    break;
+	case TSV:
+	    res = readTSVSpreadsheet(is);
+	    break;
 	}
 	return res;
     }
 
-    private static Collection<List<CoreLabel>> readODSSpreadsheet(final BinaryValueFromBinaryString uploadedFileBase64String, final String localFilePath, final int tagCol) throws XPathException {
-	Collection<List<CoreLabel>> documents = new ArrayList<>();
-	List<CoreLabel> document = new ArrayList<>();
+    private static TokenBuffer readODSSpreadsheet(final InputStream is, final int tagCol) throws XPathException {
 	SpreadSheet spreadSheet = null;
 
-	//try (InputStream is = Files.newInputStream(tempInFile)) {
-	try (InputStream is = uploadedFileBase64String != null ? uploadedFileBase64String.getInputStream() : new Resource(localFilePath).getInputStream()) {
+	try {
 	    spreadSheet = ODPackage.createFromStream(is, "UserAnnotatedDocument").getSpreadSheet();
 	} catch (IOException ioe) {
 	    throw new XPathException("Error while reading spreadsheet document: " + ioe.getMessage(), ioe);
 	}
 
 	Sheet sheet = spreadSheet.getSheet(0);
-	    
+	TokenBuffer tokens = new TokenBuffer(sheet.getRowCount());
+
 	for (int i = 0; i < sheet.getRowCount(); i++) {
-	    CoreLabel tok = new CoreLabel();
 	    String value1 = sheet.getValueAt(0, i).toString();
-	    String value2 = sheet.getValueAt(1, i).toString();
-
-	    tok.setWord(value1);
-	    tok.setNER(value2);
-	    tok.set(CoreAnnotations.AnswerAnnotation.class, value2);
-	    if (sheet.getColumnCount() > 2) {
-		String value3 = sheet.getValueAt(2, i).toString();
-		if (!"".equals(value3) && tagCol > -1) {
-		    tok.setTag(value3);
-		}
-	    }
 
 	    if (!"".equals(value1)) {
-		document.add(tok);
+		String value2 = sheet.getValueAt(1, i).toString();
+		String value3 = null;
+		if (sheet.getColumnCount() > 2 && tagCol > -1) {
+		    value3 = sheet.getValueAt(2, i).toString();
+		}
+		tokens.add(value1, value2, "".equals(value3) ? null : value3);
 	    } else {
-		documents.add(document);
-		document = new ArrayList<>();
+		tokens.endSentence();
 	    }
 	}
-	if (document.size() > 0) {
-	    documents.add(document);
-	}
-	return documents;
+	tokens.endSentence();
+	return tokens;
     }
 
-    private static Collection<List<CoreLabel>> readXLSXSpreadsheet(final BinaryValueFromBinaryString uploadedFileBase64String, final String localFilePath, final InputDocType inputFormat) throws XPathException {
+    private static TokenBuffer readXLSXSpreadsheet(final InputStream is, final InputDocType inputFormat) throws XPathException {
 	Workbook workbook = null;
-	Collection<List<CoreLabel>> documents = new ArrayList<>();
-	List<CoreLabel> document = new ArrayList<>();
 
-	// try (InputStream is = Files.newInputStream(tempInFile)) {
-	try (InputStream is = uploadedFileBase64String != null ? uploadedFileBase64String.getInputStream() : new Resource(localFilePath).getInputStream()) {
+	try {
 	    if (inputFormat == InputDocType.XLSX) {
 		workbook = new XSSFWorkbook(is);
 	    } else {
@@ -323,86 +447,84 @@ public class Spreadsheet {
 	    throw new XPathException("Error while reading spreadsheet document: " + ioe.getMessage(), ioe);
 	}
 	org.apache.poi.ss.usermodel.Sheet sheet = workbook.getSheetAt(0);
+	TokenBuffer tokens = new TokenBuffer(sheet.getLastRowNum() + 1);
 	Row row;
 	Cell cell;
 	for (int rowPos = 0; rowPos <= sheet.getLastRowNum(); rowPos++) {
-	    CoreLabel tok = new CoreLabel();
+	    String word = null;
+	    String answer = null;
+	    String tag = null;
 	    row = (Row) sheet.getRow(rowPos);
 	    if (row != null) {
-		for (int cellPos = 0; cellPos < row.getLastCellNum(); cellPos++) {
+		for (int cellPos = 0; cellPos < row.getLastCellNum() && cellPos < 3; cellPos++) {
 		    cell = row.getCell(cellPos, Row.CREATE_NULL_AS_BLANK);
+		    String value = null;
+		    if (cell != null && cell.getCellType() == Cell.CELL_TYPE_STRING) {
+			value = cell.getStringCellValue();
+		    } else if(cell != null && cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+			value = cell.getNumericCellValue() + "";
+		    }
 		    switch (cellPos) {
 		    case 0:
-			if (cell != null && cell.getCellType() == Cell.CELL_TYPE_STRING) {
-			    tok.setWord(cell == null ? "" : cell.getStringCellValue());
-			} else if(cell != null && cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-			    tok.setWord(cell == null ? "" : cell.getNumericCellValue() + "");
-			}
+			word = value;
 			break;
 		    case 1:
-			if (cell != null && cell.getCellType() == Cell.CELL_TYPE_STRING) {
-			    tok.setNER(cell == null ? "" : cell.getStringCellValue());
-			    tok.set(CoreAnnotations.AnswerAnnotation.class, cell == null ? "O" : cell.getStringCellValue());
-			} else if(cell != null && cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-			    tok.setNER(cell == null ? "" : cell.getNumericCellValue() + "");
-			    tok.set(CoreAnnotations.AnswerAnnotation.class, cell == null ? "O" : cell.getNumericCellValue() + "");
-			}
+			answer = value;
 			break;
 		    case 2:
-			if (cell != null && cell.getCellType() == Cell.CELL_TYPE_STRING) {
-			    tok.setTag(cell == null ? "" : cell.getStringCellValue());
-			} else if(cell != null && cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-			    tok.setTag(cell == null ? "" : cell.getNumericCellValue() + "");
-			}
+			tag = value;
 			break;
 		    default: break;
 		    }
 		}
 	    }
-	    if (row != null && !"".equals(tok.word())) {
-		document.add(tok);
+	    if (word != null && !"".equals(word)) {
+		tokens.add(word, answer, tag);
 	    } else {
-		documents.add(document);
-		document = new ArrayList<>(); 
+		tokens.endSentence();
 	    }
 	}
-	if (document.size() > 0) {
-	    documents.add(document);
-	}
-	return documents;
+	tokens.endSentence();
+	return tokens;
     }
 
-    private static Collection<List<CoreLabel>> readTSVSpreadsheet(final BinaryValueFromBinaryString uploadedFileBase64String, final String localFilePath) throws XPathException {
-	String separator = "\t";
+    private static TokenBuffer readTSVSpreadsheet(final InputStream is) throws XPathException {
 	String line;
-	Collection<List<CoreLabel>> documents = new ArrayList<>();
-	List<CoreLabel> document = new ArrayList<>();
+	TokenBuffer tokens = new TokenBuffer();
 
-	//try (BufferedReader tsv = Files.newBufferedReader(tempInFile)) {
-	try (BufferedReader tsv = uploadedFileBase64String != null ? new BufferedReader(new InputStreamReader(uploadedFileBase64String.getInputStream(), "UTF-8")) : new Resource(localFilePath).getBufferedReader()) {
+	try {
+	    final BufferedReader tsv = new BufferedReader(new InputStreamReader(is, "UTF-8"));
 	    while ((line = tsv.readLine()) != null) {
-		CoreLabel tok = new CoreLabel();
-		List<String> cells = Arrays.asList(line.split(separator));
-		if (cells.size() > 0 && !"".equals(cells.get(0))) {
-		    tok.setWord(cells.get(0));
-		    tok.setNER(cells.get(1));
-		    tok.set(CoreAnnotations.AnswerAnnotation.class, cells.get(1));
-		    if (cells.size() > 2 && !"".equals(cells.get(2))) {
-			tok.setTag(cells.get(2));
+		// the cells are taken from the line as it is, interning the labels without splitting it
+		final int wordEnd = cellEnd(line, 0);
+		if (wordEnd > 0) {
+		    int answer = Labels.NONE;
+		    int tag = Labels.NONE;
+		    if (wordEnd < line.length()) {
+			final int answerEnd = cellEnd(line, wordEnd + 1);
+			answer = tokens.labels().id(line, wordEnd + 1, answerEnd);
+			if (answerEnd + 1 < line.length()) {
+			    final int tagEnd = cellEnd(line, answerEnd + 1);
+			    if (tagEnd > answerEnd + 1) {
+				tag = tokens.labels().id(line, answerEnd + 1, tagEnd);
+			    }
+			}
 		    }
-		    document.add(tok);
+		    tokens.add(line, 0, wordEnd, answer, tag);
 		} else {
-		    documents.add(document);
-		    document = new ArrayList<>();
+		    tokens.endSentence();
 		}
 	    }
-	    if (document.size() > 0) {
-		documents.add(document);
-	    }
+	    tokens.endSentence();
 	} catch (IOException ioe) {
 	    LOG.error(ioe);
 	    throw new XPathException("Error while reading spreadsheet document: " + ioe.getMessage(), ioe);
 	}
-	return documents;
+	return tokens;
+    }
+
+    private static int cellEnd(final String line, final int start) {
+	final int end = line.indexOf('\t', start);
+	return end < 0 ? line.length() : end;
     }
 }
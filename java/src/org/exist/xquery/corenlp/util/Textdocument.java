@@ -43,6 +43,12 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ie.crf.CRFClassifier;
@@ -57,6 +63,8 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.poi.POITextExtractor;
 import org.apache.poi.extractor.ExtractorFactory;
+import org.apache.poi.hwpf.HWPFDocument;
+import org.apache.poi.hwpf.usermodel.Range;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.ss.usermodel.Cell;
@@ -68,6 +76,15 @@ import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xwpf.usermodel.IBodyElement;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFFooter;
+import org.apache.poi.xwpf.usermodel.XWPFFootnote;
+import org.apache.poi.xwpf.usermodel.XWPFHeader;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFTable;
+import org.apache.poi.xwpf.usermodel.XWPFTableCell;
+import org.apache.poi.xwpf.usermodel.XWPFTableRow;
 import org.apache.xmlbeans.XmlException;
 
 import org.exist.dom.persistent.BinaryDocument;
@@ -97,104 +114,215 @@ import org.jopendocument.dom.spreadsheet.SpreadSheet;
 
 public class Textdocument {
     private final static Logger LOG = LogManager.getLogger(Textdocument.class);
+    private final static String ODF_TEXT_NS = "urn:oasis:names:tc:opendocument:xmlns:text:1.0";
+    private final static XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
 
-    public static String readTextDocument(final InputDocType textDocType, BinaryValueFromBinaryString uploadedFileBase64String, final String localFilePath) throws IOException {
-	if (uploadedFileBase64String == null) {
-	    if (localFilePath == null) {
-		return readLocalTextDocument(InputDocType.ODT, "/db/temp/swe-clarin/user-selection.odt");
-	    } else {
-		return readLocalTextDocument(textDocType, localFilePath);
-	    }
-	} else {
-	    return readUploadedTextDocument(textDocType, uploadedFileBase64String);
+    static {
+	XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Receives the text of a document one paragraph at a time while it is
+     * being extracted.
+     */
+    public interface ParagraphHandler {
+	void paragraph(String text) throws IOException;
+    }
+
+    public static String readTextDocument(final InputDocType textDocType, BinaryValue uploadedFile, final String localFilePath) throws IOException {
+	final StringBuilder text = new StringBuilder();
+	readTextDocument(textDocType, uploadedFile, localFilePath, paragraph -> {
+		if (text.length() > 0) {
+		    text.append("\n\n");
+		}
+		text.append(paragraph);
+	    });
+	return text.toString();
+    }
+
+    /**
+     * Extracts the text of the document paragraph by paragraph. ODT and TXT
+     * documents are streamed, so memory use is proportional to the largest
+     * paragraph rather than to the document. DOCX and DOC documents still load
+     * the full POI model, only their text is not concatenated. Their headers
+     * come before the body and their footnotes and footers after it, as with
+     * the POI text extractors; DOCX endnotes are not extracted.
+     */
+    public static void readTextDocument(final InputDocType textDocType, BinaryValue uploadedFile, final String localFilePath, final ParagraphHandler handler) throws IOException {
+	try (InputStream is = openTextDocument(uploadedFile, localFilePath)) {
+	    readTextDocument(uploadedFile == null && localFilePath == null ? InputDocType.ODT : textDocType, is, handler);
 	}
     }
 
-    private static String readUploadedTextDocument(final InputDocType textDocType, BinaryValueFromBinaryString uploadedFileBase64String) throws IOException {
-	String text = "";
-	
+    /**
+     * Opens the uploaded document, or else the local file or the default
+     * document with the permissions of the broker of the calling thread.
+     * The default document is an ODT document.
+     */
+    public static InputStream openTextDocument(BinaryValue uploadedFile, final String localFilePath) throws IOException {
+	if (uploadedFile != null) {
+	    return uploadedFile.getInputStream();
+	}
+	return new Resource(localFilePath != null ? localFilePath : "/db/temp/swe-clarin/user-selection.odt").getInputStream();
+    }
 
+    /**
+     * Extracts the text of a document from a stream opened by {@link #openTextDocument},
+     * which the caller closes.
+     */
+    public static void readTextDocument(final InputDocType textDocType, final InputStream documentStream, final ParagraphHandler handler) throws IOException {
+	final InputStream is = ModuleMetrics.getInstance().countRead(documentStream);
 	switch (textDocType) {
 	case ODT:
-	    	try (InputStream is = uploadedFileBase64String.getInputStream()) {
-
-		    TextDocument utd = ODPackage.createFromStream(is, "UserTextDocument").getTextDocument();
-		    text = utd.getCharacterContent(true); //ooMode?
-		}
+	    readODTParagraphs(is, handler);
 	    break;
 	case DOCX:
-	    try (InputStream is = uploadedFileBase64String.getInputStream()) {
-		POITextExtractor extractor = ExtractorFactory.createExtractor(is);
-		text = extractor.getText();
-	    } catch (InvalidFormatException ife) {
-		LOG.error(ife);
-	    } catch (OpenXML4JException ox4e) {
-		LOG.error(ox4e);
-	    } catch (XmlException xe) {
-		LOG.error(xe);
-	    }
+	    readDOCXParagraphs(is, handler);
 	    break;
 	case DOC:
-	    try (InputStream is = uploadedFileBase64String.getInputStream()) {
-		POITextExtractor extractor = ExtractorFactory.createExtractor(is);
-		text = extractor.getText();
-	    } catch (InvalidFormatException ife) {
-		LOG.error(ife);
-	    } catch (OpenXML4JException ox4e) {
-		LOG.error(ox4e);
-	    } catch (XmlException xe) {
-		LOG.error(xe);
-	    }
+	    readDOCParagraphs(is, handler);
 	    break;
 	case TXT:
-	    text = IOUtils.slurpInputStream(uploadedFileBase64String.getInputStream(), "UTF-8"); // Or null
+	    readTXTParagraphs(is, handler);
 	    break;
 	}
-	return text;
     }
 
-    private static String readLocalTextDocument(final InputDocType textDocType, final String localFilePath) throws IOException {
-	String text = "";
+    private static void readODTParagraphs(final InputStream is, final ParagraphHandler handler) throws IOException {
+	ZipInputStream zis = new ZipInputStream(is);
+	ZipEntry entry;
+	while ((entry = zis.getNextEntry()) != null) {
+	    if ("content.xml".equals(entry.getName())) {
+		try {
+		    XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(zis);
+		    StringBuilder paragraph = new StringBuilder();
+		    int depth = 0;
+		    while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+			    if (ODF_TEXT_NS.equals(reader.getNamespaceURI())) {
+				String name = reader.getLocalName();
+				if ("p".equals(name) || "h".equals(name)) {
+				    depth++;
+				} else if ("s".equals(name) && depth > 0) {
+				    String c = reader.getAttributeValue(ODF_TEXT_NS, "c");
+				    for (int i = spaces(c); i > 0; i--) {
+					paragraph.append(' ');
+				    }
+				} else if ("tab".equals(name) && depth > 0) {
+				    paragraph.append('\t');
+				} else if ("line-break".equals(name) && depth > 0) {
+				    paragraph.append('\n');
+				}
+			    }
+			    break;
+			case XMLStreamConstants.END_ELEMENT:
+			    if (ODF_TEXT_NS.equals(reader.getNamespaceURI())
+				&& ("p".equals(reader.getLocalName()) || "h".equals(reader.getLocalName()))
+				&& --depth == 0) {
+				emitParagraph(paragraph.toString(), handler);
+				paragraph.setLength(0);
+			    }
+			    break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			    if (depth > 0) {
+				paragraph.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+			    }
+			    break;
+			default: break;
+			}
+		    }
+		    reader.close();
+		} catch (XMLStreamException xse) {
+		    throw new IOException("Error while parsing text document content: " + xse.getMessage(), xse);
+		}
+		return;
+	    }
+	}
+	LOG.error("No content.xml found in the text document!");
+    }
 
-	switch (textDocType) {
-	case ODT:
-	    	try (InputStream is = new Resource(localFilePath).getInputStream()) {
+    private static void readDOCXParagraphs(final InputStream is, final ParagraphHandler handler) throws IOException {
+	XWPFDocument document = new XWPFDocument(is);
+	for (XWPFHeader header : document.getHeaderList()) {
+	    emitBodyElements(header.getBodyElements(), handler);
+	}
+	emitBodyElements(document.getBodyElements(), handler);
+	for (XWPFFootnote footnote : document.getFootnotes()) {
+	    emitBodyElements(footnote.getBodyElements(), handler);
+	}
+	for (XWPFFooter footer : document.getFooterList()) {
+	    emitBodyElements(footer.getBodyElements(), handler);
+	}
+    }
 
-		    TextDocument utd = ODPackage.createFromStream(is, "UserTextDocument").getTextDocument();
-		    text = utd.getCharacterContent(true); //ooMode?
+    private static void emitBodyElements(final List<IBodyElement> elements, final ParagraphHandler handler) throws IOException {
+	for (IBodyElement element : elements) {
+	    if (element instanceof XWPFParagraph) {
+		emitParagraph(((XWPFParagraph) element).getText(), handler);
+	    } else if (element instanceof XWPFTable) {
+		for (XWPFTableRow row : ((XWPFTable) element).getRows()) {
+		    for (XWPFTableCell cell : row.getTableCells()) {
+			emitParagraph(cell.getText(), handler);
+		    }
 		}
-	    break;
-	case DOCX:
-	    try (InputStream is = new Resource(localFilePath).getInputStream()) {
-		POITextExtractor extractor = ExtractorFactory.createExtractor(is);
-		//XWPFWordExtractor extractor = new XWPFWordExtractor(is);
-		text = extractor.getText();
-	    } catch (InvalidFormatException ife) {
-		LOG.error(ife);
-	    } catch (OpenXML4JException ox4e) {
-		LOG.error(ox4e);
-	    } catch (XmlException xe) {
-		LOG.error(xe);
 	    }
-	    break;
-	case DOC:
-	    try (InputStream is = new Resource(localFilePath).getInputStream()) {
-		POITextExtractor extractor = ExtractorFactory.createExtractor(is);
-		//XWPFWordExtractor extractor = new XWPFWordExtractor(is);
-		text = extractor.getText();
-	    } catch (InvalidFormatException ife) {
-		LOG.error(ife);
-	    } catch (OpenXML4JException ox4e) {
-		LOG.error(ox4e);
-	    } catch (XmlException xe) {
-		LOG.error(xe);
+	}
+    }
+
+    private static void readDOCParagraphs(final InputStream is, final ParagraphHandler handler) throws IOException {
+	HWPFDocument document = new HWPFDocument(is);
+	// the header stories hold both the headers and the footers
+	emitRange(document.getHeaderStoryRange(), handler);
+	emitRange(document.getRange(), handler);
+	emitRange(document.getFootnoteRange(), handler);
+	emitRange(document.getEndnoteRange(), handler);
+    }
+
+    private static void emitRange(final Range range, final ParagraphHandler handler) throws IOException {
+	for (int i = 0; i < range.numParagraphs(); i++) {
+	    emitParagraph(Range.stripFields(range.getParagraph(i).text()), handler);
+	}
+    }
+
+    private static void readTXTParagraphs(final InputStream is, final ParagraphHandler handler) throws IOException {
+	BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+	StringBuilder paragraph = new StringBuilder();
+	String line;
+	while ((line = reader.readLine()) != null) {
+	    if (line.trim().isEmpty()) {
+		emitParagraph(paragraph.toString(), handler);
+		paragraph.setLength(0);
+	    } else {
+		if (paragraph.length() > 0) {
+		    paragraph.append('\n');
+		}
+		paragraph.append(line);
 	    }
-	    break;
-	case TXT:
-	    File file = new Resource(localFilePath);
-	    text = IOUtils.slurpFileNoExceptions(file);
-	    break;
 	}
-	return text;
+	emitParagraph(paragraph.toString(), handler);
+    }
+
+    /**
+     * Returns the number of spaces of a text:s element, 1 if its text:c is missing or invalid.
+     */
+    private static int spaces(final String c) {
+	if (c != null) {
+	    try {
+		return Integer.parseInt(c.trim());
+	    } catch (NumberFormatException e) {
+		LOG.warn("Invalid number of spaces in the text document: " + c);
+	    }
+	}
+	return 1;
+    }
+
+    private static void emitParagraph(final String paragraph, final ParagraphHandler handler) throws IOException {
+	String text = paragraph.trim();
+	if (!text.isEmpty()) {
+	    handler.paragraph(text);
+	}
     }
 }
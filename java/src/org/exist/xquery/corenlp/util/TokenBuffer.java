@@ -0,0 +1,254 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+
+/**
+ * Columnar buffer of the tokens of a spreadsheet: the text of all tokens in
+ * one char array with their offsets, and the answer and tag of each token as
+ * ids into a dictionary of labels, which buffers of the same call share. Sentences are ranges of tokens. Compared
+ * to a CoreLabel per row this saves the annotation map and the strings of
+ * every token; CoreLabels are only created at the classifier boundary, one
+ * sentence at a time.
+ *
+ * @author ljo
+ */
+public class TokenBuffer {
+    private char[] chars;
+    private int length = 0;
+    // token i spans chars offsets[i] to offsets[i + 1]
+    private int[] offsets;
+    private int[] answers;
+    private int[] tags;
+    private int tokens = 0;
+    // sentence s spans tokens sentences[s] to sentences[s + 1]
+    private int[] sentences;
+    private int sentenceCount = 0;
+
+    private final Labels labels;
+
+    public TokenBuffer() {
+	this(1024);
+    }
+
+    /**
+     * @param tokens expected number of tokens
+     */
+    public TokenBuffer(final int tokens) {
+	this(tokens, new Labels());
+    }
+
+    /**
+     * @param tokens expected number of tokens
+     * @param labels the dictionary of labels, shared with other buffers
+     */
+    public TokenBuffer(final int tokens, final Labels labels) {
+	this.labels = labels;
+	final int capacity = Math.max(tokens, 16);
+	chars = new char[capacity * 8];
+	offsets = new int[capacity + 1];
+	answers = new int[capacity];
+	tags = new int[capacity];
+	sentences = new int[Math.max(capacity / 8, 16) + 1];
+    }
+
+    /**
+     * Creates a buffer of a single sentence, e.g. of a tokenizer or the
+     * classifier. Tokens are kept with their original text if set.
+     */
+    public static TokenBuffer of(final List<CoreLabel> sentence, final Labels labels) {
+	final TokenBuffer buffer = new TokenBuffer(sentence.size(), labels);
+	buffer.add(sentence);
+	return buffer;
+    }
+
+    /**
+     * Appends a token to the current sentence.
+     *
+     * @param answer the answer, or null if none
+     * @param tag the part of speech tag, or null if none
+     */
+    public void add(final CharSequence word, final String answer, final String tag) {
+	add(word, 0, word.length(), labels.id(answer), labels.id(tag));
+    }
+
+    /**
+     * Appends the text at start to end as a token to the current sentence.
+     *
+     * @param answer the id of the answer, or Labels.NONE
+     * @param tag the id of the part of speech tag, or Labels.NONE
+     */
+    public void add(final CharSequence text, final int start, final int end, final int answer, final int tag) {
+	if (tokens == answers.length) {
+	    final int capacity = tokens * 2;
+	    offsets = Arrays.copyOf(offsets, capacity + 1);
+	    answers = Arrays.copyOf(answers, capacity);
+	    tags = Arrays.copyOf(tags, capacity);
+	}
+	if (length + end - start > chars.length) {
+	    chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + end - start));
+	}
+	for (int i = start; i < end; i++) {
+	    chars[length++] = text.charAt(i);
+	}
+	answers[tokens] = answer;
+	tags[tokens] = tag;
+	offsets[++tokens] = length;
+    }
+
+    /**
+     * Appends the tokens as a sentence.
+     */
+    public void add(final List<CoreLabel> sentence) {
+	for (CoreLabel token : sentence) {
+	    final String originalText = token.get(CoreAnnotations.OriginalTextAnnotation.class);
+	    add(originalText != null ? originalText : token.word(), token.get(CoreAnnotations.AnswerAnnotation.class), token.tag());
+	}
+	endSentence();
+    }
+
+    /**
+     * Ends the current sentence, if it has any tokens.
+     */
+    public void endSentence() {
+	if (tokens > sentences[sentenceCount]) {
+	    if (sentenceCount + 1 == sentences.length) {
+		sentences = Arrays.copyOf(sentences, sentences.length * 2);
+	    }
+	    sentences[++sentenceCount] = tokens;
+	}
+    }
+
+    public int sentences() {
+	return sentenceCount;
+    }
+
+    public int tokens() {
+	return sentences[sentenceCount];
+    }
+
+    /**
+     * Index of the first token of the sentence.
+     */
+    public int start(final int sentence) {
+	return sentences[sentence];
+    }
+
+    /**
+     * Index after the last token of the sentence.
+     */
+    public int end(final int sentence) {
+	return sentences[sentence + 1];
+    }
+
+    public String word(final int token) {
+	return new String(chars, offsets[token], offsets[token + 1] - offsets[token]);
+    }
+
+    // the text of all tokens, for the writers
+    char[] chars() {
+	return chars;
+    }
+
+    // offset of the text of the token in chars(), the end is the offset of the next
+    int offset(final int token) {
+	return offsets[token];
+    }
+
+    /**
+     * The answer of the token, or null if none.
+     */
+    public String answer(final int token) {
+	return labels.label(answers[token]);
+    }
+
+    /**
+     * The id of the answer of the token, or Labels.NONE.
+     */
+    public int answerId(final int token) {
+	return answers[token];
+    }
+
+    public void setAnswer(final int token, final String answer) {
+	answers[token] = labels.id(answer);
+    }
+
+    /**
+     * The part of speech tag of the token, or null if none.
+     */
+    public String tag(final int token) {
+	return labels.label(tags[token]);
+    }
+
+    public Labels labels() {
+	return labels;
+    }
+
+    /**
+     * Creates the CoreLabels of the sentence for the classifier, with word,
+     * answer, NER and tag set as the spreadsheet readers used to.
+     */
+    public List<CoreLabel> sentence(final int sentence) {
+	final int end = end(sentence);
+	final List<CoreLabel> labels = new ArrayList<>(end - start(sentence));
+	for (int i = start(sentence); i < end; i++) {
+	    final CoreLabel token = new CoreLabel();
+	    token.setWord(word(i));
+	    final String answer = answer(i);
+	    if (answer != null) {
+		token.setNER(answer);
+		token.set(CoreAnnotations.AnswerAnnotation.class, answer);
+	    }
+	    final String tag = tag(i);
+	    if (tag != null) {
+		token.setTag(tag);
+	    }
+	    labels.add(token);
+	}
+	return labels;
+    }
+
+    /**
+     * The sentences as documents for training. CoreLabels are created anew
+     * each time a sentence is read, so only the sentences in use are held.
+     */
+    public List<List<CoreLabel>> documents() {
+	return new AbstractList<List<CoreLabel>>() {
+	    @Override
+	    public List<CoreLabel> get(final int index) {
+		if (index < 0 || index >= sentenceCount) {
+		    throw new IndexOutOfBoundsException("Sentence " + index + " outside [0, " + sentenceCount + ")");
+		}
+		return sentence(index);
+	    }
+
+	    @Override
+	    public int size() {
+		return sentenceCount;
+	    }
+	};
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.LexedTokenFactory;
+import edu.stanford.nlp.process.TokenizerFactory;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.xquery.XPathException;
+
+/**
+ * Resolves tokenizer class names into tokenizer factories. Factories are
+ * created once per class name and option string and shared between queries;
+ * a tokenizer for each call is then obtained cheaply from the factory. As the
+ * options come from the queries, only the most recently used factories are kept.
+ *
+ * @author ljo
+ */
+public class TokenizerFactories {
+    private final static Logger LOG = LogManager.getLogger(TokenizerFactories.class);
+    public final static String DEFAULT_TOKENIZER = "edu.stanford.nlp.process.PTBTokenizer";
+
+    private final static int MAX_FACTORIES = 64;
+
+    // guarded by itself, in access order so the least recently used factory is dropped first
+    private final static Map<String, TokenizerFactory<CoreLabel>> factories = new LinkedHashMap<String, TokenizerFactory<CoreLabel>>(16, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(final Map.Entry<String, TokenizerFactory<CoreLabel>> eldest) {
+	    return size() > MAX_FACTORIES;
+	}
+    };
+
+    /**
+     * Returns the cached factory for the tokenizer class and options, creating it on first use
+     * or once it has been dropped from the cache.
+     *
+     * @param tokenizerClassName fully qualified name of a tokenizer or tokenizer factory class.
+     *        Empty selects the PTBTokenizer.
+     * @param options comma separated tokenizer options, e.g. "invertible,tokenizeNLs=true"
+     */
+    public static TokenizerFactory<CoreLabel> getFactory(final String tokenizerClassName, final String options) throws XPathException {
+	final String className = tokenizerClassName == null || tokenizerClassName.isEmpty() ? DEFAULT_TOKENIZER : tokenizerClassName;
+	final String key = className + '|' + (options == null ? "" : options);
+	synchronized (factories) {
+	    final TokenizerFactory<CoreLabel> factory = factories.get(key);
+	    if (factory != null) {
+		return factory;
+	    }
+	}
+	// created without holding the lock, a concurrent call may create the same factory
+	final TokenizerFactory<CoreLabel> factory = createFactory(className, options);
+	synchronized (factories) {
+	    final TokenizerFactory<CoreLabel> previous = factories.putIfAbsent(key, factory);
+	    return previous != null ? previous : factory;
+	}
+    }
+
+    /**
+     * Builds the option string understood by the PTB style tokenizers.
+     */
+    public static String options(final boolean invertible, final boolean tokenizeNLs, final String extraOptions) {
+	StringBuilder options = new StringBuilder();
+	options.append("invertible=").append(invertible);
+	options.append(",tokenizeNLs=").append(tokenizeNLs);
+	if (extraOptions != null && !extraOptions.isEmpty()) {
+	    options.append(',').append(extraOptions);
+	}
+	return options.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TokenizerFactory<CoreLabel> createFactory(final String className, final String options) throws XPathException {
+	try {
+	    Class<?> tokenizerClass = Class.forName(className, true, TokenizerFactories.class.getClassLoader());
+	    if (TokenizerFactory.class.isAssignableFrom(tokenizerClass)) {
+		TokenizerFactory<CoreLabel> factory = (TokenizerFactory<CoreLabel>) tokenizerClass.newInstance();
+		if (options != null && !options.isEmpty()) {
+		    factory.setOptions(options);
+		}
+		return factory;
+	    }
+
+	    Method method = findMethod(tokenizerClass, "factory", LexedTokenFactory.class, String.class);
+	    if (method != null) {
+		return (TokenizerFactory<CoreLabel>) method.invoke(null, new CoreLabelTokenFactory(), options);
+	    }
+	    method = findMethod(tokenizerClass, "newCoreLabelTokenizerFactory", String.class);
+	    if (method != null) {
+		return (TokenizerFactory<CoreLabel>) method.invoke(null, options);
+	    }
+	    method = findMethod(tokenizerClass, "coreLabelFactory");
+	    if (method != null) {
+		TokenizerFactory<CoreLabel> factory = (TokenizerFactory<CoreLabel>) method.invoke(null);
+		if (options != null && !options.isEmpty()) {
+		    factory.setOptions(options);
+		}
+		return factory;
+	    }
+	    throw new XPathException("Tokenizer " + className + " provides no CoreLabel tokenizer factory");
+	} catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+	    LOG.error(e);
+	    throw new XPathException("Unable to load tokenizer " + className + ": " + e.getMessage(), e);
+	} catch (InvocationTargetException e) {
+	    LOG.error(e.getCause());
+	    throw new XPathException("Unable to create tokenizer factory for " + className + ": " + e.getCause().getMessage(), e.getCause());
+	}
+    }
+
+    private static Method findMethod(final Class<?> tokenizerClass, final String name, final Class<?>... parameterTypes) {
+	try {
+	    return tokenizerClass.getMethod(name, parameterTypes);
+	} catch (NoSuchMethodException e) {
+	    return null;
+	}
+    }
+}
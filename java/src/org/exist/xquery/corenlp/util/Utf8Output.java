@@ -0,0 +1,173 @@
+/*
+ *   exist-stanford-corenlp: XQuery module to integrate the Stanford CoreNLP
+ *   annotation pipeline library with eXist-db.
+ *   Copyright (C) 2016 ljo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.corenlp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered UTF-8 output of the spreadsheet writers. Token text is encoded
+ * straight from the char array of a TokenBuffer and labels are copied as
+ * pre-encoded bytes, without creating strings or going through a charset
+ * encoder for every cell.
+ *
+ * @author ljo
+ */
+final class Utf8Output {
+    private final static byte[] AMP = ascii("&amp;");
+    private final static byte[] LT = ascii("&lt;");
+    private final static byte[] GT = ascii("&gt;");
+    private final static byte[] SPACE = ascii("<text:s/>");
+    private final static byte[] TAB = ascii("<text:tab/>");
+    private final static byte[] LINE_BREAK = ascii("<text:line-break/>");
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[65536];
+    private int position = 0;
+
+    Utf8Output(final OutputStream out) {
+	this.out = out;
+    }
+
+    static byte[] ascii(final String text) {
+	final byte[] bytes = new byte[text.length()];
+	for (int i = 0; i < bytes.length; i++) {
+	    bytes[i] = (byte) text.charAt(i);
+	}
+	return bytes;
+    }
+
+    /**
+     * The text encoded as the content of an ODF text:p element.
+     */
+    static byte[] xml(final String text) {
+	final ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() + 16);
+	final Utf8Output output = new Utf8Output(bytes);
+	try {
+	    output.writeXml(text.toCharArray(), 0, text.length());
+	    output.flush();
+	} catch (IOException e) {
+	    // not thrown by a ByteArrayOutputStream
+	    throw new IllegalStateException(e);
+	}
+	return bytes.toByteArray();
+    }
+
+    void write(final byte[] bytes) throws IOException {
+	if (bytes.length > buffer.length - position) {
+	    drain();
+	    if (bytes.length > buffer.length) {
+		out.write(bytes);
+		return;
+	    }
+	}
+	System.arraycopy(bytes, 0, buffer, position, bytes.length);
+	position += bytes.length;
+    }
+
+    /**
+     * Writes the chars from start to end as UTF-8. Unpaired surrogates are
+     * written as '?', as by an OutputStreamWriter.
+     */
+    void write(final char[] chars, final int start, final int end) throws IOException {
+	for (int i = start; i < end; i++) {
+	    if (buffer.length - position < 4) {
+		drain();
+	    }
+	    final char c = chars[i];
+	    if (c < 0x80) {
+		buffer[position++] = (byte) c;
+	    } else if (c < 0x800) {
+		buffer[position++] = (byte) (0xc0 | c >> 6);
+		buffer[position++] = (byte) (0x80 | c & 0x3f);
+	    } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+		final int codePoint = Character.toCodePoint(c, chars[++i]);
+		buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+		buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+		buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+		buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+	    } else if (Character.isSurrogate(c)) {
+		buffer[position++] = '?';
+	    } else {
+		buffer[position++] = (byte) (0xe0 | c >> 12);
+		buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+		buffer[position++] = (byte) (0x80 | c & 0x3f);
+	    }
+	}
+    }
+
+    /**
+     * Writes the chars from start to end as the content of an ODF text:p
+     * element: markup characters are escaped, spaces, tabs and line breaks
+     * are written as their elements and other characters not allowed in
+     * XML are left out.
+     */
+    void writeXml(final char[] chars, final int start, final int end) throws IOException {
+	int from = start;
+	for (int i = start; i < end; i++) {
+	    final char c = chars[i];
+	    if (c > '>' && c < 0xfffe) {
+		continue;
+	    }
+	    final byte[] replacement;
+	    switch (c) {
+	    case '&':
+		replacement = AMP;
+		break;
+	    case '<':
+		replacement = LT;
+		break;
+	    case '>':
+		replacement = GT;
+		break;
+	    case ' ':
+		replacement = SPACE;
+		break;
+	    case '\t':
+		replacement = TAB;
+		break;
+	    case '\n':
+		replacement = LINE_BREAK;
+		break;
+	    default:
+		if (c >= 0x20 && c < 0xfffe) {
+		    continue;
+		}
+		replacement = null;
+	    }
+	    write(chars, from, i);
+	    if (replacement != null) {
+		write(replacement);
+	    }
+	    from = i + 1;
+	}
+	write(chars, from, end);
+    }
+
+    void flush() throws IOException {
+	drain();
+	out.flush();
+    }
+
+    private void drain() throws IOException {
+	out.write(buffer, 0, position);
+	position = 0;
+    }
+}